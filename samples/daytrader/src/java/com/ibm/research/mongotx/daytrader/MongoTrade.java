@@ -20,10 +20,10 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import org.bson.Document;
 
@@ -78,48 +78,17 @@ public class MongoTrade implements TradeServices, DT3Schema {
         Tx tx = txDB.beginTransaction();
         try {
 
-            List<Document> quotes = new ArrayList<>();
-            Iterator<Document> itr = txDB.getCollection(COL_QUOTE).find(tx, new Document()).iterator();
-            while (itr.hasNext()) {
-                Document quote = itr.next();
-                if (quote.getString(Q_SYMBOL).startsWith("s:1"))
-                    quotes.add(quote);
-            }
+            TxCollection quotes = txDB.getCollection(COL_QUOTE);
+            Document query = new Document(Q_SYMBOL, Pattern.compile("^s:1"));
 
             //"select * from quoteejb q where q.symbol like 's:1__' order by q.change1";
-            quotes.sort(new Comparator<Document>() {
-                @Override
-                public int compare(Document left, Document right) {
-                    double leftChange1 = left.getDouble(Q_CHANGE1);
-                    double rightChange1 = right.getDouble(Q_CHANGE1);
-                    if (leftChange1 < rightChange1)
-                        return 1;
-                    else if (rightChange1 < leftChange1)
-                        return -1;
-                    else
-                        return 0;
-                }
-            });
             ArrayList<QuoteDataBean> topLosersData = new ArrayList<QuoteDataBean>(5);
-            for (int i = 0; i < Math.min(5, quotes.size()); ++i)
-                topLosersData.add(getQuoteData(quotes.get(i)));
-
-            quotes.sort(new Comparator<Document>() {
-                @Override
-                public int compare(Document left, Document right) {
-                    double leftChange1 = left.getDouble(Q_CHANGE1);
-                    double rightChange1 = right.getDouble(Q_CHANGE1);
-                    if (leftChange1 < rightChange1)
-                        return -1;
-                    else if (rightChange1 < leftChange1)
-                        return 1;
-                    else
-                        return 0;
-                }
-            });
+            for (Document quote : quotes.find(tx, query).sort(new Document(Q_CHANGE1, -1)).limit(5))
+                topLosersData.add(getQuoteData(quote));
+
             ArrayList<QuoteDataBean> topGainersData = new ArrayList<QuoteDataBean>(5);
-            for (int i = 0; i < Math.min(5, quotes.size()); ++i)
-                topGainersData.add(getQuoteData(quotes.get(i)));
+            for (Document quote : quotes.find(tx, query).sort(new Document(Q_CHANGE1, 1)).limit(5))
+                topGainersData.add(getQuoteData(quote));
 
             /*
              * rs.last(); count = 0; while (rs.previous() && (count++ < 5) ) {
@@ -133,22 +102,19 @@ public class MongoTrade implements TradeServices, DT3Schema {
 
             if ((topGainersData.size() > 0) || (topLosersData.size() > 0)) {
 
-                //select SUM(price)/count(*) as TSIA from quoteejb q where q.symbol like 's:1__'
+                //select SUM(price)/count(*) as TSIA, SUM(open1)/count(*) as openTSIA, SUM(volume) as totalVolume from quoteejb q where q.symbol like 's:1__'
+                int count = 0;
                 double priceSum = 0.0;
-                for (Document quote : quotes)
-                    priceSum += quote.getDouble(Q_PRICE);
-                TSIA = new BigDecimal(priceSum / (double) quotes.size());
-
-                //select SUM(open1)/count(*) as openTSIA from quoteejb q where q.symbol like 's:1__'
                 double open1Sum = 0.0;
-                for (Document quote : quotes)
-                    open1Sum += quote.getDouble(Q_OPEN1);
-                openTSIA = new BigDecimal(open1Sum / (double) quotes.size());
-
-                //select SUM(volume) as totalVolume from quoteejb q where q.symbol like 's:1__'
                 double volumeSum = 0.0;
-                for (Document quote : quotes)
+                for (Document quote : quotes.find(tx, query).projection(new Document(Q_PRICE, 1).append(Q_OPEN1, 1).append(Q_VOLUME, 1))) {
+                    ++count;
+                    priceSum += quote.getDouble(Q_PRICE);
+                    open1Sum += quote.getDouble(Q_OPEN1);
                     volumeSum += quote.getDouble(Q_VOLUME);
+                }
+                TSIA = new BigDecimal(priceSum / (double) count);
+                openTSIA = new BigDecimal(open1Sum / (double) count);
                 volume = volumeSum;
             }
             tx.commit();
@@ -227,7 +193,9 @@ public class MongoTrade implements TradeServices, DT3Schema {
     }
 
     private Document findOne(Tx tx, TxCollection col, Object key, boolean forUpdate) throws TxRollback {
-        FindIterable<Document> itrable = col.find(tx, new Document("_id", key), forUpdate);
+        if (forUpdate)
+            return col.findOneForUpdate(tx, new Document("_id", key));
+        FindIterable<Document> itrable = col.find(tx, new Document("_id", key), false);
         Iterator<Document> itr = itrable.iterator();
         if (itr.hasNext())
             return itr.next();
@@ -641,13 +609,12 @@ public class MongoTrade implements TradeServices, DT3Schema {
                 return orderDataBeans;
             int accountId = account.getInteger(A_ACCOUNTID);
 
-            Iterator<Document> cursor = txDB.getCollection(COL_ORDER).find(tx, new Document(O_ACCOUNT_ACCOUNTID, accountId)).iterator();
-
             // TODO: return top 5 orders for now -- next version will add a
             // getAllOrders method
-            // also need to get orders sorted by order id descending
-            int i = 0;
-            while ((cursor.hasNext()) && (i++ < 5)) {
+            Iterator<Document> cursor = txDB.getCollection(COL_ORDER).find(tx, new Document(O_ACCOUNT_ACCOUNTID, accountId))//
+                    .sort(new Document(O_ORDERID, -1)).limit(5).iterator();
+
+            while (cursor.hasNext()) {
                 OrderDataBean orderData = getOrderData((Document) cursor.next());
                 orderDataBeans.add(orderData);
             }
@@ -670,6 +637,7 @@ public class MongoTrade implements TradeServices, DT3Schema {
                 return orderDataBeans;
             int accountId = account.getInteger(A_ACCOUNTID);
 
+            // every closed order is completed, so the orders are neither sorted nor limited
             Iterator<Document> cursor = txDB.getCollection(COL_ORDER).find(tx, new Document(O_ACCOUNT_ACCOUNTID, accountId).append(O_ORDERSTATUS, "closed")).iterator();
 
             while (cursor.hasNext()) {
@@ -0,0 +1,136 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// decides whether TxDatabase.runInTransaction() retries a rolled back transaction. create one policy per call site to get its metrics.
+public class RetryPolicy {
+
+    final String name;
+    int maxAttempts = 10;
+    long initialBackoffMs = 1L;
+    long maxBackoffMs = 100L;
+    double jitter = 0.5;
+
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong attempts = new AtomicLong();
+    final AtomicLong rollbacks = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong backoffMs = new AtomicLong();
+
+    public RetryPolicy(String name) {
+        this.name = name;
+    }
+
+    public RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be positive. maxAttempts=" + maxAttempts);
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public RetryPolicy backoff(long initialBackoffMs, long maxBackoffMs) {
+        if (initialBackoffMs < 0L || maxBackoffMs < initialBackoffMs)
+            throw new IllegalArgumentException("invalid backoff. initial=" + initialBackoffMs + ", max=" + maxBackoffMs);
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        return this;
+    }
+
+    // a backoff is randomly shortened by up to this ratio so that conflicting transactions do not retry at the same time
+    public RetryPolicy jitter(double jitter) {
+        if (jitter < 0.0 || jitter > 1.0)
+            throw new IllegalArgumentException("jitter must be in [0, 1]. jitter=" + jitter);
+        this.jitter = jitter;
+        return this;
+    }
+
+    // attempt starts from 1. override this to retry only specific rollbacks
+    protected boolean shouldRetry(int attempt, TxRollback cause) {
+        return attempt < maxAttempts;
+    }
+
+    protected long getBackoffMillis(int attempt) {
+        long backoff = initialBackoffMs;
+        for (int i = 1; i < attempt && backoff < maxBackoffMs; ++i)
+            backoff *= 2;
+        backoff = Math.min(backoff, maxBackoffMs);
+        if (backoff == 0L || jitter == 0.0)
+            return backoff;
+        return backoff - (long) (backoff * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    void started() {
+        calls.incrementAndGet();
+    }
+
+    void attempted() {
+        attempts.incrementAndGet();
+    }
+
+    // returns false if the rollback must be thrown to the caller
+    boolean rolledBack(int attempt, TxRollback cause) {
+        rollbacks.incrementAndGet();
+        if (!shouldRetry(attempt, cause)) {
+            failures.incrementAndGet();
+            return false;
+        }
+
+        long backoff = getBackoffMillis(attempt);
+        if (backoff <= 0L)
+            return true;
+        backoffMs.addAndGet(backoff);
+        try {
+            Thread.sleep(backoff);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+            return false;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    public long getAttemptCount() {
+        return attempts.get();
+    }
+
+    public long getRollbackCount() {
+        return rollbacks.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getTotalBackoffMillis() {
+        return backoffMs.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": calls=" + getCallCount() + ", attempts=" + getAttemptCount() + ", rollbacks=" + getRollbackCount() + ", failures=" + getFailureCount() + ", backoff=" + getTotalBackoffMillis() + "ms";
+    }
+}
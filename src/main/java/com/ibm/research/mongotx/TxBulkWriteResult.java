@@ -0,0 +1,74 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx;
+
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+
+// result of TxCollection.bulkWrite. a conflict rolls back the transaction with TxRollback instead of a result
+public class TxBulkWriteResult {
+
+    private final List<? extends WriteModel<Document>> requests;
+    private final long[] counts;
+
+    public TxBulkWriteResult(List<? extends WriteModel<Document>> requests, long[] counts) {
+        this.requests = requests;
+        this.counts = counts;
+    }
+
+    public int size() {
+        return counts.length;
+    }
+
+    // the number of documents that the request inserted, modified or deleted
+    public long getCount(int index) {
+        return counts[index];
+    }
+
+    public long getInsertedCount() {
+        long ret = 0L;
+        for (int i = 0; i < counts.length; ++i)
+            if (requests.get(i) instanceof InsertOneModel)
+                ret += counts[i];
+        return ret;
+    }
+
+    public long getModifiedCount() {
+        long ret = 0L;
+        for (int i = 0; i < counts.length; ++i)
+            if (!(requests.get(i) instanceof InsertOneModel) && !isDelete(requests.get(i)))
+                ret += counts[i];
+        return ret;
+    }
+
+    public long getDeletedCount() {
+        long ret = 0L;
+        for (int i = 0; i < counts.length; ++i)
+            if (isDelete(requests.get(i)))
+                ret += counts[i];
+        return ret;
+    }
+
+    private static boolean isDelete(WriteModel<Document> request) {
+        return request instanceof DeleteOneModel || request instanceof DeleteManyModel;
+    }
+}
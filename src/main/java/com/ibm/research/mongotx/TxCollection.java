@@ -15,6 +15,7 @@
  */
 package com.ibm.research.mongotx;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.bson.Document;
@@ -23,6 +24,8 @@ import org.bson.conversions.Bson;
 import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 
@@ -43,24 +46,48 @@ public interface TxCollection {
 
     FindIterable<Document> find(Tx tx, Document filter) throws TxRollback;
 
+    // returns existing documents in the order of ids with one query for keys that this transaction did not read yet
+    List<Document> findByIds(Tx tx, Collection<?> ids, boolean forUpdate) throws TxRollback;
+
+    List<Document> findByIds(Tx tx, Collection<?> ids) throws TxRollback;
+
+    // counts matching documents without returning them to the client as far as possible
+    long count(Tx tx, Document filter) throws TxRollback;
+
+    boolean exists(Tx tx, Document filter) throws TxRollback;
+
+    // reads a document and locks it in the same call, so that a following write of the transaction does not conflict
+    Document findOneForUpdate(Tx tx, Document filter) throws TxRollback;
+
     Document findOneAndReplace(Tx tx, Document filter, Document replacement) throws TxRollback;
 
     Document findOneAndDelete(Tx tx, Document filter) throws TxRollback;
 
     void insertOne(Tx tx, Document document) throws TxRollback;
 
+    void insertMany(Tx tx, List<Document> documents) throws TxRollback;
+
+    // requests are applied in order. a conflict rolls back the transaction
+    TxBulkWriteResult bulkWrite(Tx tx, List<? extends WriteModel<Document>> requests) throws TxRollback;
+
     DeleteResult deleteOne(Tx tx, Document filter) throws TxRollback;
 
     DeleteResult deleteMany(Tx tx, Document filter) throws TxRollback;
 
-    // TODO
-    //UpdateResult updateOne(Tx tx, Document filter, Document update) throws TxRollback;
+    // update is $set, $unset, $inc and $push operators evaluated on the client, or a replacement
+    UpdateResult updateOne(Tx tx, Document filter, Document update) throws TxRollback;
 
-    // TODO
-    //UpdateResult updateMany(Tx tx, Document filter, Document update) throws TxRollback;
+    UpdateResult updateMany(Tx tx, Document filter, Document update) throws TxRollback;
 
     UpdateResult replaceOne(Tx tx, Document query, Document replacement) throws TxRollback;
 
+    // an upsert inserts the document with equality fields of the filter in the same write when no document matches
+    UpdateResult updateOne(Tx tx, Document filter, Document update, UpdateOptions options) throws TxRollback;
+
+    UpdateResult updateMany(Tx tx, Document filter, Document update, UpdateOptions options) throws TxRollback;
+
+    UpdateResult replaceOne(Tx tx, Document query, Document replacement, UpdateOptions options) throws TxRollback;
+
     // non-transactional
     void flush(long timestamp);
 
@@ -15,6 +15,8 @@
  */
 package com.ibm.research.mongotx;
 
+import java.util.function.Function;
+
 import com.mongodb.client.MongoDatabase;
 
 public interface TxDatabase {
@@ -29,6 +31,30 @@ public interface TxDatabase {
 
     Tx beginTransaction();
 
+    // a transaction that only reads. writes in it throw IllegalStateException
+    Tx beginReadOnlyTransaction();
+
+    // runs body in a new transaction and commits it. a rolled back transaction is retried while the policy allows
+    default <T> T runInTransaction(Function<Tx, T> body, RetryPolicy policy) throws TxRollback {
+        policy.started();
+        for (int attempt = 1;; ++attempt) {
+            policy.attempted();
+            Tx tx = beginTransaction();
+            try {
+                T ret = body.apply(tx);
+                tx.commit();
+                return ret;
+            } catch (TxRollback ex) {
+                tx.rollback();
+                if (!policy.rolledBack(attempt, ex))
+                    throw ex;
+            } catch (RuntimeException | Error ex) {
+                tx.rollback();
+                throw ex;
+            }
+        }
+    }
+
     public void setInt(Object key, int val);
 
     public int incrementAndGetInt(Object key);
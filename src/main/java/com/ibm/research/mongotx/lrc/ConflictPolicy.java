@@ -0,0 +1,106 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.ibm.research.mongotx.lrc.LRCTx.STATE;
+
+// waits for a conflicting transaction to finish before rolling back. bucket i of the wait histogram counts waits shorter than 2^i ms.
+public class ConflictPolicy {
+
+    public static final int NUM_OF_BUCKETS = 16;
+
+    final long maxWaitMs;
+    final long initialBackoffMs;
+    final long maxBackoffMs;
+    final AtomicLong waits = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong aborts = new AtomicLong();
+    final AtomicLongArray waitHistogram = new AtomicLongArray(NUM_OF_BUCKETS);
+
+    public ConflictPolicy(long maxWaitMs, long initialBackoffMs, long maxBackoffMs) {
+        if (maxWaitMs < 0L || initialBackoffMs <= 0L || maxBackoffMs < initialBackoffMs)
+            throw new IllegalArgumentException("invalid wait parameters. maxWait=" + maxWaitMs + ", initialBackoff=" + initialBackoffMs + ", maxBackoff=" + maxBackoffMs);
+        this.maxWaitMs = maxWaitMs;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    // returns true if the conflicting transaction finished within the deadline and the caller should repair and retry
+    boolean await(LatestReadCommittedTxDB txDB, String txId) {
+        waits.incrementAndGet();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        long backoff = initialBackoffMs;
+        boolean finished = false;
+        try {
+            while (true) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0L)
+                    break;
+                long wait = Math.min(backoff, remaining);
+                if (!txDB.awaitTxFinished(txId, wait))
+                    Thread.sleep(wait);
+                backoff = Math.min(backoff * 2, maxBackoffMs);
+
+                if (txDB.getTxState(txId) != STATE.WRITING || txDB.abort(txId)) {
+                    finished = true;
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int bucket = 0;
+        while (bucket < NUM_OF_BUCKETS - 1 && (1L << bucket) <= waitedMs)
+            ++bucket;
+        waitHistogram.incrementAndGet(bucket);
+
+        if (finished)
+            retries.incrementAndGet();
+        else
+            aborts.incrementAndGet();
+        return finished;
+    }
+
+    public long getMaxWaitMs() {
+        return maxWaitMs;
+    }
+
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getAbortCount() {
+        return aborts.get();
+    }
+
+    public long[] getWaitHistogram() {
+        long[] ret = new long[NUM_OF_BUCKETS];
+        for (int i = 0; i < NUM_OF_BUCKETS; ++i)
+            ret[i] = waitHistogram.get(i);
+        return ret;
+    }
+}
@@ -22,6 +22,10 @@ public interface Constants {
     long TX_TIMEOUT = 3 * 1000L;
     int MAX_INSERT_TRY = 10;
     long MAX_TIMEDIFF = 10L;
+    long ROLLFORWARD_DRAIN_TIMEOUT = 30 * 1000L;
+    long TX_STATE_WRITE_TIMEOUT = 30 * 1000L;
+    int TX_STATE_CACHE_SIZE = 64 * 1024;
+    int TX_STATE_BATCH_SIZE = 100;
 
     String COL_SYSTEM = "_SYS";
 
@@ -44,6 +48,7 @@ public interface Constants {
     String ATTR_VALUE_UNSAFE_TXID = "_tx";
     String ATTR_VALUE_UNSAFE_INSERT = "_i";
     String ATTR_VALUE_UNSAFE_REMOVE = "_r";
+    String ATTR_VALUE_UNSAFE_DELTA = "_d";
 
     String ID_CLIENT = "cid";
     String ID_TIME = "time";
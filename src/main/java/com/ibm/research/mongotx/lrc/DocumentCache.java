@@ -0,0 +1,129 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+// caches safe versions of documents without unsafe versions, shared by transactions of a collection. a version is identified
+// by its _tx. a reader takes a stamp before reading the server and its document is cached only if no invalidation happened
+// to the segment since then, so that a version read before a commit is never cached after the commit.
+class DocumentCache implements Constants {
+
+    static final int NUM_OF_SEGMENTS = 16;
+
+    static class Segment extends LinkedHashMap<Object, Document> {
+        private static final long serialVersionUID = 1L;
+
+        final int capacity;
+        long invalidations = 0L;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Document> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    final Segment[] segments = new Segment[NUM_OF_SEGMENTS];
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    DocumentCache(int capacity) {
+        int segmentCapacity = Math.max(1, capacity / NUM_OF_SEGMENTS);
+        for (int i = 0; i < NUM_OF_SEGMENTS; ++i)
+            segments[i] = new Segment(segmentCapacity);
+    }
+
+    private Segment segment(Object key) {
+        return segments[(key.hashCode() & 0x7fffffff) % NUM_OF_SEGMENTS];
+    }
+
+    // returns a copy of the cached document
+    Document get(Object key) {
+        Segment segment = segment(key);
+        Document sd2v;
+        synchronized (segment) {
+            sd2v = segment.get(key);
+        }
+        if (sd2v == null) {
+            misses.incrementAndGet();
+            return null;
+        } else {
+            hits.incrementAndGet();
+            return new Document(sd2v);
+        }
+    }
+
+    long getStamp(Object key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            return segment.invalidations;
+        }
+    }
+
+    void put(Object key, Document sd2v, long stamp) {
+        if (sd2v == null || sd2v.containsKey(ATTR_VALUE_UNSAFE))
+            return;
+
+        Segment segment = segment(key);
+        synchronized (segment) {
+            if (segment.invalidations != stamp)
+                return;
+            segment.put(key, new Document(sd2v));
+        }
+    }
+
+    void invalidate(Object key) {
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.remove(key);
+            ++segment.invalidations;
+        }
+    }
+
+    void clear() {
+        for (Segment segment : segments)
+            synchronized (segment) {
+                segment.clear();
+                ++segment.invalidations;
+            }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            synchronized (segment) {
+                size += segment.size();
+            }
+        return size;
+    }
+}
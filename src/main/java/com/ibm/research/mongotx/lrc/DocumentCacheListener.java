@@ -0,0 +1,127 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+// invalidates cached documents changed by other clients with a change stream of the base collection. requires a replica set.
+class DocumentCacheListener implements Constants {
+    private static final Logger LOGGER = Logger.getLogger(DocumentCacheListener.class.getName());
+
+    static final long MAX_AWAIT_TIME = 100L;
+    static final long RECONNECT_INTERVAL = 1000L;
+
+    final LRCTxDBCollection col;
+    final MongoCollection<Document> baseCol;
+    final AtomicLong numOfEvents = new AtomicLong();
+    final Thread listener;
+    volatile boolean running = true;
+    volatile boolean healthy = false;
+    BsonDocument resumeToken;
+
+    DocumentCacheListener(LRCTxDBCollection col, MongoCollection<Document> baseCol) {
+        this.col = col;
+        this.baseCol = baseCol;
+        this.listener = new Thread("mongotx-doccache-listener-" + col.getName()) {
+            @Override
+            public void run() {
+                DocumentCacheListener.this.run();
+            }
+        };
+        this.listener.setDaemon(true);
+        this.listener.start();
+    }
+
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    long getEventCount() {
+        return numOfEvents.get();
+    }
+
+    void close() {
+        running = false;
+        try {
+            listener.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        healthy = false;
+    }
+
+    private void run() {
+        Document match = new Document("$match", new Document("operationType", new Document("$in", Arrays.asList(//
+                OperationType.UPDATE.getValue(), OperationType.REPLACE.getValue(), OperationType.DELETE.getValue()))));
+
+        while (running) {
+            ChangeStreamIterable<Document> stream = baseCol.watch(Arrays.asList(match)).maxAwaitTime(MAX_AWAIT_TIME, TimeUnit.MILLISECONDS);
+            if (resumeToken != null)
+                stream = stream.resumeAfter(resumeToken);
+
+            try (MongoCursor<ChangeStreamDocument<Document>> cursor = stream.iterator()) {
+                // changes while the stream was lost are not known
+                if (resumeToken == null)
+                    col.clearDocumentCache();
+                healthy = true;
+                while (running) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change == null)
+                        continue;
+                    resumeToken = change.getResumeToken();
+                    numOfEvents.incrementAndGet();
+                    handle(change);
+                }
+            } catch (Exception ex) {
+                LOGGER.log(Level.WARNING, "change stream of " + col.getName() + " was lost. msg=" + ex.getMessage(), ex);
+                healthy = false;
+                resumeToken = null;
+                col.clearDocumentCache();
+                try {
+                    Thread.sleep(RECONNECT_INTERVAL);
+                } catch (InterruptedException iex) {
+                    running = false;
+                }
+            }
+        }
+        healthy = false;
+    }
+
+    private void handle(ChangeStreamDocument<Document> change) {
+        BsonDocument documentKey = change.getDocumentKey();
+        if (documentKey == null || !documentKey.containsKey(ATTR_ID))
+            return;
+        // decoded to the same java type as keys of documents read from the server
+        Document key = new DocumentCodec().decode(new BsonDocumentReader(documentKey), DecoderContext.builder().build());
+        col.invalidateCache(key.get(ATTR_ID));
+    }
+}
@@ -16,7 +16,6 @@
 package com.ibm.research.mongotx.lrc;
 
 import java.util.Collection;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.bson.Document;
@@ -26,8 +25,7 @@ import com.ibm.research.mongotx.TxRollback;
 import com.mongodb.Block;
 import com.mongodb.CursorType;
 import com.mongodb.Function;
-import com.mongodb.ServerAddress;
-import com.mongodb.ServerCursor;
+import com.mongodb.MongoClient;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoIterable;
@@ -38,29 +36,20 @@ class LRCSimpleTxDBCursor implements FindIterable<Document>, Constants {
     final LRCTx tx;
     final LRCTxDBCollection col;
     final Document query;
-    final boolean keyOnly;
     final boolean forUpdate;
+    Document projection = null;
+    Document sort = null;
+    int skip = 0;
     int limit = 0;
-
-    boolean filled = false;
-    List<Document> results = null;
+    int batchSize = 0;
 
     LRCSimpleTxDBCursor(LRCTx tx, LRCTxDBCollection col, Document query, boolean forUpdate) {
         this.tx = tx;
         this.col = col;
         this.query = query;
-        this.keyOnly = query.size() == 1 && query.containsKey(ATTR_ID);
         this.forUpdate = forUpdate;
     }
 
-    private void fillIfNecessary() throws TxRollback {
-        if (filled)
-            return;
-
-        filled = true;
-        results = col.select(tx, query, limit, forUpdate);
-    }
-
     @Override
     public FindIterable<Document> limit(int limit) {
         this.limit = limit;
@@ -69,70 +58,13 @@ class LRCSimpleTxDBCursor implements FindIterable<Document>, Constants {
 
     @Override
     public MongoCursor<Document> iterator() {
-
-        return new MongoCursor<Document>() {
-            boolean filled = false;
-            int index = -1;
-
-            private void fillIfNecessary() {
-                if (filled)
-                    return;
-
-                LRCSimpleTxDBCursor.this.fillIfNecessary();
-
-                filled = true;
-            }
-
-            @Override
-            public void close() {
-            }
-
-            @Override
-            public boolean hasNext() {
-                synchronized (tx) {
-                    fillIfNecessary();
-                    return index < (results.size() - 1);
-                }
-            }
-
-            @Override
-            public Document next() {
-                synchronized (tx) {
-                    if (hasNext())
-                        ++index;
-                    if (index >= results.size() || index < 0)
-                        return null;
-                    return results.get(index);
-                }
-            }
-
-            @Override
-            public Document tryNext() {
-                synchronized (tx) {
-                    if (hasNext())
-                        return next();
-                    else
-                        return null;
-                }
-            }
-
-            @Override
-            public ServerCursor getServerCursor() {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public ServerAddress getServerAddress() {
-                throw new UnsupportedOperationException();
-            }
-        };
+        return col.new SelectCursor(tx, query, projection, sort, skip, limit, batchSize, forUpdate);
     }
 
     @Override
-    public Document first() {
-        synchronized (tx) {
-            fillIfNecessary();
-            return results.isEmpty() ? null : results.get(0);
+    public Document first() throws TxRollback {
+        try (MongoCursor<Document> cursor = col.new SelectCursor(tx, query, projection, sort, skip, 1, 1, forUpdate)) {
+            return cursor.hasNext() ? cursor.next() : null;
         }
     }
 
@@ -158,7 +90,8 @@ class LRCSimpleTxDBCursor implements FindIterable<Document>, Constants {
 
     @Override
     public FindIterable<Document> skip(int skip) {
-        throw new UnsupportedOperationException();
+        this.skip = skip;
+        return this;
     }
 
     @Override
@@ -173,12 +106,20 @@ class LRCSimpleTxDBCursor implements FindIterable<Document>, Constants {
 
     @Override
     public FindIterable<Document> projection(Bson projection) {
-        throw new UnsupportedOperationException();
+        this.projection = toDocument(projection);
+        return this;
+    }
+
+    private static Document toDocument(Bson bson) {
+        if (bson == null || bson instanceof Document)
+            return (Document) bson;
+        return Document.parse(bson.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry()).toJson());
     }
 
     @Override
     public FindIterable<Document> sort(Bson sort) {
-        throw new UnsupportedOperationException();
+        this.sort = toDocument(sort);
+        return this;
     }
 
     @Override
@@ -203,7 +144,8 @@ class LRCSimpleTxDBCursor implements FindIterable<Document>, Constants {
 
     @Override
     public FindIterable<Document> batchSize(int batchSize) {
-        throw new UnsupportedOperationException();
+        this.batchSize = batchSize;
+        return this;
     }
 
     @Override
@@ -15,6 +15,7 @@
  */
 package com.ibm.research.mongotx.lrc;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -36,16 +37,53 @@ public class LRCTx implements Tx, Constants {
     final LatestReadCommittedTxDB txDB;
     final String txId;
     final long started;
+    // a read-only transaction rejects writes, caches nothing, never aborts writers and is not shared between threads
+    final boolean readOnly;
     STATE state = STATE.READING;
-    final Map<LRCTxDBCollection, Map<Object, Document>> dirtyMaps = new HashMap<>();
-    final Map<LRCTxDBCollection, Map<Object, Document>> cacheMaps = new HashMap<>();
-    final Map<LRCTxDBCollection, Set<Object>> pinnedKeySets = new HashMap<>();
+    final Map<LRCTxDBCollection, Map<Object, Document>> dirtyMaps;
+    final Map<LRCTxDBCollection, Map<Object, Document>> cacheMaps;
+    final Map<LRCTxDBCollection, Set<Object>> pinnedKeySets;
     long timeout = TX_TIMEOUT;
+    OnePhaseWrite onePhaseWrite = null;
+
+    // a write of a single document deferred until commit. it is applied with one conditional write without _SYS
+    static class OnePhaseWrite {
+        final LRCTxDBCollection col;
+        final Object key;
+        final Document base;
+        Document unsafe;
+
+        OnePhaseWrite(LRCTxDBCollection col, Object key, Document base, Document unsafe) {
+            this.col = col;
+            this.key = key;
+            this.base = base;
+            this.unsafe = unsafe;
+        }
+    }
 
     public LRCTx(LatestReadCommittedTxDB txDB, String txId) {
+        this(txDB, txId, false);
+    }
+
+    LRCTx(LatestReadCommittedTxDB txDB, String txId, boolean readOnly) {
         this.txDB = txDB;
         this.txId = txId;
         this.started = txDB.getServerTimeAtLeast();
+        this.readOnly = readOnly;
+        if (readOnly) {
+            this.dirtyMaps = Collections.emptyMap();
+            this.cacheMaps = Collections.emptyMap();
+            this.pinnedKeySets = Collections.emptyMap();
+        } else {
+            this.dirtyMaps = new HashMap<>();
+            this.cacheMaps = new HashMap<>();
+            this.pinnedKeySets = new HashMap<>();
+        }
+    }
+
+    void checkWritable() {
+        if (readOnly)
+            throw new IllegalStateException("read-only transaction can not write. tx=" + txId);
     }
 
     public void setTimeout(long milsec) {
@@ -68,9 +106,31 @@ public class LRCTx implements Tx, Constants {
                 .append(ATTR_TX_STARTTIME, started)//
                 .append(ATTR_TX_TIMEOUT, started + timeout);
 
-        txDB.sysCol.insertOne(txState);
+        txDB.insertTxState(txState);
 
         state = STATE.WRITING;
+
+        // the deferred write can not be committed in one phase any more
+        if (onePhaseWrite != null) {
+            OnePhaseWrite write = onePhaseWrite;
+            onePhaseWrite = null;
+            write.col.installOnePhaseWrite(this, write);
+        }
+    }
+
+    boolean canDeferWrite() {
+        return txDB.onePhaseCommit && state == STATE.READING && dirtyMaps.isEmpty() && onePhaseWrite == null;
+    }
+
+    OnePhaseWrite getOnePhaseWrite(LRCTxDBCollection col, Object key) {
+        if (onePhaseWrite == null || onePhaseWrite.col != col || !onePhaseWrite.key.equals(key))
+            return null;
+        return onePhaseWrite;
+    }
+
+    void installOnePhaseWriteIfNecessary(LRCTxDBCollection col) throws TxRollback {
+        if (onePhaseWrite != null && onePhaseWrite.col == col)
+            insertTxStateIfNecessary();
     }
 
     void putDirty(LRCTxDBCollection col, Object key, Document dirty) {
@@ -85,7 +145,23 @@ public class LRCTx implements Tx, Constants {
 
     }
 
+    void putDirty(LRCTxDBCollection col, Map<Object, Document> dirties) {
+        Map<Object, Document> dirtyMap = dirtyMaps.get(col);
+        if (dirtyMap == null) {
+            dirtyMap = new HashMap<>();
+            dirtyMaps.put(col, dirtyMap);
+        }
+        dirtyMap.putAll(dirties);
+
+        for (Map.Entry<Object, Document> dirty : dirties.entrySet())
+            putCache(col, dirty.getKey(), dirty.getValue(), true);
+    }
+
     Document getDirty(LRCTxDBCollection col, Object key) {
+        OnePhaseWrite write = getOnePhaseWrite(col, key);
+        if (write != null)
+            return new Document(write.base).append(ATTR_VALUE_UNSAFE, new Document(write.unsafe).append(ATTR_VALUE_UNSAFE_TXID, txId));
+
         Map<Object, Document> dirtyMap = dirtyMaps.get(col);
         if (dirtyMap == null)
             return null;
@@ -93,6 +169,9 @@ public class LRCTx implements Tx, Constants {
     }
 
     void putCache(LRCTxDBCollection col, Object key, Document latest, boolean pin) {
+        if (readOnly)
+            return;
+
         Map<Object, Document> cacheMap = cacheMaps.get(col);
         if (cacheMap == null) {
             cacheMap = new HashMap<>();
@@ -142,7 +221,7 @@ public class LRCTx implements Tx, Constants {
     }
 
     boolean isReadOnly() {
-        return dirtyMaps.isEmpty();
+        return readOnly || dirtyMaps.isEmpty();
     }
 
     boolean isCommitted() {
@@ -169,6 +248,14 @@ public class LRCTx implements Tx, Constants {
 
         try {
             if (dirtyMaps.isEmpty()) {
+                if (onePhaseWrite != null) {
+                    OnePhaseWrite write = onePhaseWrite;
+                    onePhaseWrite = null;
+                    if (!write.col.commitOnePhaseWrite(this, write)) {
+                        aborted();
+                        throw new TxRollback("commit error: conflict. col=" + write.col.getName() + ", key=" + write.key);
+                    }
+                }
                 committed();
                 return;
             }
@@ -186,7 +273,7 @@ public class LRCTx implements Tx, Constants {
                         .append(ATTR_TX_STARTTIME, started);
 
                 try {
-                    if (txDB.sysCol.replaceOne(query, newTxState).getModifiedCount() != 1L)
+                    if (!txDB.replaceTxState(query, newTxState))
                         committed = false;
 
                 } catch (Exception ex_) {
@@ -203,35 +290,32 @@ public class LRCTx implements Tx, Constants {
                     throw new TxRollback("commit error", ex);
             }
 
+            txDB.cacheTxState(txId, STATE.COMMITTED);
+
+            // the previous versions shared by other transactions of this client are stale now
+            for (Map.Entry<LRCTxDBCollection, Map<Object, Document>> dirtyMapEntry : dirtyMaps.entrySet())
+                dirtyMapEntry.getKey().invalidateCache(dirtyMapEntry.getValue().keySet());
+
             //for testing
             if (partialForTest)
                 return;
 
             committed();
 
-            for (Map.Entry<LRCTxDBCollection, Map<Object, Document>> dirtyMapEntry : dirtyMaps.entrySet()) {
-                LRCTxDBCollection col = dirtyMapEntry.getKey();
-                Map<Object, Document> dirtyMap = dirtyMapEntry.getValue();
-                for (Map.Entry<Object, Document> dirtyEntry : dirtyMap.entrySet()) {
-                    Object key = dirtyEntry.getKey();
-                    Document dirty = dirtyEntry.getValue();
-                    col.commit(txId, key, dirty);
-                }
-            }
-
-            txDB.sysCol.deleteOne(new Document(ATTR_ID, txId));
+            txDB.committed(this);
 
         } finally {
-            if (state == STATE.COMMITTED)
+            if (isFinished())
                 txDB.finished(this);
         }
     }
 
     @Override
     public void rollback() {
-        if (state == STATE.ABORTED)
+        if (!isActive())
             return;
 
+        onePhaseWrite = null;
         try {
             if (state == STATE.WRITING) {
                 Document query = new Document()//
@@ -240,26 +324,35 @@ public class LRCTx implements Tx, Constants {
 
                 Document newTxState = new Document()//
                         .append(ATTR_ID, txId)//
-                        .append(ATTR_TX_STATE, STATE_COMMITTED);
+                        .append(ATTR_TX_STATE, STATE_ABORTED);
 
-                txDB.sysCol.replaceOne(query, newTxState);
+                if (txDB.replaceTxState(query, newTxState))
+                    txDB.cacheTxState(txId, STATE.ABORTED);
 
-                for (Map.Entry<LRCTxDBCollection, Map<Object, Document>> dirtyMapEntry : dirtyMaps.entrySet()) {
-                    LRCTxDBCollection col = dirtyMapEntry.getKey();
-                    Map<Object, Document> dirtyMap = dirtyMapEntry.getValue();
-                    for (Map.Entry<Object, Document> dirtyEntry : dirtyMap.entrySet()) {
-                        Object key = dirtyEntry.getKey();
-                        Document dirty = dirtyEntry.getValue();
-                        col.rollback(txId, key, dirty);
-                    }
-                }
-                txDB.sysCol.deleteOne(new Document(ATTR_ID, txId));
+                if (finishDirties(false))
+                    txDB.removeTxState(txId);
             }
         } finally {
+            aborted();
             txDB.finished(this);
         }
     }
 
+    // returns false if some dirty documents were not finished. they are repaired by readers with the remaining tx state.
+    boolean finishDirties(boolean commit) {
+        boolean finished = true;
+        for (Map.Entry<LRCTxDBCollection, Map<Object, Document>> dirtyMapEntry : dirtyMaps.entrySet()) {
+            LRCTxDBCollection col = dirtyMapEntry.getKey();
+            Map<Object, Document> dirtyMap = dirtyMapEntry.getValue();
+            Set<Object> failedKeys = commit ? col.commitAll(txId, dirtyMap) : col.rollbackAll(txId, dirtyMap);
+            if (!failedKeys.isEmpty()) {
+                LOGGER.warning("unfinished documents remain. tx=" + txId + ", col=" + col.getName() + ", keys=" + failedKeys);
+                finished = false;
+            }
+        }
+        return finished;
+    }
+
     @Override
     public void commit(int partialForTest) {
         // TODO Auto-generated method stub
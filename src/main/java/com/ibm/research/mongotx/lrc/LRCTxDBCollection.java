@@ -15,12 +15,21 @@
  */
 package com.ibm.research.mongotx.lrc;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -32,32 +41,54 @@ import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
 import com.ibm.research.mongotx.Tx;
+import com.ibm.research.mongotx.TxBulkWriteResult;
 import com.ibm.research.mongotx.TxCollection;
 import com.ibm.research.mongotx.TxDatabase;
 import com.ibm.research.mongotx.TxRollback;
 import com.ibm.research.mongotx.lrc.LRCTx.STATE;
 import com.mongodb.Block;
 import com.mongodb.Function;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
 import com.mongodb.MongoWriteException;
 import com.mongodb.ServerAddress;
 import com.mongodb.ServerCursor;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 
 public class LRCTxDBCollection implements TxCollection, Constants {
     private static final Logger LOGGER = Logger.getLogger(LRCTxDBCollection.class.getName());
 
+    static final int UPSERTED = 2;
+    static final int MISMATCHED = 3;
+
     final String name;
     final LatestReadCommittedTxDB txDB;
     final MongoCollection<Document> baseCol;
     final Set<String> shardKeys = new HashSet<>();
+    volatile DocumentCache documentCache;
+    DocumentCacheListener documentCacheListener;
 
     LRCTxDBCollection(LatestReadCommittedTxDB txDB, MongoCollection<Document> baseCol, String name) {
         this.txDB = txDB;
@@ -66,6 +97,8 @@ public class LRCTxDBCollection implements TxCollection, Constants {
 
         initUnsafeIndexesIfNecesasry();
         initShardKeysIfNecessary();
+        if (txDB.deltaUnsafe)
+            initDeltaIndexIfNecessary();
     }
     
     public void addShardKey(String sharedKey) {
@@ -115,6 +148,11 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         }
     }
 
+    // deltas are selected by their marker because their unchanged fields are evaluated on the client
+    void initDeltaIndexIfNecessary() {
+        baseCol.createIndex(new Document(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_DELTA, 1), new IndexOptions().sparse(true));
+    }
+
     private void initShardKeysIfNecessary() {
         if (!txDB.isSharding)
             return;
@@ -148,117 +186,660 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         return txDB;
     }
 
-    void commit(String txId, Object key, Document sd2v) {
-        Document unsafe = getUnsafeVersion(sd2v);
-        Document query = new Document()//
+    // capacity 0 disables the cache
+    void setDocumentCache(int capacity) {
+        this.documentCache = capacity > 0 ? new DocumentCache(capacity) : null;
+    }
+
+    synchronized void enableDocumentCacheChangeStream() {
+        if (documentCacheListener == null)
+            documentCacheListener = new DocumentCacheListener(this, baseCol);
+    }
+
+    synchronized void closeDocumentCacheChangeStream() {
+        if (documentCacheListener != null) {
+            documentCacheListener.close();
+            documentCacheListener = null;
+        }
+    }
+
+    public long getDocumentCacheHitCount() {
+        DocumentCache cache = documentCache;
+        return cache == null ? 0L : cache.getHitCount();
+    }
+
+    public long getDocumentCacheMissCount() {
+        DocumentCache cache = documentCache;
+        return cache == null ? 0L : cache.getMissCount();
+    }
+
+    void invalidateCache(Object key) {
+        DocumentCache cache = documentCache;
+        if (cache != null)
+            cache.invalidate(key);
+    }
+
+    void invalidateCache(Collection<?> keys) {
+        DocumentCache cache = documentCache;
+        if (cache != null)
+            for (Object key : keys)
+                cache.invalidate(key);
+    }
+
+    void clearDocumentCache() {
+        DocumentCache cache = documentCache;
+        if (cache != null)
+            cache.clear();
+    }
+
+    private Document createUnsafeTxQuery(String txId, Object key) {
+        return new Document()//
                 .append(ATTR_ID, key)//
                 .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, txId);
+    }
+
+    private WriteModel<Document> createCommitModel(String txId, Object key, Document sd2v) {
+        Document unsafe = getUnsafeVersion(sd2v);
+        Document query = createUnsafeTxQuery(txId, key);
 
         if (unsafe.containsKey(ATTR_VALUE_UNSAFE_REMOVE)) {
-            baseCol.deleteOne(query);
+            return new DeleteOneModel<>(query);
+        } else if (isEmptyDelta(sd2v)) {
+            // a lock that was not overwritten keeps _tx of the safe version
+            return new UpdateOneModel<>(query, UNSET_UNSAFE);
+        } else if (isDelta(sd2v)) {
+            return new UpdateOneModel<>(query, createDeltaCommit((Document) sd2v.get(ATTR_VALUE_UNSAFE)));
         } else {
             unsafe = clean(unsafe);
             unsafe.append(ATTR_VALUE_TXID, txId);
-            baseCol.replaceOne(query, unsafe);
+            return new ReplaceOneModel<>(query, unsafe);
         }
     }
 
-    void rollback(String txId, Object key, Document sd2v) {
-        Document query = new Document()//
-                .append(ATTR_ID, key)//
-                .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, txId);
+    private WriteModel<Document> createRollbackModel(String txId, Object key, Document sd2v) {
+        Document query = createUnsafeTxQuery(txId, key);
 
-        if (((Document) sd2v.get(ATTR_VALUE_UNSAFE)).containsKey(ATTR_VALUE_UNSAFE_INSERT)) {
-            baseCol.deleteOne(query);
-        } else {
-            Document update = new Document("$unset", new Document(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_INSERT, ""));
-            baseCol.updateOne(query, update);
+        if (((Document) sd2v.get(ATTR_VALUE_UNSAFE)).containsKey(ATTR_VALUE_UNSAFE_INSERT))
+            return new DeleteOneModel<>(query);
+        else
+            return new UpdateOneModel<>(query, UNSET_UNSAFE);
+    }
+
+    Set<Object> commitAll(String txId, Map<Object, Document> dirtyMap) {
+        List<Object> keys = new ArrayList<>(dirtyMap.size());
+        List<WriteModel<Document>> models = new ArrayList<>(dirtyMap.size());
+        for (Map.Entry<Object, Document> dirtyEntry : dirtyMap.entrySet()) {
+            keys.add(dirtyEntry.getKey());
+            models.add(createCommitModel(txId, dirtyEntry.getKey(), dirtyEntry.getValue()));
         }
+        return bulkWrite(txId, keys, models);
     }
 
+    Set<Object> rollbackAll(String txId, Map<Object, Document> dirtyMap) {
+        List<Object> keys = new ArrayList<>(dirtyMap.size());
+        List<WriteModel<Document>> models = new ArrayList<>(dirtyMap.size());
+        for (Map.Entry<Object, Document> dirtyEntry : dirtyMap.entrySet()) {
+            keys.add(dirtyEntry.getKey());
+            models.add(createRollbackModel(txId, dirtyEntry.getKey(), dirtyEntry.getValue()));
+        }
+        return bulkWrite(txId, keys, models);
+    }
+
+    // returns keys whose write failed. their unsafe versions are left for read-repair
+    private Set<Object> bulkWrite(String txId, List<Object> keys, List<WriteModel<Document>> models) {
+        if (models.isEmpty())
+            return Collections.emptySet();
+
+        try {
+            baseCol.bulkWrite(models, new BulkWriteOptions().ordered(false));
+            return Collections.emptySet();
+        } catch (MongoBulkWriteException ex) {
+            Set<Object> failedKeys = new HashSet<>();
+            for (BulkWriteError error : ex.getWriteErrors())
+                failedKeys.add(keys.get(error.getIndex()));
+            LOGGER.warning("partial failure of finishing tx. col=" + baseCol.getNamespace() + ", tx=" + txId + ", keys=" + failedKeys);
+            return failedKeys;
+        } catch (MongoException ex) {
+            LOGGER.log(Level.WARNING, "failure of finishing tx. col=" + baseCol.getNamespace() + ", tx=" + txId + ", msg=" + ex.getMessage(), ex);
+            return new HashSet<>(keys);
+        }
+    }
+
+    // returns null if the query can not be rewritten for unsafe versions. _id is not a field of unsafe versions
     static Document addUnsafePrefix(Document query) {
         Document ret = new Document();
         for (Map.Entry<String, Object> entry : query.entrySet()) {
-            if (entry.getKey().startsWith("$"))
-                continue;
-            ret.put(ATTR_VALUE_UNSAFE + "." + entry.getKey(), entry.getValue());
+            String key = entry.getKey();
+            if (QueryMatcher.LOGICAL_OPERATORS.contains(key)) {
+                if (!(entry.getValue() instanceof List))
+                    return null;
+                List<Document> clauses = new ArrayList<>();
+                for (Object clause : (List<?>) entry.getValue()) {
+                    if (!(clause instanceof Document))
+                        return null;
+                    Document unsafeClause = addUnsafePrefix((Document) clause);
+                    if (unsafeClause == null)
+                        return null;
+                    clauses.add(unsafeClause);
+                }
+                ret.put(key, clauses);
+            } else if (key.startsWith("$")) {
+                return null;
+            } else if (key.equals(ATTR_ID)) {
+                ret.put(key, entry.getValue());
+            } else {
+                ret.put(ATTR_VALUE_UNSAFE + "." + key, entry.getValue());
+            }
         }
         return ret;
     }
 
     private Document createUnsafeQuery(Document query) {
-        Document unsafeQuery = new Document();
-        for (Map.Entry<String, Object> entry : query.entrySet()) {
-            if (entry.getKey().startsWith("$"))
-                unsafeQuery.put(entry.getKey(), addUnsafePrefix((Document) entry.getValue()));
-            else
-                unsafeQuery.put(ATTR_VALUE_UNSAFE + "." + entry.getKey(), entry.getValue());
-        }
+        Document unsafeQuery = addUnsafePrefix(query);
+        if (unsafeQuery == null)
+            throw new UnsupportedOperationException("query is not supported: " + query);
 
-        if (unsafeQuery.isEmpty())
-            unsafeQuery.append(ATTR_VALUE_UNSAFE, new Document("$exists", true));
+        // a delta may match with its unchanged fields, so all deltas are checked on the client
+        if (txDB.deltaUnsafe && QueryMatcher.isSupported(query))
+            unsafeQuery = new Document("$or", Arrays.asList(unsafeQuery, new Document(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_DELTA, new Document("$exists", true))));
 
-        return unsafeQuery;
+        // negations such as $ne and $nor also match documents without unsafe versions
+        return unsafeQuery.append(ATTR_VALUE_UNSAFE, new Document("$exists", true));
     }
 
     List<Document> select(LRCTx tx, Document query, int limit, boolean forUpdate) throws TxRollback {
         List<Document> results = new ArrayList<>();
+        try (SelectCursor cursor = new SelectCursor(tx, query, null, null, 0, limit, 0, forUpdate)) {
+            while (cursor.hasNext())
+                results.add(cursor.next());
+        }
+        return results;
+    }
+
+    private static boolean isKeyOnly(Document query) {
+        return query.size() == 1 && query.containsKey(ATTR_ID)//
+                && (!(query.get(ATTR_ID) instanceof Document) || !query.get(ATTR_ID).toString().contains("$"));
+    }
 
-        if (query.size() == 1 && query.containsKey(ATTR_ID)//
-                && (!(query.get(ATTR_ID) instanceof Document) || !query.get(ATTR_ID).toString().contains("$"))) {
-            //keyonly
-            Document ret = (Document) findOne(tx, query.get(ATTR_ID), forUpdate);
-            if (ret != null)
-                results.add(ret);
-            return results;
+    // returns null if the projection can not be pushed down. otherwise, includes unsafe versions of the projected fields,
+    // fields in the query to classify documents on the client, and control fields
+    static Document createServerProjection(Document query, Document projection, Document sort) {
+        Document ret = new Document();
+        for (Map.Entry<String, Object> entry : projection.entrySet()) {
+            if (entry.getKey().equals(ATTR_ID))
+                continue;
+            if (!isIncluded(entry.getValue()))
+                return null;
+            ret.append(entry.getKey(), 1).append(ATTR_VALUE_UNSAFE + "." + entry.getKey(), 1);
         }
+        if (ret.isEmpty())
+            return null;
+
+        Set<String> fields = getQueryFields(query, new HashSet<String>());
+        if (sort != null)
+            fields.addAll(sort.keySet());
+        fields.remove(ATTR_ID);
+        for (String field : fields)
+            ret.append(field, 1).append(ATTR_VALUE_UNSAFE + "." + field, 1);
+
+        return ret.append(ATTR_ID, 1)//
+                .append(ATTR_VALUE_TXID, 1)//
+                .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, 1)//
+                .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_INSERT, 1)//
+                .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_REMOVE, 1)//
+                .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_DELTA, 1);
+    }
 
-        Document unsafeQuery = createUnsafeQuery(query);
-        if (query.containsKey(ATTR_ID))
-            unsafeQuery.append(ATTR_ID, query.get(ATTR_ID));
-        Iterator<Document> unsafeCursor = baseCol.find(unsafeQuery).iterator();
+    private static Set<String> getQueryFields(Document query, Set<String> fields) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            if (entry.getKey().equals("$and") || entry.getKey().equals("$or") || entry.getKey().equals("$nor")) {
+                for (Object clause : (List<?>) entry.getValue())
+                    getQueryFields((Document) clause, fields);
+            } else if (!entry.getKey().startsWith("$") && !entry.getKey().equals(ATTR_ID)) {
+                fields.add(entry.getKey());
+            }
+        }
+        return fields;
+    }
 
-        Set<Object> localResultKeys = new HashSet<>();
-        List<Document> localResults = new ArrayList<>();
+    private static boolean isIncluded(Object value) {
+        if (value instanceof Boolean)
+            return (Boolean) value;
+        if (value instanceof Number)
+            return ((Number) value).intValue() != 0;
+        throw new UnsupportedOperationException("projection operator is not supported: " + value);
+    }
 
-        while (unsafeCursor.hasNext()) {
-            Document sd2v = (Document) unsafeCursor.next();
-            if (hasLocalUnsafe(tx, sd2v)) {
-                localResults.add(clean(getUnsafeVersion(sd2v)));
-                localResultKeys.add(sd2v.get(ATTR_ID));
+    // applies an inclusion or exclusion projection of top-level or dotted fields
+    static Document project(Document doc, Document projection) {
+        boolean inclusion = false;
+        for (Map.Entry<String, Object> entry : projection.entrySet())
+            if (!entry.getKey().equals(ATTR_ID) && isIncluded(entry.getValue()))
+                inclusion = true;
+
+        Object id = projection.get(ATTR_ID);
+        boolean includeId = id == null || isIncluded(id);
+
+        Document ret;
+        if (inclusion) {
+            ret = new Document();
+            if (includeId && doc.containsKey(ATTR_ID))
+                ret.put(ATTR_ID, doc.get(ATTR_ID));
+            for (Map.Entry<String, Object> entry : projection.entrySet())
+                if (!entry.getKey().equals(ATTR_ID) && QueryMatcher.exists(doc, entry.getKey()))
+                    putPath(ret, entry.getKey(), QueryMatcher.get(doc, entry.getKey()));
+        } else {
+            ret = new Document(doc);
+            for (Map.Entry<String, Object> entry : projection.entrySet())
+                if (!entry.getKey().equals(ATTR_ID))
+                    removePath(ret, entry.getKey());
+            if (!includeId)
+                ret.remove(ATTR_ID);
+        }
+        return ret;
+    }
+
+    private static void putPath(Document doc, String path, Object value) {
+        String[] fields = path.split("\\.");
+        Document current = doc;
+        for (int i = 0; i < fields.length - 1; ++i) {
+            Object child = current.get(fields[i]);
+            if (!(child instanceof Document)) {
+                child = new Document();
+                current.put(fields[i], child);
+            }
+            current = (Document) child;
+        }
+        current.put(fields[fields.length - 1], value);
+    }
+
+    private static void removePath(Document doc, String path) {
+        String[] fields = path.split("\\.");
+        Document current = doc;
+        for (int i = 0; i < fields.length - 1; ++i) {
+            Object child = current.get(fields[i]);
+            if (!(child instanceof Document))
+                return;
+            // nested documents are copied so that cached documents are not changed
+            child = new Document((Document) child);
+            current.put(fields[i], child);
+            current = (Document) child;
+        }
+        current.remove(fields[fields.length - 1]);
+    }
+
+    // merges the unsafe cursor and the safe cursor incrementally. documents are repaired as they are read.
+    // without sort, documents whose unsafe versions match the query are returned first, then the safe ones that were not returned yet.
+    // with sort, the unsafe documents are sorted on the client and merged into the safe documents sorted by the server.
+    class SelectCursor implements MongoCursor<Document> {
+        static final int PHASE_INIT = 0;
+        static final int PHASE_UNSAFE = 1;
+        static final int PHASE_SAFE = 2;
+        static final int PHASE_COMBINED = 3;
+        static final int PHASE_DONE = 4;
+
+        final LRCTx tx;
+        // a read-only transaction is not shared, so only this cursor is guarded
+        final Object lock;
+        final Document query;
+        final Document projection;
+        // null if full documents are fetched. partial documents are never cached
+        final Document serverProjection;
+        final Document sort;
+        final Comparator<Document> comparator;
+        final int skip;
+        final int limit;
+        final int batchSize;
+        final boolean forUpdate;
+        // keys of documents returned from the unsafe cursor
+        final Set<Object> unsafeKeys = new HashSet<>();
+        final ArrayDeque<Document> buffer = new ArrayDeque<>();
+        // with sort, documents from the server in order and the other documents to be merged into them
+        final ArrayDeque<Document> orderedBuffer = new ArrayDeque<>();
+        final PriorityQueue<Document> pending;
+        MongoCursor<Document> cursor;
+        // with sort, the last document merged in order
+        Document lastMerged;
+        int phase = PHASE_INIT;
+        // true if own writes were returned from the dirty map instead of the server
+        boolean localOverlaid = false;
+        int numOfSkipped = 0;
+        int numOfResults = 0;
+
+        SelectCursor(LRCTx tx, Document query, Document projection, Document sort, int skip, int limit, int batchSize, boolean forUpdate) {
+            this.tx = tx;
+            this.lock = tx.readOnly ? this : tx;
+            this.query = query;
+            this.projection = projection;
+            // documents read for update are cached, so they are projected on the client
+            this.serverProjection = projection == null || forUpdate ? null : createServerProjection(query, projection, sort);
+            this.sort = sort == null || sort.isEmpty() ? null : sort;
+            this.comparator = this.sort == null ? null : QueryMatcher.createComparator(this.sort);
+            this.pending = this.sort == null ? null : new PriorityQueue<>(11, comparator);
+            this.skip = skip;
+            this.limit = limit;
+            if (batchSize > 0)
+                this.batchSize = batchSize;
+            else if (limit > 0)
+                this.batchSize = Math.min(limit, TX_STATE_BATCH_SIZE);
+            else
+                this.batchSize = TX_STATE_BATCH_SIZE;
+            this.forUpdate = forUpdate;
+        }
+
+        // returns a document whose position is not decided by the server
+        private void emit(Document doc) {
+            if (doc == null)
+                return;
+            if (sort == null)
+                output(doc);
+            else
+                pending.add(doc);
+        }
+
+        // returns a document in the order of the server
+        private void emitOrdered(Document doc) {
+            if (doc == null)
+                return;
+            if (sort == null)
+                output(doc);
+            else
+                orderedBuffer.add(doc);
+        }
+
+        private void output(Document doc) {
+            if (numOfSkipped < skip) {
+                ++numOfSkipped;
+                return;
+            }
+            if (limit > 0 && numOfResults >= limit)
+                return;
+            buffer.add(projection == null ? doc : project(doc, projection));
+            ++numOfResults;
+        }
+
+        private void merge() throws TxRollback {
+            if (orderedBuffer.isEmpty() && cursor != null) {
+                if (cursor.hasNext()) {
+                    fillSafe(nextBatch(cursor, batchSize));
+                    return;
+                }
+                cursor.close();
+                cursor = null;
+            }
+
+            Document next;
+            if (orderedBuffer.isEmpty())
+                next = pending.poll();
+            else if (!pending.isEmpty() && comparator.compare(pending.peek(), orderedBuffer.peek()) <= 0)
+                next = pending.poll();
+            else
+                next = orderedBuffer.poll();
+
+            if (next == null) {
+                closeCursor();
             } else {
-                if (readRepair(tx, sd2v, forUpdate) == null)
-                    tx.putCache(this, sd2v.get(ATTR_ID), sd2v, forUpdate);
+                lastMerged = next;
+                output(next);
             }
         }
 
-        boolean first = true;
-        boolean again = false;
-        while (true) {
-            Iterator<Document> safeCursor = baseCol.find(query).limit(limit).iterator();
-            while (safeCursor.hasNext()) {
-                Document sd2v = (Document) safeCursor.next();
-                if (hasLocalUnsafe(tx, sd2v)) {
+        private void fillIfNecessary() throws TxRollback {
+            try {
+                while (buffer.isEmpty() && phase != PHASE_DONE) {
+                    if (limit > 0 && numOfResults >= limit) {
+                        closeCursor();
+                        break;
+                    }
+
+                    switch (phase) {
+                    case PHASE_INIT:
+                        if (isKeyOnly(query)) {
+                            output(findOne(tx, query.get(ATTR_ID), forUpdate));
+                            phase = PHASE_DONE;
+                            break;
+                        }
+                        tx.installOnePhaseWriteIfNecessary(LRCTxDBCollection.this);
+
+                        Document unsafeQuery = createUnsafeQuery(query);
+                        if (overlayLocal()) {
+                            // own writes were matched on the client. the server returns only unsafe versions of others
+                            unsafeQuery.append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, new Document("$ne", tx.txId));
+                        }
+                        if (txDB.combinedQuery && sort == null && QueryMatcher.isSupported(query)) {
+                            cursor = find(new Document("$or", Arrays.asList(query, unsafeQuery))).batchSize(batchSize).iterator();
+                            phase = PHASE_COMBINED;
+                        } else {
+                            cursor = find(unsafeQuery).batchSize(batchSize).iterator();
+                            phase = PHASE_UNSAFE;
+                        }
+                        break;
+                    case PHASE_UNSAFE:
+                        if (cursor.hasNext()) {
+                            fillUnsafe(nextBatch(cursor, batchSize));
+                        } else {
+                            cursor.close();
+                            if (sort == null) {
+                                cursor = find(query).batchSize(batchSize).iterator();
+                            } else {
+                                // top-N reads N plus documents that are skipped because of their unsafe versions
+                                int safeBatchSize = limit > 0 ? skip + limit + unsafeKeys.size() : batchSize;
+                                cursor = find(query).sort(sort).batchSize(safeBatchSize).iterator();
+                            }
+                            phase = PHASE_SAFE;
+                        }
+                        break;
+                    case PHASE_SAFE:
+                        if (sort != null)
+                            merge();
+                        else if (cursor.hasNext())
+                            fillSafe(nextBatch(cursor, batchSize));
+                        else
+                            closeCursor();
+                        break;
+                    case PHASE_COMBINED:
+                        if (cursor.hasNext())
+                            fillCombined(nextBatch(cursor, batchSize));
+                        else
+                            closeCursor();
+                        break;
+                    }
+                }
+            } catch (RuntimeException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        // returns false if the query can not be evaluated on the client
+        private boolean overlayLocal() {
+            Map<Object, Document> dirtyMap = tx.dirtyMaps.get(LRCTxDBCollection.this);
+            if (dirtyMap == null || !QueryMatcher.isSupported(query))
+                return false;
 
-                } else if (first && hasCommittedUnsafe(sd2v)) {
-                    again = true;
-                    concreteUnsafe(tx, sd2v, forUpdate);
+            localOverlaid = true;
+            for (Map.Entry<Object, Document> entry : dirtyMap.entrySet()) {
+                Document unsafe = getUnsafeVersion(entry.getValue()).append(ATTR_ID, entry.getKey());
+                if (QueryMatcher.matches(query, unsafe)) {
+                    unsafeKeys.add(entry.getKey());
+                    emit(clean(unsafe));
+                }
+            }
+            return true;
+        }
+
+        private void fillUnsafe(List<Document> batch) throws TxRollback {
+            Map<String, STATE> txStates = resolveTxStates(tx, batch);
+            for (Document sd2v : batch) {
+                if (hasLocalUnsafe(tx, sd2v)) {
+                    if (!unsafeMatches(sd2v))
+                        continue;
+                    unsafeKeys.add(sd2v.get(ATTR_ID));
+                    emit(clean(getUnsafeVersion(sd2v).append(ATTR_ID, sd2v.get(ATTR_ID))));
+                } else if (hasCommittedUnsafe(sd2v, txStates)) {
+                    concrete(sd2v);
+                    if (!unsafeMatches(sd2v))
+                        continue;
+                    unsafeKeys.add(sd2v.get(ATTR_ID));
+                    emit(clean(getUnsafeVersion(sd2v).append(ATTR_ID, sd2v.get(ATTR_ID))));
                 } else {
-                    tx.putCache(this, sd2v.get(ATTR_ID), sd2v, forUpdate);
-                    if (!again) {
-                        if (!localResultKeys.contains(sd2v.get(ATTR_ID)))
-                            results.add(clean(getSafeVersion(sd2v)));
+                    readRepair(tx, sd2v, forUpdate, txStates);
+                }
+            }
+        }
+
+        // the server matched the unsafe version unless it is a delta
+        private boolean unsafeMatches(Document sd2v) {
+            if (!isDelta(sd2v) || !QueryMatcher.isSupported(query))
+                return true;
+            return QueryMatcher.matches(query, getUnsafeVersion(sd2v).append(ATTR_ID, sd2v.get(ATTR_ID)));
+        }
+
+        private void fillSafe(List<Document> batch) throws TxRollback {
+            Map<String, STATE> txStates = resolveTxStates(tx, batch);
+            for (Document sd2v : batch) {
+                Object key = sd2v.get(ATTR_ID);
+                if (unsafeKeys.contains(key))
+                    continue;
+                if (hasLocalUnsafe(tx, sd2v)) {
+                    // a lock of findOneForUpdate is not found by the unsafe query, but its version is the safe one that matched
+                    if (!localOverlaid && isEmptyDelta(sd2v))
+                        emitOrdered(clean(getSafeVersion(sd2v)));
+                    continue;
+                }
+
+                if (hasCommittedUnsafe(sd2v, txStates)) {
+                    // committed after the unsafe cursor passed it. the latest version is returned only if it matches
+                    concrete(sd2v);
+                    emitLatest(key, sd2v);
+                    continue;
+                }
+
+                cache(key, sd2v);
+                emitOrdered(clean(getSafeVersion(sd2v)));
+            }
+        }
+
+        // classifies documents that match the safe query or the unsafe query on the client
+        private void fillCombined(List<Document> batch) throws TxRollback {
+            Map<String, STATE> txStates = resolveTxStates(tx, batch);
+            for (Document sd2v : batch) {
+                Object key = sd2v.get(ATTR_ID);
+                if (hasUnsafe(sd2v)) {
+                    Document unsafe = getUnsafeVersion(sd2v).append(ATTR_ID, key);
+                    boolean unsafeMatches = QueryMatcher.matches(query, unsafe);
+                    if (hasLocalUnsafe(tx, sd2v)) {
+                        if (unsafeMatches && !localOverlaid)
+                            emit(clean(unsafe));
+                        continue;
+                    } else if (hasCommittedUnsafe(sd2v, txStates)) {
+                        concrete(sd2v);
+                        if (unsafeMatches)
+                            emit(clean(unsafe));
+                        continue;
+                    } else if (unsafeMatches) {
+                        // the conflicting transaction finished while waiting for it
+                        if (!sd2v.equals(readRepair(tx, sd2v, forUpdate, txStates))) {
+                            emitLatest(key, null);
+                            continue;
+                        }
                     }
                 }
+
+                if (QueryMatcher.matches(query, sd2v)) {
+                    cache(key, sd2v);
+                    emitOrdered(clean(getSafeVersion(sd2v)));
+                }
             }
-            if (!again)
-                break;
-            first = false;
-            again = false;
-            results.clear();
         }
-        results.addAll(localResults);
-        return results;
+
+        // with sort, the latest version can not be merged if it sorts before documents already returned. the safe version at
+        // the position of the server is returned instead, which was the committed version when the unsafe cursor passed it
+        private void emitLatest(Object key, Document ordered) {
+            Document sd2v = find(new Document("$and", Arrays.asList(query, new Document(ATTR_ID, key)))).first();
+            if (sd2v == null || hasLocalUnsafe(tx, sd2v))
+                return;
+            Document latest = clean(getSafeVersion(sd2v));
+            if (ordered != null && lastMerged != null && comparator.compare(latest, lastMerged) < 0) {
+                emitOrdered(clean(getSafeVersion(ordered)));
+                return;
+            }
+            cache(key, sd2v);
+            emit(latest);
+        }
+
+        private FindIterable<Document> find(Document filter) {
+            FindIterable<Document> ret = baseCol.find(filter);
+            if (serverProjection != null)
+                ret = ret.projection(serverProjection);
+            return ret;
+        }
+
+        private void cache(Object key, Document sd2v) {
+            if (serverProjection == null)
+                tx.putCache(LRCTxDBCollection.this, key, sd2v, forUpdate);
+        }
+
+        // a partial document must not be concreted because it would overwrite the other fields
+        private void concrete(Document sd2v) {
+            if (serverProjection == null) {
+                concreteUnsafe(tx, sd2v, forUpdate);
+                return;
+            }
+            Document fullSd2v = baseCol.find(createUnsafeTxQuery(getUnsafeTxId(sd2v), sd2v.get(ATTR_ID))).first();
+            if (fullSd2v != null)
+                concreteUnsafe(tx, fullSd2v, forUpdate);
+        }
+
+        private void closeCursor() {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+            phase = PHASE_DONE;
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                closeCursor();
+                buffer.clear();
+                orderedBuffer.clear();
+                if (pending != null)
+                    pending.clear();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            synchronized (lock) {
+                fillIfNecessary();
+                return !buffer.isEmpty();
+            }
+        }
+
+        @Override
+        public Document next() {
+            synchronized (lock) {
+                fillIfNecessary();
+                return buffer.poll();
+            }
+        }
+
+        @Override
+        public Document tryNext() {
+            return next();
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     static Document clean(Document v) {
@@ -279,32 +860,128 @@ public class LRCTxDBCollection implements TxCollection, Constants {
 
     private Document findOne(Tx tx_, Object key, boolean forUpdate) throws TxRollback {
         LRCTx tx = (LRCTx) tx_;
+        if (tx.readOnly)
+            return readOne(tx, key, forUpdate);
         synchronized (tx) {
+            return readOne(tx, key, forUpdate);
+        }
+    }
+
+    private Document readOne(LRCTx tx, Object key, boolean forUpdate) throws TxRollback {
+        Document dirtyValue = tx.getDirty(this, key);
+        if (dirtyValue != null) {
+            if (hasUnsafe(dirtyValue)) {
+                Document ret = getUnsafeVersion(dirtyValue);
+                return clean(ret);
+            } else {
+                Document ret = new Document(dirtyValue);
+                return clean(ret);
+            }
+        }
+
+        // a read for update pins the latest version in the server
+        DocumentCache cache = forUpdate ? null : documentCache;
+        long stamp = 0L;
+        if (cache != null) {
+            Document cachedSd2v = cache.get(key);
+            if (cachedSd2v != null) {
+                tx.putCache(this, key, cachedSd2v, false);
+                return clean(getSafeVersion(cachedSd2v));
+            }
+            stamp = cache.getStamp(key);
+        }
+
+        Iterator<Document> itrSd2v = baseCol.find(new Document(ATTR_ID, key)).iterator();
+        if (!itrSd2v.hasNext())
+            return null;
+
+        Document sd2v = itrSd2v.next();
+        tx.putCache(this, key, sd2v, forUpdate);
+        if (cache != null)
+            cache.put(key, sd2v, stamp);
+
+        return clean(readRepair(tx, sd2v, forUpdate));
+    }
+
+    public Document findOne(Tx tx, Object key) throws TxRollback {
+        return findOne(tx, key, false);
+    }
+
+    @Override
+    public List<Document> findByIds(Tx tx_, Collection<?> ids, boolean forUpdate) throws TxRollback {
+        LRCTx tx = (LRCTx) tx_;
+        if (forUpdate)
+            tx.checkWritable();
+        if (tx.readOnly)
+            return readByIds(tx, ids, forUpdate);
+        synchronized (tx) {
+            return readByIds(tx, ids, forUpdate);
+        }
+    }
+
+    private List<Document> readByIds(LRCTx tx, Collection<?> ids, boolean forUpdate) throws TxRollback {
+        DocumentCache cache = forUpdate ? null : documentCache;
+        Map<Object, Document> values = new HashMap<>();
+        Set<Object> remoteKeys = new LinkedHashSet<>();
+        Map<Object, Long> stamps = new HashMap<>();
+        for (Object key : ids) {
+            if (values.containsKey(key) || remoteKeys.contains(key))
+                continue;
+
             Document dirtyValue = tx.getDirty(this, key);
             if (dirtyValue != null) {
-                Document unsafe = (Document) dirtyValue.get(ATTR_VALUE_UNSAFE);
-                if (unsafe != null) {
-                    Document ret = new Document(unsafe);
-                    return clean(ret);
-                } else {
-                    Document ret = new Document(dirtyValue);
-                    return clean(ret);
+                values.put(key, clean(hasUnsafe(dirtyValue) ? getUnsafeVersion(dirtyValue) : new Document(dirtyValue)));
+                continue;
+            }
+
+            // a document read by this transaction is served from its cache. a read for update needs a pinned one
+            Document cachedSd2v = tx.getCache(this, key);
+            if (cachedSd2v != null && !hasUnsafe(cachedSd2v) && (!forUpdate || tx.isPinned(this, key))) {
+                values.put(key, clean(new Document(cachedSd2v)));
+                continue;
+            }
+
+            if (cache != null) {
+                Document sharedSd2v = cache.get(key);
+                if (sharedSd2v != null) {
+                    tx.putCache(this, key, sharedSd2v, false);
+                    values.put(key, clean(getSafeVersion(sharedSd2v)));
+                    continue;
                 }
+                stamps.put(key, cache.getStamp(key));
             }
 
-            Iterator<Document> itrSd2v = baseCol.find(new Document(ATTR_ID, key)).iterator();
-            if (!itrSd2v.hasNext())
-                return null;
+            remoteKeys.add(key);
+        }
 
-            Document sd2v = itrSd2v.next();
-            tx.putCache(this, key, sd2v, forUpdate);
+        if (!remoteKeys.isEmpty()) {
+            try (MongoCursor<Document> cursor = baseCol.find(new Document(ATTR_ID, new Document("$in", new ArrayList<>(remoteKeys)))).iterator()) {
+                while (cursor.hasNext()) {
+                    List<Document> batch = nextBatch(cursor, TX_STATE_BATCH_SIZE);
+                    Map<String, STATE> txStates = resolveTxStates(tx, batch);
+                    for (Document sd2v : batch) {
+                        Object key = sd2v.get(ATTR_ID);
+                        tx.putCache(this, key, sd2v, forUpdate);
+                        if (cache != null && stamps.containsKey(key))
+                            cache.put(key, sd2v, stamps.get(key));
+                        values.put(key, clean(readRepair(tx, sd2v, forUpdate, txStates)));
+                    }
+                }
+            }
+        }
 
-            return clean(readRepair(tx, sd2v, forUpdate));
+        List<Document> ret = new ArrayList<>(ids.size());
+        for (Object key : ids) {
+            Document value = values.get(key);
+            if (value != null)
+                ret.add(value);
         }
+        return ret;
     }
 
-    public Document findOne(Tx tx, Object key) throws TxRollback {
-        return findOne(tx, key, false);
+    @Override
+    public List<Document> findByIds(Tx tx, Collection<?> ids) throws TxRollback {
+        return findByIds(tx, ids, false);
     }
 
     private String getUnsafeTxId(Document sd2v) {
@@ -327,13 +1004,39 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         return tx.txId.equals(unsafeTxId);
     }
 
+    static List<Document> nextBatch(Iterator<Document> cursor, int batchSize) {
+        List<Document> batch = new ArrayList<>();
+        while (batch.size() < batchSize && cursor.hasNext())
+            batch.add(cursor.next());
+        return batch;
+    }
+
+    // resolves states of transactions that wrote unsafe versions with one query
+    Map<String, STATE> resolveTxStates(LRCTx tx, List<Document> sd2vs) {
+        Set<String> unsafeTxIds = new HashSet<>();
+        for (Document sd2v : sd2vs) {
+            String unsafeTxId = getUnsafeTxId(sd2v);
+            if (unsafeTxId != null && (tx == null || !tx.txId.equals(unsafeTxId)))
+                unsafeTxIds.add(unsafeTxId);
+        }
+        if (unsafeTxIds.isEmpty())
+            return Collections.emptyMap();
+        return txDB.getTxStates(unsafeTxIds);
+    }
+
     private boolean hasCommittedUnsafe(Document sd2v) {
+        return hasCommittedUnsafe(sd2v, null);
+    }
+
+    private boolean hasCommittedUnsafe(Document sd2v, Map<String, STATE> txStates) {
         Document unsafe = (Document) sd2v.get(ATTR_VALUE_UNSAFE);
         if (unsafe == null)
             return false;
 
         String unsafeTxId = unsafe.getString(ATTR_VALUE_UNSAFE_TXID);
-        STATE unsafeTxState = txDB.getTxState(unsafeTxId);
+        STATE unsafeTxState = txStates == null ? null : txStates.get(unsafeTxId);
+        if (unsafeTxState == null)
+            unsafeTxState = txDB.getTxState(unsafeTxId);
 
         if (unsafeTxState == STATE.COMMITTED)
             return true;
@@ -355,13 +1058,20 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         if (((Document) sd2v.get(ATTR_VALUE_UNSAFE)).containsKey(ATTR_VALUE_UNSAFE_REMOVE)) {
             if (baseCol.deleteOne(query).getDeletedCount() == 1L && tx != null)
                 tx.putCache(this, sd2v.get(ATTR_ID), null, forUpdate);
+        } else if (isEmptyDelta(sd2v)) {
+            Document newSafe = getUnsafeVersion(sd2v);
+            if (baseCol.updateOne(query, UNSET_UNSAFE).getModifiedCount() == 1L && tx != null)
+                tx.putCache(this, sd2v.get(ATTR_ID), newSafe, forUpdate);
         } else {
-            Document newSafe = new Document(unsafe);
+            Document newSafe = getUnsafeVersion(sd2v);
             clean(newSafe);
             newSafe.append(ATTR_VALUE_TXID, unsafeTxId);
-            if (baseCol.replaceOne(query, newSafe).getModifiedCount() == 1L && tx != null)
+            UpdateResult ret = isDelta(sd2v) ? baseCol.updateOne(query, createDeltaCommit(unsafe)) : baseCol.replaceOne(query, newSafe);
+            if (ret.getModifiedCount() == 1L && tx != null)
                 tx.putCache(this, sd2v.get(ATTR_ID), newSafe, forUpdate);
         }
+        // the cached version may be older than the committed one of another client
+        invalidateCache(sd2v.get(ATTR_ID));
     }
 
     private Document getSafeVersion(Document sd2v) {
@@ -369,23 +1079,112 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         return ret;
     }
 
-    private Document getUnsafeVersion(Document sd2v) {
-        Document ret = new Document((Document) sd2v.get(ATTR_VALUE_UNSAFE));
+    // a delta is merged into the safe version of the same document
+    static Document getUnsafeVersion(Document sd2v) {
+        Document unsafe = (Document) sd2v.get(ATTR_VALUE_UNSAFE);
+        if (!unsafe.containsKey(ATTR_VALUE_UNSAFE_DELTA))
+            return new Document(unsafe);
+
+        Document ret = new Document(sd2v);
+        ret.remove(ATTR_VALUE_UNSAFE);
+        // a lock is committed without changing _tx of the safe version
+        if (isEmptyDelta(sd2v))
+            return ret;
+        for (Object field : (List<?>) unsafe.get(ATTR_VALUE_UNSAFE_DELTA))
+            ret.remove(field);
+        for (Map.Entry<String, Object> entry : unsafe.entrySet())
+            if (!entry.getKey().equals(ATTR_VALUE_UNSAFE_DELTA))
+                ret.put(entry.getKey(), entry.getValue());
         return ret;
     }
 
+    static boolean isDelta(Document sd2v) {
+        Document unsafe = (Document) sd2v.get(ATTR_VALUE_UNSAFE);
+        return unsafe != null && unsafe.containsKey(ATTR_VALUE_UNSAFE_DELTA);
+    }
+
+    // an empty delta is a lock of findOneForUpdate. its unsafe version is the safe version
+    static boolean isEmptyDelta(Document sd2v) {
+        if (!isDelta(sd2v))
+            return false;
+        Document unsafe = (Document) sd2v.get(ATTR_VALUE_UNSAFE);
+        return unsafe.size() == 2 && unsafe.containsKey(ATTR_VALUE_UNSAFE_TXID) && ((List<?>) unsafe.get(ATTR_VALUE_UNSAFE_DELTA)).isEmpty();
+    }
+
+    // returns the unsafe version of newValue written over the safe version
+    private Document createUnsafe(Document safe, Document newValue, String txId) {
+        Document delta = txDB.deltaUnsafe ? createDelta(safe, newValue, txId) : null;
+        if (delta == null)
+            return new Document(newValue).append(ATTR_VALUE_UNSAFE_TXID, txId);
+        return delta;
+    }
+
+    // returns null if newValue can not be a delta. inserts and removals are not deltas
+    static Document createDelta(Document safe, Document newValue, String txId) {
+        Document base = clean(new Document(safe));
+        if (base == null || newValue.containsKey(ATTR_VALUE_UNSAFE_INSERT) || newValue.containsKey(ATTR_VALUE_UNSAFE_REMOVE))
+            return null;
+
+        Document delta = new Document();
+        for (Map.Entry<String, Object> entry : newValue.entrySet())
+            if (!base.containsKey(entry.getKey()) || !Objects.equals(base.get(entry.getKey()), entry.getValue()))
+                delta.put(entry.getKey(), entry.getValue());
+        List<String> removed = new ArrayList<>();
+        for (String field : base.keySet())
+            if (!field.equals(ATTR_ID) && !newValue.containsKey(field))
+                removed.add(field);
+        return delta.append(ATTR_VALUE_UNSAFE_DELTA, removed).append(ATTR_VALUE_UNSAFE_TXID, txId);
+    }
+
+    // applies a delta to the safe version in the server instead of replacing the document
+    static Document createDeltaCommit(Document delta) {
+        Document set = new Document();
+        Document unset = new Document(ATTR_VALUE_UNSAFE, "");
+        for (Map.Entry<String, Object> entry : delta.entrySet()) {
+            if (entry.getKey().equals(ATTR_VALUE_UNSAFE_DELTA)) {
+                for (Object field : (List<?>) entry.getValue())
+                    unset.append((String) field, "");
+            } else {
+                set.append(entry.getKey(), entry.getValue());
+            }
+        }
+        return new Document("$set", set).append("$unset", unset);
+    }
+
+    // the safe version in the server is kept, so only the unsafe version is sent in delta mode
+    private UpdateResult writeUnsafe(Document query, Document newSd2v) {
+        if (txDB.deltaUnsafe)
+            return baseCol.updateOne(query, new Document("$set", new Document(ATTR_VALUE_UNSAFE, newSd2v.get(ATTR_VALUE_UNSAFE))));
+        return baseCol.replaceOne(query, newSd2v);
+    }
+
     Document readRepair(LRCTx tx, Document sd2v, boolean forUpdate) throws TxRollback {
+        return readRepair(tx, sd2v, forUpdate, null);
+    }
+
+    Document readRepair(LRCTx tx, Document sd2v, boolean forUpdate, Map<String, STATE> txStates) throws TxRollback {
         if (sd2v == null)
             return null;
         if (tx != null && hasLocalUnsafe(tx, sd2v)) {
             return getUnsafeVersion(sd2v);
-        } else if (hasCommittedUnsafe(sd2v)) {
+        } else if (hasCommittedUnsafe(sd2v, txStates)) {
             concreteUnsafe(tx, sd2v, forUpdate);
             return getUnsafeVersion(sd2v);
         } else if (hasUnsafe(sd2v)) {
-            if (txDB.abort(getUnsafeTxId(sd2v))) {
+            // a read-only transaction reads the safe version without aborting the writer
+            if (tx != null && tx.readOnly)
+                return getSafeVersion(sd2v);
+            String unsafeTxId = getUnsafeTxId(sd2v);
+            if (txDB.abort(unsafeTxId)) {
                 return getSafeVersion(sd2v);
             } else if (forUpdate) {
+                if (txDB.waitForConflict(unsafeTxId)) {
+                    Object key = sd2v.get(ATTR_ID);
+                    Document latestSd2v = baseCol.find(new Document(ATTR_ID, key)).first();
+                    if (tx != null)
+                        tx.putCache(this, key, latestSd2v, forUpdate);
+                    return readRepair(tx, latestSd2v, forUpdate, null);
+                }
                 if (tx != null)
                     tx.rollback();
                 throw new TxRollback("conflict. col=" + baseCol.getNamespace() + ", key=" + sd2v.get(ATTR_ID));
@@ -400,6 +1199,7 @@ public class LRCTxDBCollection implements TxCollection, Constants {
     @Override
     public void insertOne(Tx tx_, Document value) throws TxRollback {
         LRCTx tx = (LRCTx) tx_;
+        tx.checkWritable();
         synchronized (tx) {
             Object key = value.get(ATTR_ID);
             if (key == null) {
@@ -415,16 +1215,7 @@ public class LRCTxDBCollection implements TxCollection, Constants {
                 return;
             }
 
-            Document sd2v = new Document()//
-                    .append(ATTR_ID, key)//
-                    .append(ATTR_VALUE_UNSAFE,
-                            new Document(value)//
-                                    .append(ATTR_VALUE_UNSAFE_TXID, tx.txId)//
-                                    .append(ATTR_VALUE_UNSAFE_INSERT, true));
-
-            //copy shared key fields
-            for (String sharedKey : shardKeys)
-                sd2v.append(sharedKey, value.get(sharedKey));
+            Document sd2v = createInsertedSd2v(tx, key, value);
 
             try {
                 tx.insertTxStateIfNecessary();
@@ -439,19 +1230,414 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         }
     }
 
+    private Document createInsertedSd2v(LRCTx tx, Object key, Document value) {
+        Document sd2v = new Document()//
+                .append(ATTR_ID, key)//
+                .append(ATTR_VALUE_UNSAFE,
+                        new Document(value)//
+                                .append(ATTR_VALUE_UNSAFE_TXID, tx.txId)//
+                                .append(ATTR_VALUE_UNSAFE_INSERT, true));
+
+        //copy shared key fields
+        for (String sharedKey : shardKeys)
+            sd2v.append(sharedKey, value.get(sharedKey));
+
+        return sd2v;
+    }
+
+    // inserts unsafe versions with one unordered bulk insert. duplicated keys are resolved with one query like insertOne
+    @Override
+    public void insertMany(Tx tx_, List<Document> values) throws TxRollback {
+        LRCTx tx = (LRCTx) tx_;
+        tx.checkWritable();
+        synchronized (tx) {
+            Map<Object, Document> userValues = new LinkedHashMap<>();
+            Map<Object, Document> sd2vs = new LinkedHashMap<>();
+            for (Document value : values) {
+                Object key = value.get(ATTR_ID);
+                if (key == null) {
+                    key = new ObjectId();
+                    value = new Document(value).append(ATTR_ID, key);
+                }
+
+                if (userValues.containsKey(key)) {
+                    tx.rollback();
+                    throw new TxRollback("insert error: already exist. key=" + key);
+                }
+                userValues.put(key, value);
+
+                // a document known by this transaction is inserted over its version
+                if (tx.getCache(this, key) != null)
+                    continue;
+
+                sd2vs.put(key, createInsertedSd2v(tx, key, value));
+            }
+
+            for (Map.Entry<Object, Document> entry : userValues.entrySet())
+                if (!sd2vs.containsKey(entry.getKey()))
+                    insertOne(tx, entry.getValue());
+
+            if (sd2vs.isEmpty())
+                return;
+
+            tx.insertTxStateIfNecessary();
+
+            List<Object> keys = new ArrayList<>(sd2vs.keySet());
+            Set<Object> duplicatedKeys = new LinkedHashSet<>();
+            MongoBulkWriteException failure = null;
+            try {
+                baseCol.insertMany(new ArrayList<>(sd2vs.values()), new InsertManyOptions().ordered(false));
+            } catch (MongoBulkWriteException ex) {
+                for (BulkWriteError error : ex.getWriteErrors()) {
+                    duplicatedKeys.add(keys.get(error.getIndex()));
+                    if (error.getCode() != 11000)
+                        failure = ex;
+                }
+            }
+
+            // inserted documents are registered before a rollback so that it removes them
+            for (Object key : duplicatedKeys)
+                sd2vs.remove(key);
+            tx.putDirty(this, sd2vs);
+
+            if (failure != null) {
+                tx.rollback();
+                throw new TxRollback("insert error: " + failure.getMessage(), failure);
+            }
+
+            if (duplicatedKeys.isEmpty())
+                return;
+
+            // the second pass reads the existing documents at once and overwrites them like insertOne
+            try (MongoCursor<Document> cursor = baseCol.find(new Document(ATTR_ID, new Document("$in", new ArrayList<>(duplicatedKeys)))).iterator()) {
+                while (cursor.hasNext()) {
+                    Document sd2v = cursor.next();
+                    tx.putCache(this, sd2v.get(ATTR_ID), sd2v, false);
+                }
+            }
+            for (Object key : duplicatedKeys) {
+                // the existing document was removed by another transaction after the insert failed
+                if (updateSD2V(tx, key, null, new Document(userValues.get(key)), new Document(ATTR_ID, key)) != 1) {
+                    tx.rollback();
+                    throw new TxRollback("insert error: duplicated document was removed before it was overwritten. key=" + key);
+                }
+            }
+        }
+    }
+
+    // requests of each key are evaluated on the client against the version that this transaction reads, and the final
+    // versions of all the keys are installed with one bulk write. keys with unsafe versions of others are written one by one.
+    @Override
+    public TxBulkWriteResult bulkWrite(Tx tx_, List<? extends WriteModel<Document>> requests) throws TxRollback {
+        LRCTx tx = (LRCTx) tx_;
+        tx.checkWritable();
+        synchronized (tx) {
+            List<WriteModel<Document>> normalized = new ArrayList<>(requests.size());
+            Map<Object, List<Integer>> requestsOfKeys = new LinkedHashMap<>();
+            // a single request may be deferred for the one-phase commit
+            boolean batchable = requests.size() > 1;
+            for (int i = 0; i < requests.size(); ++i) {
+                WriteModel<Document> request = requests.get(i);
+                if (request instanceof InsertOneModel && ((InsertOneModel<Document>) request).getDocument().get(ATTR_ID) == null)
+                    request = new InsertOneModel<>(new Document(((InsertOneModel<Document>) request).getDocument()).append(ATTR_ID, new ObjectId()));
+                normalized.add(request);
+
+                Object key = getBatchKey(request);
+                if (key == null) {
+                    batchable = false;
+                    continue;
+                }
+                List<Integer> indexes = requestsOfKeys.get(key);
+                if (indexes == null) {
+                    indexes = new ArrayList<>();
+                    requestsOfKeys.put(key, indexes);
+                }
+                indexes.add(i);
+            }
+
+            long[] counts = new long[normalized.size()];
+            if (!batchable) {
+                for (int i = 0; i < normalized.size(); ++i)
+                    counts[i] = writeOne(tx, i, normalized.get(i));
+                return new TxBulkWriteResult(normalized, counts);
+            }
+
+            tx.insertTxStateIfNecessary();
+            prefetch(tx, requestsOfKeys.keySet());
+
+            Set<Object> unbatchedKeys = new LinkedHashSet<>();
+            Map<Object, Document> newSd2vs = new LinkedHashMap<>();
+            Map<Object, WriteModel<Document>> models = new LinkedHashMap<>();
+            for (Map.Entry<Object, List<Integer>> entry : requestsOfKeys.entrySet()) {
+                Object key = entry.getKey();
+                Document sd2v = tx.getCache(this, key);
+                if (sd2v != null && hasUnsafe(sd2v) && !hasLocalUnsafe(tx, sd2v)) {
+                    unbatchedKeys.add(key);
+                    continue;
+                }
+
+                Document latest = sd2v == null ? null : clean(hasUnsafe(sd2v) ? getUnsafeVersion(sd2v) : getSafeVersion(sd2v));
+                if (latest != null && !latest.containsKey(ATTR_ID))
+                    latest.put(ATTR_ID, key);
+                boolean written = false;
+                for (int i : entry.getValue()) {
+                    WriteModel<Document> request = normalized.get(i);
+                    if (request instanceof InsertOneModel) {
+                        if (latest != null) {
+                            tx.rollback();
+                            throw new TxRollback("insert error: already exist. request=" + i + ", key=" + key);
+                        }
+                        latest = new Document(((InsertOneModel<Document>) request).getDocument());
+                    } else if (latest == null || !QueryMatcher.matches(getFilter(request), latest)) {
+                        continue;
+                    } else if (request instanceof DeleteOneModel || request instanceof DeleteManyModel) {
+                        latest = null;
+                    } else {
+                        latest = createNewValue(key, latest, getUpdate(request));
+                    }
+                    counts[i] = 1L;
+                    written = true;
+                }
+                if (!written || (sd2v == null && latest == null))
+                    continue;
+
+                if (sd2v == null) {
+                    Document newSd2v = createInsertedSd2v(tx, key, latest);
+                    newSd2vs.put(key, newSd2v);
+                    models.put(key, new InsertOneModel<>(newSd2v));
+                } else {
+                    Document safe = getSafeVersion(sd2v);
+                    Document unsafe = createUnsafe(safe, latest == null ? new Document(ATTR_VALUE_UNSAFE_REMOVE, true) : latest, tx.txId);
+                    Document query = new Document(ATTR_ID, key);
+                    if (hasLocalUnsafe(tx, sd2v)) {
+                        // keep an insert marker so that rollback removes the inserted document
+                        if (getUnsafeVersion(sd2v).containsKey(ATTR_VALUE_UNSAFE_INSERT))
+                            unsafe.append(ATTR_VALUE_UNSAFE_INSERT, true);
+                        query.append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, tx.txId);
+                    } else {
+                        query.append(ATTR_VALUE_UNSAFE, new Document("$exists", false))//
+                                .append(ATTR_VALUE_TXID, createSafeTxIdCondition(sd2v));
+                    }
+                    newSd2vs.put(key, safe.append(ATTR_VALUE_UNSAFE, unsafe));
+                    models.put(key, new UpdateOneModel<Document>(query, new Document("$set", new Document(ATTR_VALUE_UNSAFE, unsafe))));
+                }
+            }
+
+            if (!models.isEmpty()) {
+                List<Object> keys = new ArrayList<>(models.keySet());
+                Set<Object> failedKeys = new HashSet<>();
+                MongoBulkWriteException failure = null;
+                BulkWriteResult result;
+                try {
+                    result = baseCol.bulkWrite(new ArrayList<>(models.values()), new BulkWriteOptions().ordered(false));
+                } catch (MongoBulkWriteException ex) {
+                    for (BulkWriteError error : ex.getWriteErrors()) {
+                        failedKeys.add(keys.get(error.getIndex()));
+                        if (error.getCode() != 11000)
+                            failure = ex;
+                    }
+                    result = ex.getWriteResult();
+                }
+
+                // updates whose versions were stale matched nothing
+                if (result.getInsertedCount() + result.getMatchedCount() + failedKeys.size() < models.size()) {
+                    List<Object> updatedKeys = new ArrayList<>();
+                    for (Map.Entry<Object, WriteModel<Document>> entry : models.entrySet())
+                        if (entry.getValue() instanceof UpdateOneModel && !failedKeys.contains(entry.getKey()))
+                            updatedKeys.add(entry.getKey());
+                    Set<Object> installedKeys = new HashSet<>();
+                    Document query = new Document(ATTR_ID, new Document("$in", updatedKeys))//
+                            .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, tx.txId);
+                    for (Document installed : baseCol.find(query).projection(PROJECT_KEY))
+                        installedKeys.add(installed.get(ATTR_ID));
+                    for (Object key : updatedKeys)
+                        if (!installedKeys.contains(key))
+                            failedKeys.add(key);
+                }
+
+                // installed documents are registered before a rollback so that it removes them
+                for (Object key : failedKeys)
+                    newSd2vs.remove(key);
+                tx.putDirty(this, newSd2vs);
+
+                if (failure != null) {
+                    tx.rollback();
+                    throw new TxRollback("bulk write error: " + failure.getMessage(), failure);
+                }
+
+                for (Object key : failedKeys) {
+                    // a pinned version must not be changed
+                    if (tx.isPinned(this, key)) {
+                        tx.rollback();
+                        throw new TxRollback("conflict. col=" + baseCol.getNamespace() + ", key=" + key);
+                    }
+                    // the cached version was stale
+                    tx.putCache(this, key, null, false);
+                    unbatchedKeys.add(key);
+                }
+            }
+
+            for (Object key : unbatchedKeys)
+                for (int i : requestsOfKeys.get(key))
+                    counts[i] = writeOne(tx, i, normalized.get(i));
+            return new TxBulkWriteResult(normalized, counts);
+        }
+    }
+
+    // reads documents that this transaction does not know with one query
+    private void prefetch(LRCTx tx, Collection<Object> keys) {
+        List<Object> remoteKeys = new ArrayList<>();
+        for (Object key : keys)
+            if (tx.getCache(this, key) == null)
+                remoteKeys.add(key);
+        if (remoteKeys.isEmpty())
+            return;
+        for (Document sd2v : baseCol.find(new Document(ATTR_ID, new Document("$in", remoteKeys))))
+            tx.putCache(this, sd2v.get(ATTR_ID), sd2v, false);
+    }
+
+    // returns null if the request can not be evaluated on the client
+    @SuppressWarnings("unchecked")
+    private static Object getBatchKey(WriteModel<Document> request) {
+        Bson filter;
+        if (request instanceof InsertOneModel) {
+            return ((InsertOneModel<Document>) request).getDocument().get(ATTR_ID);
+        } else if (request instanceof ReplaceOneModel) {
+            if (((ReplaceOneModel<Document>) request).getOptions().isUpsert())
+                return null;
+            filter = ((ReplaceOneModel<Document>) request).getFilter();
+        } else if (request instanceof UpdateOneModel || request instanceof UpdateManyModel) {
+            UpdateOptions options = request instanceof UpdateOneModel ? ((UpdateOneModel<Document>) request).getOptions() : ((UpdateManyModel<Document>) request).getOptions();
+            Bson update = request instanceof UpdateOneModel ? ((UpdateOneModel<Document>) request).getUpdate() : ((UpdateManyModel<Document>) request).getUpdate();
+            if (options.isUpsert() || !(update instanceof Document))
+                return null;
+            if (UpdateOperators.isUpdate((Document) update) && !UpdateOperators.isSupported((Document) update))
+                return null;
+            filter = request instanceof UpdateOneModel ? ((UpdateOneModel<Document>) request).getFilter() : ((UpdateManyModel<Document>) request).getFilter();
+        } else if (request instanceof DeleteOneModel) {
+            filter = ((DeleteOneModel<Document>) request).getFilter();
+        } else if (request instanceof DeleteManyModel) {
+            filter = ((DeleteManyModel<Document>) request).getFilter();
+        } else {
+            return null;
+        }
+
+        if (!(filter instanceof Document) || !QueryMatcher.isSupported((Document) filter))
+            return null;
+        Object key = ((Document) filter).get(ATTR_ID);
+        if (key instanceof Document)
+            return null;
+        return key;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Document getFilter(WriteModel<Document> request) {
+        Bson filter;
+        if (request instanceof ReplaceOneModel)
+            filter = ((ReplaceOneModel<Document>) request).getFilter();
+        else if (request instanceof UpdateOneModel)
+            filter = ((UpdateOneModel<Document>) request).getFilter();
+        else if (request instanceof UpdateManyModel)
+            filter = ((UpdateManyModel<Document>) request).getFilter();
+        else if (request instanceof DeleteOneModel)
+            filter = ((DeleteOneModel<Document>) request).getFilter();
+        else if (request instanceof DeleteManyModel)
+            filter = ((DeleteManyModel<Document>) request).getFilter();
+        else
+            throw new UnsupportedOperationException("write model is not supported: " + request);
+        return toDocument(filter);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Document getUpdate(WriteModel<Document> request) {
+        if (request instanceof ReplaceOneModel)
+            return ((ReplaceOneModel<Document>) request).getReplacement();
+        else if (request instanceof UpdateOneModel)
+            return toDocument(((UpdateOneModel<Document>) request).getUpdate());
+        else if (request instanceof UpdateManyModel)
+            return toDocument(((UpdateManyModel<Document>) request).getUpdate());
+        else
+            throw new UnsupportedOperationException("write model is not supported: " + request);
+    }
+
+    private static Document toDocument(Bson bson) {
+        if (!(bson instanceof Document))
+            throw new UnsupportedOperationException("currently Document class is supportted for a filter and an update.");
+        return (Document) bson;
+    }
+
+    private static Document createNewValue(Object key, Document prev, Document update) {
+        Document ret = UpdateOperators.isUpdate(update) ? UpdateOperators.apply(prev, update) : new Document(update);
+        if (!ret.containsKey(ATTR_ID))
+            ret.put(ATTR_ID, key);
+        return ret;
+    }
+
+    // an upserted document is counted as a written one
+    private static long getCount(UpdateResult result) {
+        return result.getModifiedCount() + (result.getUpsertedId() == null ? 0L : 1L);
+    }
+
+    // writes a request with the methods of a single operation
+    @SuppressWarnings("unchecked")
+    private long writeOne(LRCTx tx, int index, WriteModel<Document> request) throws TxRollback {
+        try {
+            if (request instanceof InsertOneModel) {
+                insertOne(tx, ((InsertOneModel<Document>) request).getDocument());
+                return 1L;
+            } else if (request instanceof ReplaceOneModel) {
+                return getCount(replaceOne(tx, getFilter(request), getUpdate(request), ((ReplaceOneModel<Document>) request).getOptions()));
+            } else if (request instanceof UpdateOneModel) {
+                return getCount(updateOne(tx, getFilter(request), getUpdate(request), ((UpdateOneModel<Document>) request).getOptions()));
+            } else if (request instanceof UpdateManyModel) {
+                return getCount(updateMany(tx, getFilter(request), getUpdate(request), ((UpdateManyModel<Document>) request).getOptions()));
+            } else if (request instanceof DeleteOneModel) {
+                return deleteOne(tx, getFilter(request)).getDeletedCount();
+            } else if (request instanceof DeleteManyModel) {
+                return deleteMany(tx, getFilter(request)).getDeletedCount();
+            }
+        } catch (TxRollback ex) {
+            throw new TxRollback("bulk write error: request=" + index + ", msg=" + ex.getMessage(), ex);
+        }
+        throw new UnsupportedOperationException("write model is not supported: " + request);
+    }
+
     private int updateSD2V(LRCTx tx, Object key, Document updateQuery, Document newUnsafe, Document userQuery) throws TxRollback {
+        return updateSD2V(tx, key, updateQuery, newUnsafe, userQuery, null);
+    }
+
+    // returns UPSERTED if upsert was inserted with an insert marker because the document did not exist in the server,
+    // MISMATCHED if upsert is given and the visible version does not match userQuery, or 0 if no version is visible
+    private int updateSD2V(LRCTx tx, Object key, Document updateQuery, Document newUnsafe, Document userQuery, Document upsert) throws TxRollback {
+        // an absent document is not deferred because its insert must be atomic
+        if (tx.getOnePhaseWrite(this, key) != null || (upsert == null && tx.canDeferWrite())) {
+            int ret = deferWrite(tx, key, updateQuery, newUnsafe, userQuery);
+            if (ret >= 0)
+                return ret;
+        }
+
         Document cachedSd2v = tx.getCache(this, key);
 
         tx.insertTxStateIfNecessary();
 
+        // update operators are evaluated again against the latest version after a stale version failed
+        final Document givenUnsafe = newUnsafe;
         while (true) {
+            newUnsafe = givenUnsafe;
             String pinnedSafeTxId = null;
             boolean latestCache = false;
             boolean pinned = false;
             if (cachedSd2v == null) {
+                // an upsert inserts first and reads the document only if the key exists
+                if (upsert != null && insertUnsafe(tx, key, upsert))
+                    return UPSERTED;
                 Iterator<Document> itrCachedSd2v = baseCol.find(new Document(ATTR_ID, key)).iterator();
-                if (!itrCachedSd2v.hasNext())
-                    return 0;
+                if (!itrCachedSd2v.hasNext()) {
+                    if (upsert == null)
+                        return 0;
+                    // removed by another transaction after the insert failed
+                    continue;
+                }
                 cachedSd2v = itrCachedSd2v.next();
                 latestCache = true;
             } else if (tx.isPinned(this, key)) {
@@ -461,24 +1647,43 @@ public class LRCTxDBCollection implements TxCollection, Constants {
             }
 
             if (hasLocalUnsafe(tx, cachedSd2v)) {
+                if (upsert != null) {
+                    int matched = matchUpsert(getUnsafeVersion(cachedSd2v), userQuery);
+                    if (matched >= 0)
+                        return matched;
+                }
+
                 Document query = new Document(ATTR_ID, key);
-                for (Map.Entry<String, Object> field : userQuery.entrySet()) {
-                    if (field.getKey().equals(ATTR_ID))
-                        continue;
-                    query.append(ATTR_VALUE_UNSAFE + "." + field.getKey(), field.getValue());
+                Document fieldQuery = new Document(userQuery);
+                fieldQuery.remove(ATTR_ID);
+                fieldQuery.remove(ATTR_VALUE_TXID);
+                if (isDelta(cachedSd2v) && QueryMatcher.isSupported(fieldQuery)) {
+                    // unchanged fields are not in the delta, so the own version is matched on the client
+                    if (!QueryMatcher.matches(fieldQuery, getUnsafeVersion(cachedSd2v)))
+                        return 0;
+                } else if (isEmptyDelta(cachedSd2v)) {
+                    // the own version of a lock is the safe version, so the server matches it
+                    query.putAll(fieldQuery);
+                } else {
+                    for (Map.Entry<String, Object> field : fieldQuery.entrySet())
+                        query.append(ATTR_VALUE_UNSAFE + "." + field.getKey(), field.getValue());
                 }
                 query.append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, tx.txId);
 
                 Document prev = getSafeVersion(cachedSd2v);
                 if (newUnsafe == null)
-                    newUnsafe = generateNewValue(tx, key, prev, updateQuery);
-                if (prev == null && newUnsafe == null)
+                    newUnsafe = generateNewValue(tx, key, getUnsafeVersion(cachedSd2v), updateQuery);
+                if (newUnsafe == null)
                     return 0;
 
                 Document newSd2v = new Document(prev)//
-                        .append(ATTR_VALUE_UNSAFE, new Document(newUnsafe).append(ATTR_VALUE_UNSAFE_TXID, tx.txId));
+                        .append(ATTR_VALUE_UNSAFE, createUnsafe(prev, newUnsafe, tx.txId));
 
-                UpdateResult ret = baseCol.replaceOne(query, newSd2v);
+                // keep an insert marker so that rollback removes the inserted document
+                if (getUnsafeVersion(cachedSd2v).containsKey(ATTR_VALUE_UNSAFE_INSERT))
+                    ((Document) newSd2v.get(ATTR_VALUE_UNSAFE)).append(ATTR_VALUE_UNSAFE_INSERT, true);
+
+                UpdateResult ret = writeUnsafe(query, newSd2v);
                 if (ret.getModifiedCount() == 1L) {
                     tx.putDirty(this, key, newSd2v);
                     return 1;
@@ -495,17 +1700,23 @@ public class LRCTxDBCollection implements TxCollection, Constants {
                 String unsafeTxId = ((Document) cachedSd2v.get(ATTR_VALUE_UNSAFE)).getString(ATTR_VALUE_UNSAFE_TXID);
 
                 Document prev = getUnsafeVersion(cachedSd2v);
+                if (upsert != null) {
+                    int matched = matchUpsert(prev, userQuery);
+                    if (matched >= 0)
+                        return matched;
+                }
                 if (newUnsafe == null)
                     newUnsafe = generateNewValue(tx, key, prev, updateQuery);
-                if (prev == null && newUnsafe == null)
+                if (newUnsafe == null)
                     return 0;
 
                 Document query = new Document(userQuery)//
                         .append(ATTR_ID, key)//
                         .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, unsafeTxId);
 
-                Document newSd2v = new Document(getUnsafeVersion(cachedSd2v))//
-                        .append(ATTR_VALUE_UNSAFE, newUnsafe.append(ATTR_VALUE_UNSAFE_TXID, tx.txId));
+                Document newSafe = getUnsafeVersion(cachedSd2v);
+                Document newSd2v = new Document(newSafe)//
+                        .append(ATTR_VALUE_UNSAFE, createUnsafe(newSafe, newUnsafe, tx.txId));
 
                 UpdateResult ret = baseCol.replaceOne(query, newSd2v);
                 if (ret.getModifiedCount() == 1L) {
@@ -516,6 +1727,8 @@ public class LRCTxDBCollection implements TxCollection, Constants {
                         tx.rollback();
                         throw new TxRollback("conflict. col=" + baseCol.getNamespace() + ", key=" + key);
                     }
+                    // the cached version was stale
+                    invalidateCache(key);
                     cachedSd2v = null;
                     continue;
                 }
@@ -525,6 +1738,18 @@ public class LRCTxDBCollection implements TxCollection, Constants {
                 if (hasUnsafe(cachedSd2v)) {
                     String unsafeTxId = ((Document) cachedSd2v.get(ATTR_VALUE_UNSAFE)).getString(ATTR_VALUE_UNSAFE_TXID);
                     if (!txDB.abort(unsafeTxId)) {
+                        if (txDB.waitForConflict(unsafeTxId)) {
+                            Document latestSd2v = baseCol.find(new Document(ATTR_ID, key)).first();
+                            // a pinned version must not be changed by the finished transaction
+                            if (pinned && (latestSd2v == null || !Objects.equals(pinnedSafeTxId, latestSd2v.getString(ATTR_VALUE_TXID)))) {
+                                tx.rollback();
+                                throw new TxRollback("conflict. col=" + baseCol.getNamespace() + ", key=" + key);
+                            }
+                            if (latestSd2v == null && upsert == null)
+                                return 0;
+                            cachedSd2v = latestSd2v;
+                            continue;
+                        }
                         tx.rollback();
                         throw new TxRollback("conflict. col=" + baseCol.getNamespace() + ", key=" + key);
                     }
@@ -540,14 +1765,15 @@ public class LRCTxDBCollection implements TxCollection, Constants {
                             .append(ATTR_ID, key)//
                             .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, new Document("$not", new Document("$exists", true)));
 
-                    if (pinned && pinnedSafeTxId == null)
-                        query.append(ATTR_VALUE_TXID, new Document("$exists", false));
+                    // the safe version is overwritten by the cached one
+                    if (!query.containsKey(ATTR_VALUE_TXID))
+                        query.append(ATTR_VALUE_TXID, createSafeTxIdCondition(cachedSd2v));
 
                     Document prev = getSafeVersion(cachedSd2v);
                     if (newUnsafe == null)
                         newUnsafe = generateNewValue(tx, key, prev, updateQuery);
 
-                    if (prev == null && newUnsafe == null)
+                    if (newUnsafe == null)
                         return 0;
                 }
 
@@ -558,15 +1784,20 @@ public class LRCTxDBCollection implements TxCollection, Constants {
                 }
 
                 Document prev = getSafeVersion(cachedSd2v);
+                if (upsert != null) {
+                    int matched = matchUpsert(prev, userQuery);
+                    if (matched >= 0)
+                        return matched;
+                }
                 if (newUnsafe == null)
                     newUnsafe = generateNewValue(tx, key, prev, updateQuery);
-                if (prev == null && newUnsafe == null)
+                if (newUnsafe == null)
                     return 0;
 
                 Document newSd2v = prev//
-                        .append(ATTR_VALUE_UNSAFE, newUnsafe.append(ATTR_VALUE_UNSAFE_TXID, tx.txId));
+                        .append(ATTR_VALUE_UNSAFE, createUnsafe(prev, newUnsafe, tx.txId));
 
-                UpdateResult ret = baseCol.replaceOne(query, newSd2v);
+                UpdateResult ret = writeUnsafe(query, newSd2v);
                 if (ret.getModifiedCount() == 1L) {
                     tx.putDirty(this, key, newSd2v);
                     return 1;
@@ -575,6 +1806,8 @@ public class LRCTxDBCollection implements TxCollection, Constants {
                         tx.rollback();
                         throw new TxRollback("conflict. col=" + baseCol.getNamespace() + ", key=" + key);
                     }
+                    // the cached version was stale
+                    invalidateCache(key);
                     cachedSd2v = null;
                     continue;
                 }
@@ -582,6 +1815,117 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         }
     }
 
+    // returns -1 if the visible version is written by an upsert. an unsupported filter is evaluated by the write in the server
+    private static int matchUpsert(Document prev, Document userQuery) {
+        Document visible = clean(new Document(prev));
+        if (visible == null)
+            return 0;
+        Document fieldQuery = new Document(userQuery);
+        fieldQuery.remove(ATTR_ID);
+        fieldQuery.remove(ATTR_VALUE_TXID);
+        if (!fieldQuery.isEmpty() && QueryMatcher.isSupported(fieldQuery) && !QueryMatcher.matches(fieldQuery, visible))
+            return MISMATCHED;
+        return -1;
+    }
+
+    // returns false if another transaction inserted the key
+    private boolean insertUnsafe(LRCTx tx, Object key, Document value) throws TxRollback {
+        Document sd2v = createInsertedSd2v(tx, key, value);
+        try {
+            baseCol.insertOne(sd2v);
+        } catch (MongoWriteException ex) {
+            if (ex.getCode() == 11000)
+                return false;
+            tx.rollback();
+            throw new TxRollback("insert error: " + ex.getMessage(), ex);
+        }
+        tx.putDirty(this, key, sd2v);
+        return true;
+    }
+
+    private static Object createSafeTxIdCondition(Document sd2v) {
+        String safeTxId = sd2v.getString(ATTR_VALUE_TXID);
+        if (safeTxId == null)
+            return new Document("$exists", false);
+        else
+            return safeTxId;
+    }
+
+    // returns -1 if the write can not be deferred
+    private int deferWrite(LRCTx tx, Object key, Document updateQuery, Document newUnsafe, Document userQuery) throws TxRollback {
+        LRCTx.OnePhaseWrite write = tx.getOnePhaseWrite(this, key);
+
+        Document base;
+        Document prev;
+        if (write != null) {
+            base = write.base;
+            prev = clean(new Document(write.unsafe));
+        } else {
+            base = tx.getCache(this, key);
+            if (base == null) {
+                Iterator<Document> itrSd2v = baseCol.find(new Document(ATTR_ID, key)).iterator();
+                if (!itrSd2v.hasNext())
+                    return 0;
+                base = itrSd2v.next();
+                tx.putCache(this, key, base, false);
+            }
+            if (hasUnsafe(base))
+                return -1;
+            prev = clean(getSafeVersion(base));
+        }
+
+        if (prev == null || !matchesByEquality(prev, userQuery))
+            return write == null ? -1 : 0;
+
+        if (newUnsafe == null)
+            newUnsafe = generateNewValue(tx, key, prev, updateQuery);
+        if (newUnsafe == null)
+            return write == null ? -1 : 0;
+
+        if (write == null) {
+            tx.putCache(this, key, base, true);
+            tx.onePhaseWrite = new LRCTx.OnePhaseWrite(this, key, base, new Document(newUnsafe));
+        } else {
+            write.unsafe = new Document(newUnsafe);
+        }
+        return 1;
+    }
+
+    private static boolean matchesByEquality(Document doc, Document userQuery) {
+        for (Map.Entry<String, Object> field : userQuery.entrySet()) {
+            if (field.getKey().startsWith("$") || field.getKey().contains("."))
+                return false;
+            if (field.getValue() instanceof Document && ((Document) field.getValue()).keySet().iterator().hasNext()//
+                    && ((Document) field.getValue()).keySet().iterator().next().startsWith("$"))
+                return false;
+            if (!field.getValue().equals(doc.get(field.getKey())))
+                return false;
+        }
+        return true;
+    }
+
+    void installOnePhaseWrite(LRCTx tx, LRCTx.OnePhaseWrite write) throws TxRollback {
+        tx.putCache(this, write.key, write.base, true);
+        updateSD2V(tx, write.key, null, new Document(write.unsafe), new Document(ATTR_ID, write.key));
+    }
+
+    boolean commitOnePhaseWrite(LRCTx tx, LRCTx.OnePhaseWrite write) {
+        Document query = new Document(ATTR_ID, write.key)//
+                .append(ATTR_VALUE_UNSAFE, new Document("$exists", false))//
+                .append(ATTR_VALUE_TXID, createSafeTxIdCondition(write.base));
+
+        try {
+            if (write.unsafe.containsKey(ATTR_VALUE_UNSAFE_REMOVE))
+                return baseCol.deleteOne(query).getDeletedCount() == 1L;
+
+            Document newSafe = clean(new Document(write.unsafe)).append(ATTR_VALUE_TXID, tx.txId);
+            return baseCol.replaceOne(query, newSafe).getModifiedCount() == 1L;
+        } finally {
+            // after the write so that the previous version read concurrently is not cached. the base may be stale if it failed
+            invalidateCache(write.key);
+        }
+    }
+
     static class DeleteResultImpl extends DeleteResult {
 
         int count;
@@ -604,6 +1948,7 @@ public class LRCTxDBCollection implements TxCollection, Constants {
 
     @Override
     public DeleteResult deleteMany(Tx tx, Document query) throws TxRollback {
+        ((LRCTx) tx).checkWritable();
         synchronized (tx) {
             Object key = query.get(ATTR_ID);
             if (key != null) {
@@ -699,8 +2044,9 @@ public class LRCTxDBCollection implements TxCollection, Constants {
 
     }
 
-    //@Override
+    @Override
     public UpdateResult updateMany(Tx tx, Document query, Document update) throws TxRollback {
+        ((LRCTx) tx).checkWritable();
         synchronized (tx) {
             Object key = query.get(ATTR_ID);
             if (key != null) {
@@ -725,15 +2071,54 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         return false;
     }
 
+    // returns null if the document does not exist for this transaction
     private Document generateNewValue(LRCTx tx, Object key, Document prev, Document update) {
         if (!isCommand(update)) {
             return new Document(update);
         }
-        throw new UnsupportedOperationException("not supportted update operators: update=" + update);
+        // operators are applied to the version that this transaction reads
+        Document visible = prev == null ? null : clean(new Document(prev));
+        if (visible == null)
+            return null;
+        return UpdateOperators.apply(visible, update);
+    }
+
+    // a key filter stamps an empty delta of this transaction with one findOneAndUpdate. the delta keeps the safe version as the
+    // unsafe one, so the following write is an overwrite of the own unsafe version and commit of the lock alone only removes it.
+    // while the transaction can still commit in one phase, the document is pinned instead so that no _SYS state is written and
+    // the following write is deferred to the conditional write of the commit
+    @Override
+    public Document findOneForUpdate(Tx tx_, Document filter) throws TxRollback {
+        LRCTx tx = (LRCTx) tx_;
+        tx.checkWritable();
+        synchronized (tx) {
+            Object key = filter.get(ATTR_ID);
+            if (key == null || key instanceof Document || !QueryMatcher.isSupported(filter))
+                return find(tx, filter, true).first();
+
+            if (tx.getDirty(this, key) == null && !tx.canDeferWrite()) {
+                tx.insertTxStateIfNecessary();
+
+                Document query = new Document(filter).append(ATTR_VALUE_UNSAFE, new Document("$exists", false));
+                Document unsafe = new Document(ATTR_VALUE_UNSAFE_DELTA, new ArrayList<>()).append(ATTR_VALUE_UNSAFE_TXID, tx.txId);
+                Document safe = baseCol.findOneAndUpdate(query, new Document("$set", new Document(ATTR_VALUE_UNSAFE, unsafe)));
+                if (safe != null) {
+                    tx.putDirty(this, key, new Document(safe).append(ATTR_VALUE_UNSAFE, unsafe));
+                    return clean(safe);
+                }
+            }
+
+            // the document has an unsafe version, does not match, is already written by this transaction, or is pinned for one-phase commit
+            Document ret = readOne(tx, key, true);
+            if (ret == null || !QueryMatcher.matches(filter, ret))
+                return null;
+            return ret;
+        }
     }
 
     @Override
     public Document findOneAndReplace(Tx tx, Document query, Document update) throws TxRollback {
+        ((LRCTx) tx).checkWritable();
         synchronized (tx) {
             Document tgt = findOne(tx, query);
             if (tgt == null)
@@ -748,6 +2133,7 @@ public class LRCTxDBCollection implements TxCollection, Constants {
 
     @Override
     public Document findOneAndDelete(Tx tx, Document query) throws TxRollback {
+        ((LRCTx) tx).checkWritable();
         synchronized (tx) {
             Document tgt = findOne(tx, query);
             if (tgt == null)
@@ -762,6 +2148,8 @@ public class LRCTxDBCollection implements TxCollection, Constants {
 
     @Override
     public FindIterable<Document> find(Tx tx, Document filter, boolean forUpdate) throws TxRollback {
+        if (forUpdate)
+            ((LRCTx) tx).checkWritable();
         return new LRCSimpleTxDBCursor((LRCTx) tx, this, filter, forUpdate);
     }
 
@@ -770,8 +2158,70 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         return new LRCSimpleTxDBCursor((LRCTx) tx, this, filter, false);
     }
 
+    @Override
+    public long count(Tx tx_, Document filter) throws TxRollback {
+        LRCTx tx = (LRCTx) tx_;
+        if (tx.readOnly)
+            return countVisible(tx, filter);
+        synchronized (tx) {
+            return countVisible(tx, filter);
+        }
+    }
+
+    // the server counts safe versions that match the filter. the count is corrected only with documents that have unsafe
+    // versions, comparing their safe versions with the versions that this transaction reads
+    private long countVisible(LRCTx tx, Document query) throws TxRollback {
+        if (!QueryMatcher.isSupported(query)) {
+            long n = 0L;
+            try (SelectCursor cursor = new SelectCursor(tx, query, null, null, 0, 0, 0, false)) {
+                for (; cursor.hasNext(); cursor.next())
+                    ++n;
+            }
+            return n;
+        }
+
+        tx.installOnePhaseWriteIfNecessary(this);
+
+        // documents with unsafe versions are counted by their visible versions before the count in the server. they are
+        // excluded from the count, so a roll-forward between the two steps does not count a document twice or miss it
+        long n = 0L;
+        List<Object> unsafeKeys = new ArrayList<>();
+        Document unsafeQuery = new Document("$and", Arrays.asList(//
+                new Document(ATTR_VALUE_UNSAFE, new Document("$exists", true)), //
+                new Document("$or", Arrays.asList(query, createUnsafeQuery(query)))));
+        try (MongoCursor<Document> cursor = baseCol.find(unsafeQuery).batchSize(TX_STATE_BATCH_SIZE).iterator()) {
+            while (cursor.hasNext()) {
+                List<Document> batch = nextBatch(cursor, TX_STATE_BATCH_SIZE);
+                Map<String, STATE> txStates = resolveTxStates(tx, batch);
+                for (Document sd2v : batch) {
+                    unsafeKeys.add(sd2v.get(ATTR_ID));
+                    Document visible = clean(readRepair(tx, sd2v, false, txStates));
+                    if (visible != null && QueryMatcher.matches(query, visible))
+                        ++n;
+                }
+            }
+        }
+
+        // an insert marker written after the scan belongs to a transaction that commits concurrently with this count
+        Document safeQuery = new Document("$and", Arrays.asList(query, //
+                new Document(ATTR_ID, new Document("$nin", unsafeKeys)), //
+                new Document(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_INSERT, new Document("$exists", false))));
+        return n + baseCol.count(safeQuery);
+    }
+
+    @Override
+    public boolean exists(Tx tx_, Document filter) throws TxRollback {
+        LRCTx tx = (LRCTx) tx_;
+        if (tx.readOnly)
+            return !select(tx, filter, 1, false).isEmpty();
+        synchronized (tx) {
+            return !select(tx, filter, 1, false).isEmpty();
+        }
+    }
+
     @Override
     public DeleteResult deleteOne(Tx tx, Document filter) throws TxRollback {
+        ((LRCTx) tx).checkWritable();
         synchronized (tx) {
             Object key = filter.get(ATTR_ID);
             if (key != null) {
@@ -785,8 +2235,9 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         }
     }
 
-    //@Override
+    @Override
     public UpdateResult updateOne(Tx tx, Document filter, Document update) throws TxRollback {
+        ((LRCTx) tx).checkWritable();
         synchronized (tx) {
             Object key = filter.get(ATTR_ID);
             if (key != null) {
@@ -803,6 +2254,7 @@ public class LRCTxDBCollection implements TxCollection, Constants {
 
     @Override
     public UpdateResult replaceOne(Tx tx, Document filter, Document replacement) throws TxRollback {
+        ((LRCTx) tx).checkWritable();
         synchronized (tx) {
             Object key = filter.get(ATTR_ID);
             if (key != null) {
@@ -817,6 +2269,75 @@ public class LRCTxDBCollection implements TxCollection, Constants {
         }
     }
 
+    @Override
+    public UpdateResult updateOne(Tx tx, Document filter, Document update, UpdateOptions options) throws TxRollback {
+        if (!options.isUpsert())
+            return updateOne(tx, filter, update);
+        return upsert((LRCTx) tx, filter, update, false);
+    }
+
+    @Override
+    public UpdateResult updateMany(Tx tx, Document filter, Document update, UpdateOptions options) throws TxRollback {
+        if (!options.isUpsert())
+            return updateMany(tx, filter, update);
+        return upsert((LRCTx) tx, filter, update, true);
+    }
+
+    @Override
+    public UpdateResult replaceOne(Tx tx, Document filter, Document replacement, UpdateOptions options) throws TxRollback {
+        if (!options.isUpsert())
+            return replaceOne(tx, filter, replacement);
+        return upsert((LRCTx) tx, filter, replacement, false);
+    }
+
+    // a key filter installs the insert marker with the write of updateSD2V. other filters insert after a select
+    private UpdateResult upsert(LRCTx tx, Document filter, Document update, boolean multi) throws TxRollback {
+        tx.checkWritable();
+        synchronized (tx) {
+            Document upserted = UpdateOperators.upsert(filter, update);
+            Object key = filter.get(ATTR_ID);
+            if (key != null && !(key instanceof Document)) {
+                if (!key.equals(upserted.get(ATTR_ID)))
+                    throw new IllegalArgumentException("_id can not be updated. update=" + update);
+                int ret = updateSD2V(tx, key, update, null, filter, upserted);
+                if (ret == UPSERTED)
+                    return createUpsertedResult(key);
+                // the key exists, so the upserted one can not be inserted
+                if (ret == MISMATCHED) {
+                    tx.rollback();
+                    throw new TxRollback("upsert error: already exist. key=" + key);
+                }
+                // a document that this transaction does not read, such as a removed one, is replaced with the upserted one
+                if (ret == 0) {
+                    insertOne(tx, upserted);
+                    return createUpsertedResult(key);
+                }
+                return new UpdateResultImpl((long) ret, (long) ret, null);
+            }
+
+            List<Document> tgts = select(tx, filter, multi ? 0 : 1, true);
+            if (!tgts.isEmpty()) {
+                long n = 0;
+                for (Document tgt : tgts)
+                    n += updateMany(tx, new Document(ATTR_ID, tgt.get(ATTR_ID)), update).getModifiedCount();
+                return new UpdateResultImpl(n, n, null);
+            }
+
+            if (!upserted.containsKey(ATTR_ID)) {
+                Document withId = new Document(ATTR_ID, new ObjectId());
+                withId.putAll(upserted);
+                upserted = withId;
+            }
+            insertOne(tx, upserted);
+            return createUpsertedResult(upserted.get(ATTR_ID));
+        }
+    }
+
+    private static UpdateResult createUpsertedResult(Object key) {
+        BsonValue upsertedId = new Document(ATTR_ID, key).toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry()).get(ATTR_ID);
+        return new UpdateResultImpl(0L, 0L, upsertedId);
+    }
+
     @Override
     public void flush(long timestamp) {
         List<Document> flushingTxs = txDB.abortTimeoutTxsAndGetFinishingTxStates(timestamp);
@@ -827,13 +2348,14 @@ public class LRCTxDBCollection implements TxCollection, Constants {
             Document query = new Document()//
                     .append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID, txId);
 
-            if (STATE_COMMITTED.equals(state)) {
-                for (Document sd2v : baseCol.find(query))
-                    commit(txId, sd2v.get(ATTR_ID), sd2v);
-            } else {
-                for (Document sd2v : baseCol.find(query))
-                    rollback(txId, sd2v.get(ATTR_ID), sd2v);
-            }
+            Map<Object, Document> sd2vs = new LinkedHashMap<>();
+            for (Document sd2v : baseCol.find(query))
+                sd2vs.put(sd2v.get(ATTR_ID), sd2v);
+
+            if (STATE_COMMITTED.equals(state))
+                commitAll(txId, sd2vs);
+            else
+                rollbackAll(txId, sd2vs);
         }
     }
 
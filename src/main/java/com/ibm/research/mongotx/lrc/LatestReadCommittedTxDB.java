@@ -16,6 +16,8 @@
 package com.ibm.research.mongotx.lrc;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -49,6 +51,16 @@ public class LatestReadCommittedTxDB implements TxDatabase, Constants {
     final boolean isSharding;
     final long timeGapMin;
     final long timeGapMax;
+    volatile RollForwardExecutor rollForwardExecutor;
+    volatile TxStateWriter txStateWriter;
+    volatile boolean onePhaseCommit = false;
+    volatile TxStateCache txStateCache = new TxStateCache(TX_STATE_CACHE_SIZE, 0L);
+    volatile TxStateListener txStateListener;
+    volatile ConflictPolicy conflictPolicy;
+    volatile boolean combinedQuery = false;
+    volatile boolean deltaUnsafe = false;
+    volatile int documentCacheCapacity = 0;
+    volatile boolean documentCacheChangeStream = false;
 
     public LatestReadCommittedTxDB(MongoClient client, MongoDatabase db) {
         this.client = client;
@@ -76,6 +88,216 @@ public class LatestReadCommittedTxDB implements TxDatabase, Constants {
     }
 
     public void close() {
+        for (LRCTxDBCollection col : collections.values())
+            col.closeDocumentCacheChangeStream();
+        TxStateListener listener = txStateListener;
+        if (listener != null)
+            listener.close();
+        RollForwardExecutor executor = rollForwardExecutor;
+        if (executor != null)
+            executor.close(ROLLFORWARD_DRAIN_TIMEOUT);
+        TxStateWriter writer = txStateWriter;
+        if (writer != null)
+            writer.close();
+    }
+
+    // writes of transaction states from concurrent transactions are coalesced into one bulkWrite per interval
+    public synchronized void enableGroupCommit(long intervalMicros, int maxBatchSize) {
+        if (txStateWriter != null)
+            throw new IllegalStateException("group commit was already enabled.");
+        txStateWriter = new TxStateWriter(sysCol, intervalMicros, maxBatchSize, clientId);
+    }
+
+    public long getGroupCommitBatchCount() {
+        TxStateWriter writer = txStateWriter;
+        return writer == null ? 0L : writer.getBatchCount();
+    }
+
+    public long getGroupCommitRequestCount() {
+        TxStateWriter writer = txStateWriter;
+        return writer == null ? 0L : writer.getRequestCount();
+    }
+
+    // commit() returns at the commit point and committed documents are rolled forward in background
+    public synchronized void enableAsyncRollForward(int numOfThreads, int queueCapacity) {
+        if (rollForwardExecutor != null)
+            throw new IllegalStateException("async roll-forward was already enabled.");
+        rollForwardExecutor = new RollForwardExecutor(this, numOfThreads, queueCapacity);
+    }
+
+    // a transaction that writes a single document commits it with one conditional write without _SYS
+    public void setOnePhaseCommit(boolean onePhaseCommit) {
+        this.onePhaseCommit = onePhaseCommit;
+    }
+
+    // find() sends one $or of the safe and unsafe queries if the filter can be evaluated on the client
+    public void setCombinedQuery(boolean combinedQuery) {
+        this.combinedQuery = combinedQuery;
+    }
+
+    // an unsafe version of an update holds only changed fields and names of removed fields (_d) against its safe version
+    public synchronized void setDeltaUnsafe(boolean deltaUnsafe) {
+        this.deltaUnsafe = deltaUnsafe;
+        if (deltaUnsafe)
+            for (LRCTxDBCollection col : collections.values())
+                col.initDeltaIndexIfNecessary();
+    }
+
+    // capacity 0 disables the cache. UNKNOWN states are cached for unknownTtlMs if it is positive
+    public void setTxStateCache(int capacity, long unknownTtlMs) {
+        this.txStateCache = capacity > 0 ? new TxStateCache(capacity, unknownTtlMs) : null;
+    }
+
+    public long getTxStateCacheHitCount() {
+        TxStateCache cache = txStateCache;
+        return cache == null ? 0L : cache.getHitCount();
+    }
+
+    public long getTxStateCacheMissCount() {
+        TxStateCache cache = txStateCache;
+        return cache == null ? 0L : cache.getMissCount();
+    }
+
+    void cacheTxState(String txId, STATE state) {
+        TxStateCache cache = txStateCache;
+        if (cache != null)
+            cache.put(txId, state);
+    }
+
+    private STATE getCachedTxState(String txId) {
+        TxStateCache cache = txStateCache;
+        return cache == null ? null : cache.get(txId);
+    }
+
+    // documents read by their keys are shared by transactions of this client. capacity is per collection and 0 disables
+    // the cache. commits of this client invalidate it, but commits of other clients are read only after their documents are
+    // evicted, rolled forward by this client, or notified by enableDocumentCacheChangeStream()
+    public synchronized void setDocumentCache(int capacityPerCollection) {
+        this.documentCacheCapacity = capacityPerCollection;
+        for (LRCTxDBCollection col : collections.values())
+            col.setDocumentCache(capacityPerCollection);
+    }
+
+    // changes of base collections by other clients invalidate the document cache. requires a replica set
+    public synchronized void enableDocumentCacheChangeStream() {
+        this.documentCacheChangeStream = true;
+        for (LRCTxDBCollection col : collections.values())
+            col.enableDocumentCacheChangeStream();
+    }
+
+    public long getDocumentCacheHitCount() {
+        long hits = 0L;
+        for (LRCTxDBCollection col : collections.values())
+            hits += col.getDocumentCacheHitCount();
+        return hits;
+    }
+
+    public long getDocumentCacheMissCount() {
+        long misses = 0L;
+        for (LRCTxDBCollection col : collections.values())
+            misses += col.getDocumentCacheMissCount();
+        return misses;
+    }
+
+    private synchronized void initDocumentCache(LRCTxDBCollection col) {
+        col.setDocumentCache(documentCacheCapacity);
+        if (documentCacheChangeStream)
+            col.enableDocumentCacheChangeStream();
+    }
+
+    // null rolls back a transaction as soon as it meets an unsafe version of another active transaction
+    public void setConflictPolicy(ConflictPolicy conflictPolicy) {
+        this.conflictPolicy = conflictPolicy;
+    }
+
+    public ConflictPolicy getConflictPolicy() {
+        return conflictPolicy;
+    }
+
+    // returns true if the caller should retry because the conflicting transaction finished
+    boolean waitForConflict(String txId) {
+        ConflictPolicy policy = conflictPolicy;
+        return policy != null && policy.await(this, txId);
+    }
+
+    // states of transactions are pushed from a change stream of _SYS instead of polling. requires a replica set
+    public synchronized void enableTxStateChangeStream() {
+        if (txStateListener != null)
+            throw new IllegalStateException("change stream of transaction states was already enabled.");
+        txStateListener = new TxStateListener(this, sysCol);
+    }
+
+    public boolean isTxStateChangeStreamActive() {
+        TxStateListener listener = txStateListener;
+        return listener != null && listener.isHealthy();
+    }
+
+    public long getTxStateChangeStreamEventCount() {
+        TxStateListener listener = txStateListener;
+        return listener == null ? 0L : listener.getEventCount();
+    }
+
+    // returns true if the transaction finished within the timeout. returns false immediately without the change stream
+    boolean awaitTxFinished(String txId, long timeoutMs) throws InterruptedException {
+        TxStateListener listener = txStateListener;
+        return listener != null && listener.awaitFinished(txId, timeoutMs);
+    }
+
+    public int getRollForwardQueueDepth() {
+        RollForwardExecutor executor = rollForwardExecutor;
+        return executor == null ? 0 : executor.getQueueDepth();
+    }
+
+    public long getRolledForwardCount() {
+        RollForwardExecutor executor = rollForwardExecutor;
+        return executor == null ? 0L : executor.getRolledForwardCount();
+    }
+
+    public long getRollForwardAverageLag() {
+        RollForwardExecutor executor = rollForwardExecutor;
+        return executor == null ? 0L : executor.getAverageLagMillis();
+    }
+
+    public long getRollForwardMaxLag() {
+        RollForwardExecutor executor = rollForwardExecutor;
+        return executor == null ? 0L : executor.getMaxLagMillis();
+    }
+
+    void committed(LRCTx tx) {
+        RollForwardExecutor executor = rollForwardExecutor;
+        if (executor == null)
+            rollForward(tx);
+        else
+            executor.submit(tx);
+    }
+
+    void rollForward(LRCTx tx) {
+        if (tx.finishDirties(true))
+            removeTxState(tx.txId);
+    }
+
+    void insertTxState(Document txState) {
+        TxStateWriter writer = txStateWriter;
+        if (writer == null)
+            sysCol.insertOne(txState);
+        else
+            writer.insert(txState);
+    }
+
+    boolean replaceTxState(Document query, Document newTxState) {
+        TxStateWriter writer = txStateWriter;
+        if (writer == null)
+            return sysCol.replaceOne(query, newTxState).getModifiedCount() == 1L;
+        else
+            return writer.replace(query, newTxState);
+    }
+
+    void removeTxState(String txId) {
+        TxStateWriter writer = txStateWriter;
+        if (writer == null)
+            sysCol.deleteOne(new Document(ATTR_ID, txId));
+        else
+            writer.delete(txId);
     }
 
     long getServerTimeAtMost() {
@@ -132,15 +354,19 @@ public class LatestReadCommittedTxDB implements TxDatabase, Constants {
         }
         LRCTxDBCollection lrcCol = new LRCTxDBCollection(this, new MongoProfilingCollection(baseCol), collectionName);
         ret = collections.putIfAbsent(collectionName, lrcCol);
-        if (ret == null)
+        if (ret == null) {
             ret = lrcCol;
+            initDocumentCache(lrcCol);
+        }
     }
 
     private TxCollection createTxCollection(String name, MongoCollection<Document> baseCol) {
         LRCTxDBCollection lrcCol = new LRCTxDBCollection(this, baseCol, name);
         TxCollection ret = collections.putIfAbsent(name, lrcCol);
-        if (ret == null)
+        if (ret == null) {
             ret = lrcCol;
+            initDocumentCache(lrcCol);
+        }
         return ret;
     }
 
@@ -170,8 +396,15 @@ public class LatestReadCommittedTxDB implements TxDatabase, Constants {
         return ret;
     }
 
+    // a read-only transaction is neither numbered nor registered. its id never matches the ids of writers
+    @Override
+    public Tx beginReadOnlyTransaction() {
+        return new LRCTx(this, clientId + "-0", true);
+    }
+
     void finished(LRCTx tx) {
-        activeTxs.remove(tx.txId);
+        if (!tx.readOnly)
+            activeTxs.remove(tx.txId);
     }
 
     public long incrementAndGetLong(Object key) {
@@ -219,11 +452,49 @@ public class LatestReadCommittedTxDB implements TxDatabase, Constants {
         return doc.getDate(ATTR_TIME).getTime();
     }
 
+    // only terminal states skip _SYS. an active state notified by the change stream may be stale.
     public STATE getTxState(String unsafeTxId) {
+        STATE cached = getCachedTxState(unsafeTxId);
+        if (cached != null)
+            return cached;
+
         Document query = new Document(ATTR_ID, unsafeTxId);
         Iterator<Document> itr = sysCol.find(query).iterator();
 
-        Document txState = itr.hasNext() ? itr.next() : null;
+        STATE state = toState(itr.hasNext() ? itr.next() : null);
+        cacheTxState(unsafeTxId, state);
+        return state;
+    }
+
+    Map<String, STATE> getTxStates(Collection<String> txIds) {
+        Map<String, STATE> states = new HashMap<>();
+        List<String> uncachedTxIds = new ArrayList<>();
+        for (String txId : txIds) {
+            STATE cached = getCachedTxState(txId);
+            if (cached != null)
+                states.put(txId, cached);
+            else
+                uncachedTxIds.add(txId);
+        }
+
+        if (uncachedTxIds.isEmpty())
+            return states;
+
+        for (Document txState : sysCol.find(new Document(ATTR_ID, new Document("$in", uncachedTxIds))))
+            states.put(txState.getString(ATTR_ID), toState(txState));
+
+        for (String txId : uncachedTxIds) {
+            STATE state = states.get(txId);
+            if (state == null) {
+                state = STATE.UNKNOWN;
+                states.put(txId, state);
+            }
+            cacheTxState(txId, state);
+        }
+        return states;
+    }
+
+    static STATE toState(Document txState) {
         if (txState == null)
             return STATE.UNKNOWN;
 
@@ -237,19 +508,29 @@ public class LatestReadCommittedTxDB implements TxDatabase, Constants {
     }
 
     boolean abort(String txId) {
+        STATE cached = getCachedTxState(txId);
+        if (cached == STATE.ABORTED)
+            return true;
+        else if (cached == STATE.COMMITTED)
+            return false;
+
         Document query = new Document(ATTR_ID, txId)//
                 .append(ATTR_TX_TIMEOUT, new Document()//
                         .append("$lt", getServerTimeAtLeast()));
         Document newTxState = new Document(ATTR_ID, txId)//
                 .append(ATTR_TX_STATE, STATE_ABORTED);
 
-        if (sysCol.replaceOne(query, newTxState).getModifiedCount() == 1L)
+        if (sysCol.replaceOne(query, newTxState).getModifiedCount() == 1L) {
+            cacheTxState(txId, STATE.ABORTED);
             return true;
+        }
 
         Iterator<Document> itrLatestTxState = sysCol.find(new Document(ATTR_ID, txId)).iterator();
         if (!itrLatestTxState.hasNext())
             return false;
-        return STATE_ABORTED.equals(itrLatestTxState.next().get(ATTR_TX_STATE));
+        STATE state = toState(itrLatestTxState.next());
+        cacheTxState(txId, state);
+        return state == STATE.ABORTED;
     }
 
     List<Document> abortTimeoutTxsAndGetFinishingTxStates(long timestamp) {
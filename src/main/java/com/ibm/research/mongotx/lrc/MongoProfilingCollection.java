@@ -45,15 +45,17 @@ public class MongoProfilingCollection implements MongoCollection<Document> {
 
     public static final AtomicInteger find = new AtomicInteger(0);
     public static final AtomicInteger insertOne = new AtomicInteger(0);
+    public static final AtomicInteger insertMany = new AtomicInteger(0);
     public static final AtomicInteger replaceOne = new AtomicInteger(0);
     public static final AtomicInteger updateOne = new AtomicInteger(0);
     public static final AtomicInteger deleteOne = new AtomicInteger(0);
     public static final AtomicInteger findOneAndReplace = new AtomicInteger(0);
     public static final AtomicInteger findOneAndUpdate = new AtomicInteger(0);
     public static final AtomicInteger findOneAndDelete = new AtomicInteger(0);
+    public static final AtomicInteger bulkWrite = new AtomicInteger(0);
     public static final Map<String, AtomicInteger> others = new ConcurrentHashMap<>();
 
-    public static final AtomicInteger[] allCounters = new AtomicInteger[] { find, insertOne, replaceOne, updateOne, deleteOne, findOneAndReplace, findOneAndUpdate, findOneAndDelete };
+    public static final AtomicInteger[] allCounters = new AtomicInteger[] { find, insertOne, insertMany, replaceOne, updateOne, deleteOne, findOneAndReplace, findOneAndUpdate, findOneAndDelete, bulkWrite };
 
     public static void clearCounters() {
         for (AtomicInteger counter : allCounters)
@@ -62,7 +64,7 @@ public class MongoProfilingCollection implements MongoCollection<Document> {
     }
 
     public static void printCounters(PrintStream out) {
-        out.print("\tfind,\t insertOne,\t replaceOne,\t updateOne,\t deleteOne,\t findOneAndReplace,\t findOneAndUpdate\t findOneAndDelete");
+        out.print("\tfind,\t insertOne,\t insertMany,\t replaceOne,\t updateOne,\t deleteOne,\t findOneAndReplace,\t findOneAndUpdate\t findOneAndDelete\t bulkWrite");
         for (String key : others.keySet())
             out.print("\t" + key);
         out.println();
@@ -216,13 +218,13 @@ public class MongoProfilingCollection implements MongoCollection<Document> {
 
     @Override
     public BulkWriteResult bulkWrite(List<? extends WriteModel<? extends Document>> requests) {
-
+        bulkWrite.incrementAndGet();
         return base.bulkWrite(requests);
     }
 
     @Override
     public BulkWriteResult bulkWrite(List<? extends WriteModel<? extends Document>> requests, BulkWriteOptions options) {
-
+        bulkWrite.incrementAndGet();
         return base.bulkWrite(requests, options);
     }
 
@@ -234,13 +236,13 @@ public class MongoProfilingCollection implements MongoCollection<Document> {
 
     @Override
     public void insertMany(List<? extends Document> documents) {
-
+        insertMany.incrementAndGet();
         base.insertMany(documents);
     }
 
     @Override
     public void insertMany(List<? extends Document> documents, InsertManyOptions options) {
-
+        insertMany.incrementAndGet();
         base.insertMany(documents, options);
     }
 
@@ -691,42 +693,42 @@ public class MongoProfilingCollection implements MongoCollection<Document> {
 
     @Override
     public ChangeStreamIterable<Document> watch() {
-        throw new UnsupportedOperationException();
+        return base.watch();
     }
 
     @Override
     public <TResult> ChangeStreamIterable<TResult> watch(Class<TResult> arg0) {
-        throw new UnsupportedOperationException();
+        return base.watch(arg0);
     }
 
     @Override
     public ChangeStreamIterable<Document> watch(List<? extends Bson> arg0) {
-        throw new UnsupportedOperationException();
+        return base.watch(arg0);
     }
 
     @Override
     public ChangeStreamIterable<Document> watch(ClientSession arg0) {
-        throw new UnsupportedOperationException();
+        return base.watch(arg0);
     }
 
     @Override
     public <TResult> ChangeStreamIterable<TResult> watch(List<? extends Bson> arg0, Class<TResult> arg1) {
-        throw new UnsupportedOperationException();
+        return base.watch(arg0, arg1);
     }
 
     @Override
     public <TResult> ChangeStreamIterable<TResult> watch(ClientSession arg0, Class<TResult> arg1) {
-        throw new UnsupportedOperationException();
+        return base.watch(arg0, arg1);
     }
 
     @Override
     public ChangeStreamIterable<Document> watch(ClientSession arg0, List<? extends Bson> arg1) {
-        throw new UnsupportedOperationException();
+        return base.watch(arg0, arg1);
     }
 
     @Override
     public <TResult> ChangeStreamIterable<TResult> watch(ClientSession arg0, List<? extends Bson> arg1, Class<TResult> arg2) {
-        throw new UnsupportedOperationException();
+        return base.watch(arg0, arg1, arg2);
     }
 
     @Override
@@ -0,0 +1,354 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+// evaluates a subset of MongoDB query operators on the client. isSupported() must be checked before matches().
+public class QueryMatcher {
+
+    static final Set<String> OPERATORS = new HashSet<>(Arrays.asList(//
+            "$eq", "$ne", "$gt", "$gte", "$lt", "$lte", "$in", "$nin", "$all", "$size", "$exists", "$not", "$regex", "$options"));
+
+    static final Set<String> LOGICAL_OPERATORS = new HashSet<>(Arrays.asList("$and", "$or", "$nor"));
+
+    public static boolean isSupported(Document query) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (LOGICAL_OPERATORS.contains(key)) {
+                if (!(value instanceof List) || ((List<?>) value).isEmpty())
+                    return false;
+                for (Object clause : (List<?>) value)
+                    if (!(clause instanceof Document) || !isSupported((Document) clause))
+                        return false;
+            } else if (key.startsWith("$")) {
+                return false;
+            } else if (isOperator(value) && !isSupportedCondition((Document) value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSupportedCondition(Document condition) {
+        for (Map.Entry<String, Object> op : condition.entrySet()) {
+            String key = op.getKey();
+            Object operand = op.getValue();
+            if (!OPERATORS.contains(key))
+                return false;
+            if ((key.equals("$in") || key.equals("$nin") || key.equals("$all")) && !(operand instanceof Collection))
+                return false;
+            if (key.equals("$size") && !(operand instanceof Number))
+                return false;
+            if (key.equals("$regex") && !(operand instanceof String || operand instanceof Pattern))
+                return false;
+            if (key.equals("$options") && !condition.containsKey("$regex"))
+                return false;
+            if (key.equals("$not") && !(operand instanceof Pattern) && !(isOperator(operand) && isSupportedCondition((Document) operand)))
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean matches(Document query, Document doc) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (key.equals("$and")) {
+                for (Object clause : (List<?>) value)
+                    if (!matches((Document) clause, doc))
+                        return false;
+            } else if (key.equals("$or") || key.equals("$nor")) {
+                boolean matched = false;
+                for (Object clause : (List<?>) value)
+                    if (matches((Document) clause, doc)) {
+                        matched = true;
+                        break;
+                    }
+                if (matched != key.equals("$or"))
+                    return false;
+            } else if (!matchesField(getValues(doc, key), value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isOperator(Object value) {
+        if (!(value instanceof Document) || ((Document) value).isEmpty())
+            return false;
+        for (String key : ((Document) value).keySet())
+            if (!key.startsWith("$"))
+                return false;
+        return true;
+    }
+
+    // values are candidates at the path. an array is a candidate as a whole and by its elements
+    private static boolean matchesField(List<Object> values, Object condition) {
+        if (condition instanceof Pattern)
+            return matchesRegex(values, (Pattern) condition);
+        if (!isOperator(condition))
+            return equalsAny(values, condition);
+
+        Document ops = (Document) condition;
+        for (Map.Entry<String, Object> op : ops.entrySet()) {
+            Object operand = op.getValue();
+            switch (op.getKey()) {
+            case "$eq":
+                if (!equalsAny(values, operand))
+                    return false;
+                break;
+            case "$ne":
+                if (equalsAny(values, operand))
+                    return false;
+                break;
+            case "$in":
+                if (!inAny(values, (Collection<?>) operand))
+                    return false;
+                break;
+            case "$nin":
+                if (inAny(values, (Collection<?>) operand))
+                    return false;
+                break;
+            case "$all":
+                for (Object element : (Collection<?>) operand)
+                    if (!equalsAny(values, element))
+                        return false;
+                if (((Collection<?>) operand).isEmpty())
+                    return false;
+                break;
+            case "$size": {
+                boolean matched = false;
+                for (Object value : values)
+                    if (value instanceof List && ((List<?>) value).size() == ((Number) operand).intValue())
+                        matched = true;
+                if (!matched)
+                    return false;
+                break;
+            }
+            case "$exists":
+                if (values.isEmpty() == isTrue(operand))
+                    return false;
+                break;
+            case "$not":
+                if (matchesField(values, operand))
+                    return false;
+                break;
+            case "$regex": {
+                Pattern pattern = operand instanceof Pattern ? (Pattern) operand : Pattern.compile((String) operand, getRegexFlags(ops.getString("$options")));
+                if (!matchesRegex(values, pattern))
+                    return false;
+                break;
+            }
+            case "$options":
+                break;
+            default: {
+                boolean matched = false;
+                for (Object value : values) {
+                    Integer cmp = compare(value, operand);
+                    if (cmp == null)
+                        continue;
+                    if ((op.getKey().equals("$gt") && cmp > 0) || (op.getKey().equals("$gte") && cmp >= 0)//
+                            || (op.getKey().equals("$lt") && cmp < 0) || (op.getKey().equals("$lte") && cmp <= 0)) {
+                        matched = true;
+                        break;
+                    }
+                }
+                if (!matched)
+                    return false;
+            }
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsAny(List<Object> values, Object condition) {
+        // null matches a missing field
+        if (values.isEmpty())
+            return condition == null;
+        for (Object value : values)
+            if (equalsValue(value, condition))
+                return true;
+        return false;
+    }
+
+    private static boolean inAny(List<Object> values, Collection<?> candidates) {
+        for (Object candidate : candidates)
+            if (candidate instanceof Pattern ? matchesRegex(values, (Pattern) candidate) : equalsAny(values, candidate))
+                return true;
+        return false;
+    }
+
+    private static boolean matchesRegex(List<Object> values, Pattern pattern) {
+        for (Object value : values)
+            if (value instanceof String && pattern.matcher((String) value).find())
+                return true;
+        return false;
+    }
+
+    private static int getRegexFlags(String options) {
+        int flags = 0;
+        if (options == null)
+            return flags;
+        if (options.contains("i"))
+            flags |= Pattern.CASE_INSENSITIVE;
+        if (options.contains("m"))
+            flags |= Pattern.MULTILINE;
+        if (options.contains("s"))
+            flags |= Pattern.DOTALL;
+        if (options.contains("x"))
+            flags |= Pattern.COMMENTS;
+        return flags;
+    }
+
+    private static boolean isTrue(Object operand) {
+        if (operand instanceof Boolean)
+            return (Boolean) operand;
+        if (operand instanceof Number)
+            return ((Number) operand).doubleValue() != 0.0;
+        return operand != null;
+    }
+
+    static List<Object> getValues(Document doc, String path) {
+        List<Object> values = new ArrayList<>();
+        collectValues(doc, path.split("\\."), 0, values);
+        return values;
+    }
+
+    private static void collectValues(Object current, String[] fields, int index, List<Object> values) {
+        if (index == fields.length) {
+            values.add(current);
+            if (current instanceof List)
+                values.addAll((List<?>) current);
+            return;
+        }
+
+        if (current instanceof Document) {
+            Document doc = (Document) current;
+            if (doc.containsKey(fields[index]))
+                collectValues(doc.get(fields[index]), fields, index + 1, values);
+        } else if (current instanceof List) {
+            for (Object element : (List<?>) current)
+                if (element instanceof Document)
+                    collectValues(element, fields, index, values);
+        }
+    }
+
+    static boolean exists(Document doc, String path) {
+        Object current = doc;
+        for (String field : path.split("\\.")) {
+            if (!(current instanceof Document) || !((Document) current).containsKey(field))
+                return false;
+            current = ((Document) current).get(field);
+        }
+        return true;
+    }
+
+    static Object get(Document doc, String path) {
+        Object current = doc;
+        for (String field : path.split("\\.")) {
+            if (!(current instanceof Document))
+                return null;
+            current = ((Document) current).get(field);
+        }
+        return current;
+    }
+
+    static boolean equalsValue(Object value, Object condition) {
+        if (value instanceof Number && condition instanceof Number)
+            return compare(value, condition) == 0;
+        return Objects.equals(value, condition);
+    }
+
+    // orders documents like the server does for a sort specification of fields with 1 or -1
+    public static Comparator<Document> createComparator(Document sort) {
+        final Map<String, Integer> directions = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : sort.entrySet()) {
+            if (!(entry.getValue() instanceof Number))
+                throw new UnsupportedOperationException("sort is not supported: " + sort);
+            directions.put(entry.getKey(), ((Number) entry.getValue()).intValue() < 0 ? -1 : 1);
+        }
+
+        return new Comparator<Document>() {
+            @Override
+            public int compare(Document d1, Document d2) {
+                for (Map.Entry<String, Integer> direction : directions.entrySet()) {
+                    int cmp = compareForSort(get(d1, direction.getKey()), get(d2, direction.getKey()));
+                    if (cmp != 0)
+                        return cmp * direction.getValue();
+                }
+                return 0;
+            }
+        };
+    }
+
+    // order of BSON types for comparison: null, numbers, strings, documents, arrays, object ids, booleans, dates
+    private static int getTypeOrder(Object value) {
+        if (value == null)
+            return 0;
+        if (value instanceof Number)
+            return 1;
+        if (value instanceof String)
+            return 2;
+        if (value instanceof Map)
+            return 3;
+        if (value instanceof List)
+            return 4;
+        if (value instanceof ObjectId)
+            return 5;
+        if (value instanceof Boolean)
+            return 6;
+        if (value instanceof Date)
+            return 7;
+        return 8;
+    }
+
+    static int compareForSort(Object v1, Object v2) {
+        int t1 = getTypeOrder(v1);
+        int t2 = getTypeOrder(v2);
+        if (t1 != t2)
+            return Integer.compare(t1, t2);
+        Integer cmp = compare(v1, v2);
+        return cmp == null ? 0 : cmp;
+    }
+
+    // returns null if the values are not comparable
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static Integer compare(Object value, Object operand) {
+        if (value == null || operand == null)
+            return null;
+        if (value instanceof Number && operand instanceof Number)
+            return Double.compare(((Number) value).doubleValue(), ((Number) operand).doubleValue());
+        if (value.getClass() == operand.getClass() && value instanceof Comparable)
+            return ((Comparable) value).compareTo(operand);
+        return null;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// finishes committed transactions in background. a committing thread finishes its transaction by itself if the queue is full
+// or the executor was closed.
+class RollForwardExecutor implements Constants {
+    private static final Logger LOGGER = Logger.getLogger(RollForwardExecutor.class.getName());
+
+    final LatestReadCommittedTxDB txDB;
+    final ThreadPoolExecutor executor;
+    final AtomicLong rolledForward = new AtomicLong();
+    final AtomicLong totalLagNanos = new AtomicLong();
+    final AtomicLong maxLagNanos = new AtomicLong();
+
+    RollForwardExecutor(LatestReadCommittedTxDB txDB, int numOfThreads, int queueCapacity) {
+        this.txDB = txDB;
+        this.executor = new ThreadPoolExecutor(numOfThreads, numOfThreads, 0L, TimeUnit.MILLISECONDS, //
+                new ArrayBlockingQueue<Runnable>(queueCapacity), //
+                new ThreadFactory() {
+                    final AtomicInteger threadSN = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "mongotx-rollforward-" + txDB.getClientId() + "-" + threadSN.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, //
+                new RejectedExecutionHandler() {
+                    // unlike CallerRunsPolicy, a task is also run by the caller after shutdown so that no committed transaction is left
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        r.run();
+                    }
+                });
+    }
+
+    void submit(final LRCTx tx) {
+        final long committedAt = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    txDB.rollForward(tx);
+                } catch (Exception ex) {
+                    LOGGER.log(Level.WARNING, "roll-forward error. tx=" + tx.txId + ", msg=" + ex.getMessage(), ex);
+                } finally {
+                    long lag = System.nanoTime() - committedAt;
+                    rolledForward.incrementAndGet();
+                    totalLagNanos.addAndGet(lag);
+                    long max;
+                    while ((max = maxLagNanos.get()) < lag && !maxLagNanos.compareAndSet(max, lag))
+                        ;
+                }
+            }
+        });
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    long getRolledForwardCount() {
+        return rolledForward.get();
+    }
+
+    long getAverageLagMillis() {
+        long n = rolledForward.get();
+        if (n == 0L)
+            return 0L;
+        return TimeUnit.NANOSECONDS.toMillis(totalLagNanos.get() / n);
+    }
+
+    long getMaxLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get());
+    }
+
+    void close(long timeoutMs) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS))
+                LOGGER.warning("roll-forward was not drained. remaining=" + getQueueDepth());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
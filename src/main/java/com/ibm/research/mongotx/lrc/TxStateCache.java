@@ -0,0 +1,125 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ibm.research.mongotx.lrc.LRCTx.STATE;
+
+// caches terminal states of transactions, which never change. UNKNOWN is cached only for a short time.
+class TxStateCache {
+
+    static final int NUM_OF_SEGMENTS = 16;
+
+    static class Entry {
+        final STATE state;
+        final long expires;
+
+        Entry(STATE state, long expires) {
+            this.state = state;
+            this.expires = expires;
+        }
+    }
+
+    static class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    final Segment[] segments = new Segment[NUM_OF_SEGMENTS];
+    final long unknownTtlMs;
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    TxStateCache(int capacity, long unknownTtlMs) {
+        int segmentCapacity = Math.max(1, capacity / NUM_OF_SEGMENTS);
+        for (int i = 0; i < NUM_OF_SEGMENTS; ++i)
+            segments[i] = new Segment(segmentCapacity);
+        this.unknownTtlMs = unknownTtlMs;
+    }
+
+    private Segment segment(String txId) {
+        return segments[(txId.hashCode() & 0x7fffffff) % NUM_OF_SEGMENTS];
+    }
+
+    STATE get(String txId) {
+        Segment segment = segment(txId);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(txId);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                segment.remove(txId);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        } else {
+            hits.incrementAndGet();
+            return entry.state;
+        }
+    }
+
+    void put(String txId, STATE state) {
+        Entry entry;
+        if (state == STATE.COMMITTED || state == STATE.ABORTED)
+            entry = new Entry(state, Long.MAX_VALUE);
+        else if (state == STATE.UNKNOWN && unknownTtlMs > 0L)
+            entry = new Entry(state, System.currentTimeMillis() + unknownTtlMs);
+        else
+            return;
+
+        Segment segment = segment(txId);
+        synchronized (segment) {
+            Entry prev = segment.get(txId);
+            // a terminal state is never replaced
+            if (prev != null && prev.expires == Long.MAX_VALUE)
+                return;
+            segment.put(txId, entry);
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            synchronized (segment) {
+                size += segment.size();
+            }
+        return size;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import com.ibm.research.mongotx.lrc.LRCTx.STATE;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+// follows transaction states in _SYS with a change stream. requires a replica set.
+class TxStateListener implements Constants {
+    private static final Logger LOGGER = Logger.getLogger(TxStateListener.class.getName());
+
+    static final long MAX_AWAIT_TIME = 100L;
+    static final long RECONNECT_INTERVAL = 1000L;
+
+    final LatestReadCommittedTxDB txDB;
+    final MongoCollection<Document> sysCol;
+    // transactions whose active states were notified and which have not finished yet
+    final Map<String, STATE> activeStates = new ConcurrentHashMap<>();
+    final Map<String, CountDownLatch> waiters = new ConcurrentHashMap<>();
+    final AtomicLong numOfEvents = new AtomicLong();
+    final Thread listener;
+    volatile boolean running = true;
+    volatile boolean healthy = false;
+    BsonDocument resumeToken;
+
+    TxStateListener(LatestReadCommittedTxDB txDB, MongoCollection<Document> sysCol) {
+        this.txDB = txDB;
+        this.sysCol = sysCol;
+        this.listener = new Thread("mongotx-txstate-listener-" + txDB.getClientId()) {
+            @Override
+            public void run() {
+                TxStateListener.this.run();
+            }
+        };
+        this.listener.setDaemon(true);
+        this.listener.start();
+    }
+
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    long getEventCount() {
+        return numOfEvents.get();
+    }
+
+    // returns false if the transaction is not followed or is still active after the timeout
+    boolean awaitFinished(String txId, long timeoutMs) throws InterruptedException {
+        if (!healthy)
+            return false;
+
+        CountDownLatch latch = waiters.get(txId);
+        if (latch == null) {
+            CountDownLatch newLatch = new CountDownLatch(1);
+            latch = waiters.putIfAbsent(txId, newLatch);
+            if (latch == null)
+                latch = newLatch;
+        }
+
+        // the transaction finished before the waiter was registered
+        if (!activeStates.containsKey(txId)) {
+            wakeUp(txId);
+            return false;
+        }
+
+        return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        running = false;
+        try {
+            listener.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        reset();
+    }
+
+    private void wakeUp(String txId) {
+        CountDownLatch latch = waiters.remove(txId);
+        if (latch != null)
+            latch.countDown();
+    }
+
+    private void reset() {
+        healthy = false;
+        activeStates.clear();
+        for (String txId : waiters.keySet())
+            wakeUp(txId);
+    }
+
+    private void run() {
+        Document match = new Document("$match", new Document("$or", Arrays.asList(//
+                new Document("fullDocument." + ATTR_TX_STATE, new Document("$exists", true)), //
+                new Document("operationType", OperationType.DELETE.getValue()))));
+
+        while (running) {
+            ChangeStreamIterable<Document> stream = sysCol.watch(Arrays.asList(match)).maxAwaitTime(MAX_AWAIT_TIME, TimeUnit.MILLISECONDS);
+            if (resumeToken != null)
+                stream = stream.resumeAfter(resumeToken);
+
+            try (MongoCursor<ChangeStreamDocument<Document>> cursor = stream.iterator()) {
+                healthy = true;
+                while (running) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change == null)
+                        continue;
+                    resumeToken = change.getResumeToken();
+                    numOfEvents.incrementAndGet();
+                    handle(change);
+                }
+            } catch (Exception ex) {
+                LOGGER.log(Level.WARNING, "change stream of transaction states was lost. msg=" + ex.getMessage(), ex);
+                reset();
+                resumeToken = null;
+                try {
+                    Thread.sleep(RECONNECT_INTERVAL);
+                } catch (InterruptedException iex) {
+                    running = false;
+                }
+            }
+        }
+        healthy = false;
+    }
+
+    private void handle(ChangeStreamDocument<Document> change) {
+        if (change.getOperationType() == OperationType.DELETE) {
+            BsonValue id = change.getDocumentKey().get(ATTR_ID);
+            if (id == null || !id.isString())
+                return;
+            String txId = id.asString().getValue();
+            activeStates.remove(txId);
+            wakeUp(txId);
+            return;
+        }
+
+        Document txState = change.getFullDocument();
+        if (txState == null || !(txState.get(ATTR_ID) instanceof String))
+            return;
+
+        String txId = txState.getString(ATTR_ID);
+        STATE state = LatestReadCommittedTxDB.toState(txState);
+        if (state == STATE.WRITING) {
+            activeStates.put(txId, state);
+        } else {
+            txDB.cacheTxState(txId, state);
+            activeStates.remove(txId);
+            wakeUp(txId);
+        }
+    }
+}
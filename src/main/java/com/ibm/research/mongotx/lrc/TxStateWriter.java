@@ -0,0 +1,253 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.WriteModel;
+
+// coalesces writes of transaction states from concurrent transactions into one bulkWrite
+class TxStateWriter implements Constants {
+    private static final Logger LOGGER = Logger.getLogger(TxStateWriter.class.getName());
+
+    static class Request {
+        final WriteModel<Document> model;
+        final String txId;
+        final String newState;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Request(WriteModel<Document> model, String txId, String newState) {
+            this.model = model;
+            this.txId = txId;
+            this.newState = newState;
+        }
+    }
+
+    final MongoCollection<Document> sysCol;
+    final long intervalNanos;
+    final int maxBatchSize;
+    final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    final Thread writer;
+    final AtomicLong numOfBatches = new AtomicLong();
+    final AtomicLong numOfRequests = new AtomicLong();
+    volatile boolean running = true;
+
+    TxStateWriter(MongoCollection<Document> sysCol, long intervalMicros, int maxBatchSize, long clientId) {
+        this.sysCol = sysCol;
+        this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+        this.maxBatchSize = maxBatchSize;
+        this.writer = new Thread("mongotx-txstate-" + clientId) {
+            @Override
+            public void run() {
+                TxStateWriter.this.run();
+            }
+        };
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    void insert(Document txState) {
+        await(enqueue(new Request(new InsertOneModel<>(txState), txState.getString(ATTR_ID), null)));
+    }
+
+    boolean replace(Document query, Document newTxState) {
+        return await(enqueue(new Request(new ReplaceOneModel<>(query, newTxState), newTxState.getString(ATTR_ID), newTxState.getString(ATTR_TX_STATE))));
+    }
+
+    // does not wait because removal of a finished state is not a part of transaction processing
+    void delete(String txId) {
+        enqueue(new Request(new DeleteOneModel<Document>(new Document(ATTR_ID, txId)), txId, null));
+    }
+
+    long getBatchCount() {
+        return numOfBatches.get();
+    }
+
+    long getRequestCount() {
+        return numOfRequests.get();
+    }
+
+    void close() {
+        synchronized (this) {
+            running = false;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        failQueued(new MongoException("transaction state writer was closed."));
+    }
+
+    // requests are not added after close, so the writer thread completes all the requests in the queue
+    private Request enqueue(Request request) {
+        synchronized (this) {
+            if (!running)
+                throw new IllegalStateException("transaction state writer was closed.");
+            queue.add(request);
+        }
+        return request;
+    }
+
+    private void failQueued(Exception ex) {
+        Request request;
+        while ((request = queue.poll()) != null)
+            request.result.completeExceptionally(ex);
+    }
+
+    private static boolean await(Request request) {
+        try {
+            return request.result.get(TX_STATE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            throw new MongoException("timeout while waiting for a transaction state. tx=" + request.txId, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MongoException("interrupted while waiting for a transaction state. tx=" + request.txId, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new MongoException("transaction state error. tx=" + request.txId, ex.getCause());
+        }
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Request first = queue.poll(100L, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + intervalNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0L ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                write(batch);
+            } catch (InterruptedException ex) {
+                synchronized (this) {
+                    running = false;
+                }
+                MongoException error = new MongoException("transaction state writer was interrupted.", ex);
+                for (Request request : batch)
+                    request.result.completeExceptionally(error);
+                failQueued(error);
+            } catch (Exception ex) {
+                LOGGER.log(Level.SEVERE, "transaction state writer error. msg=" + ex.getMessage(), ex);
+                for (Request request : batch)
+                    request.result.completeExceptionally(ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Request> batch) {
+        numOfBatches.incrementAndGet();
+        numOfRequests.addAndGet(batch.size());
+
+        List<WriteModel<Document>> models = new ArrayList<>(batch.size());
+        for (Request request : batch)
+            models.add(request.model);
+
+        BulkWriteResult result;
+        Map<Integer, BulkWriteError> errors = new HashMap<>();
+        try {
+            result = sysCol.bulkWrite(models, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException ex) {
+            result = ex.getWriteResult();
+            for (BulkWriteError error : ex.getWriteErrors())
+                errors.put(error.getIndex(), error);
+            for (Map.Entry<Integer, BulkWriteError> error : errors.entrySet())
+                batch.get(error.getKey()).result.completeExceptionally(new MongoWriteException(error.getValue(), ex.getServerAddress()));
+        } catch (MongoException ex) {
+            for (Request request : batch)
+                request.result.completeExceptionally(ex);
+            return;
+        }
+
+        int numOfReplaces = 0;
+        List<Object> replacedTxIds = new ArrayList<>();
+        for (int i = 0; i < batch.size(); ++i) {
+            Request request = batch.get(i);
+            if (errors.containsKey(i))
+                continue;
+            if (request.model instanceof ReplaceOneModel) {
+                ++numOfReplaces;
+                replacedTxIds.add(request.txId);
+            } else {
+                request.result.complete(true);
+            }
+        }
+
+        if (numOfReplaces == 0)
+            return;
+
+        if (result.getModifiedCount() == numOfReplaces) {
+            for (int i = 0; i < batch.size(); ++i)
+                if (!errors.containsKey(i) && batch.get(i).model instanceof ReplaceOneModel)
+                    batch.get(i).result.complete(true);
+            return;
+        }
+
+        // a bulk result does not tell which replace did not match. check the latest states
+        Map<String, String> latestStates = new HashMap<>();
+        try {
+            for (Document txState : sysCol.find(new Document(ATTR_ID, new Document("$in", replacedTxIds))))
+                latestStates.put(txState.getString(ATTR_ID), txState.getString(ATTR_TX_STATE));
+        } catch (MongoException ex) {
+            for (int i = 0; i < batch.size(); ++i)
+                if (!errors.containsKey(i) && batch.get(i).model instanceof ReplaceOneModel)
+                    batch.get(i).result.completeExceptionally(ex);
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); ++i) {
+            Request request = batch.get(i);
+            if (errors.containsKey(i) || !(request.model instanceof ReplaceOneModel))
+                continue;
+            request.result.complete(request.newState != null && request.newState.equals(latestStates.get(request.txId)));
+        }
+    }
+}
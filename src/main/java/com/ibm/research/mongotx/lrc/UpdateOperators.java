@@ -0,0 +1,184 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.types.Decimal128;
+
+// evaluates $set, $unset, $inc and $push of top-level or dotted fields on the client like the server does
+public class UpdateOperators {
+
+    static final Set<String> OPERATORS = new HashSet<>(Arrays.asList("$set", "$unset", "$inc", "$push"));
+
+    // returns true if the update is operators, not a replacement
+    public static boolean isUpdate(Document update) {
+        for (String key : update.keySet())
+            if (key.startsWith("$"))
+                return true;
+        return false;
+    }
+
+    public static boolean isSupported(Document update) {
+        if (update.isEmpty())
+            return false;
+        for (Map.Entry<String, Object> entry : update.entrySet()) {
+            if (!OPERATORS.contains(entry.getKey()) || !(entry.getValue() instanceof Document))
+                return false;
+            for (Map.Entry<String, Object> field : ((Document) entry.getValue()).entrySet()) {
+                if (field.getKey().startsWith("$") || field.getKey().isEmpty())
+                    return false;
+                if (entry.getKey().equals("$inc") && !isIncrement(field.getValue()))
+                    return false;
+                if (entry.getKey().equals("$push") && isModifier(field.getValue()) && !isSupportedModifier((Document) field.getValue()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIncrement(Object value) {
+        return value instanceof Number && !(value instanceof Decimal128);
+    }
+
+    private static boolean isModifier(Object value) {
+        return value instanceof Document && !((Document) value).isEmpty() && ((Document) value).keySet().iterator().next().startsWith("$");
+    }
+
+    private static boolean isSupportedModifier(Document modifier) {
+        return modifier.size() == 1 && modifier.get("$each") instanceof Collection;
+    }
+
+    // returns a new document. prev is not changed
+    public static Document apply(Document prev, Document update) {
+        if (!isSupported(update))
+            throw new UnsupportedOperationException("not supportted update operators: update=" + update);
+
+        Document ret = copy(prev);
+        for (Map.Entry<String, Object> entry : update.entrySet()) {
+            String operator = entry.getKey();
+            for (Map.Entry<String, Object> field : ((Document) entry.getValue()).entrySet()) {
+                String path = field.getKey();
+                Object value = field.getValue();
+                switch (operator) {
+                case "$set":
+                    set(ret, path, value);
+                    break;
+                case "$unset":
+                    unset(ret, path);
+                    break;
+                case "$inc":
+                    Object current = QueryMatcher.get(ret, path);
+                    if (current == null)
+                        set(ret, path, value);
+                    else if (current instanceof Number && !(current instanceof Decimal128))
+                        set(ret, path, add((Number) current, (Number) value));
+                    else
+                        throw new IllegalArgumentException("cannot apply $inc to a non-numeric value. field=" + path + ", value=" + current);
+                    break;
+                case "$push":
+                    Object array = QueryMatcher.get(ret, path);
+                    if (array != null && !(array instanceof List))
+                        throw new IllegalArgumentException("cannot apply $push to a non-array value. field=" + path + ", value=" + array);
+                    List<Object> newArray = array == null ? new ArrayList<>() : new ArrayList<>((List<?>) array);
+                    if (isModifier(value))
+                        newArray.addAll((Collection<?>) ((Document) value).get("$each"));
+                    else
+                        newArray.add(value);
+                    set(ret, path, newArray);
+                    break;
+                }
+            }
+        }
+
+        if (prev.containsKey(Constants.ATTR_ID) && !Objects.equals(prev.get(Constants.ATTR_ID), ret.get(Constants.ATTR_ID)))
+            throw new IllegalArgumentException("_id can not be updated. update=" + update);
+        return ret;
+    }
+
+    // returns the document that an upsert inserts. equality conditions of the filter are its initial fields
+    public static Document upsert(Document filter, Document update) {
+        Document base = new Document();
+        for (Map.Entry<String, Object> entry : filter.entrySet())
+            if (!entry.getKey().startsWith("$") && !isModifier(entry.getValue()))
+                set(base, entry.getKey(), entry.getValue());
+
+        if (isUpdate(update))
+            return apply(base, update);
+
+        Document ret = new Document();
+        if (!update.containsKey(Constants.ATTR_ID) && base.containsKey(Constants.ATTR_ID))
+            ret.put(Constants.ATTR_ID, base.get(Constants.ATTR_ID));
+        ret.putAll(update);
+        return ret;
+    }
+
+    // keeps the type of the server. int overflows to long, and long overflow is an error
+    static Number add(Number a, Number b) {
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+            return a.doubleValue() + b.doubleValue();
+        if (a instanceof Long || b instanceof Long)
+            return Math.addExact(a.longValue(), b.longValue());
+        long sum = (long) a.intValue() + b.intValue();
+        if (sum < Integer.MIN_VALUE || sum > Integer.MAX_VALUE)
+            return sum;
+        return (int) sum;
+    }
+
+    // nested documents are copied so that cached documents are not changed
+    private static Document copy(Document doc) {
+        Document ret = new Document();
+        for (Map.Entry<String, Object> entry : doc.entrySet())
+            ret.put(entry.getKey(), entry.getValue() instanceof Document ? copy((Document) entry.getValue()) : entry.getValue());
+        return ret;
+    }
+
+    private static void set(Document doc, String path, Object value) {
+        String[] fields = path.split("\\.");
+        Document current = doc;
+        for (int i = 0; i < fields.length - 1; ++i) {
+            Object child = current.get(fields[i]);
+            if (child == null) {
+                child = new Document();
+                current.put(fields[i], child);
+            } else if (!(child instanceof Document)) {
+                throw new IllegalArgumentException("cannot create a field in a non-document value. field=" + path);
+            }
+            current = (Document) child;
+        }
+        current.put(fields[fields.length - 1], value);
+    }
+
+    private static void unset(Document doc, String path) {
+        String[] fields = path.split("\\.");
+        Document current = doc;
+        for (int i = 0; i < fields.length - 1; ++i) {
+            Object child = current.get(fields[i]);
+            if (!(child instanceof Document))
+                return;
+            current = (Document) child;
+        }
+        current.remove(fields[fields.length - 1]);
+    }
+}
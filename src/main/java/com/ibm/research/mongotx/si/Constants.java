@@ -0,0 +1,39 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.si;
+
+// a document is { _id, fields of the latest committed version, _ts, _tx, _rm, _v: [older versions], _c: {txId: ts}, _u: lock }.
+// a lock is { _tx, _p: {c, k}, _to, _ts, _i, _rm, _d: new fields }. _ts of a lock is set only to the primary lock at commit.
+public interface Constants extends com.ibm.research.mongotx.lrc.Constants {
+
+    int MAX_VERSIONS = 8;
+    long PREPARED_WAIT_INTERVAL = 1L;
+
+    // commit timestamp of a version
+    String ATTR_VALUE_TS = "_ts";
+    // the version is a removal
+    String ATTR_VALUE_REMOVED = "_rm";
+    // older committed versions, the newest first
+    String ATTR_VALUE_VERSIONS = "_v";
+    // commit timestamps of transactions whose secondary documents may not be rolled forward. only in primary documents
+    String ATTR_VALUE_COMMITS = "_c";
+    String ATTR_VALUE_DATA = "_d";
+
+    String ATTR_LOCK_PRIMARY = "_p";
+    String ATTR_LOCK_TIMEOUT = "_to";
+    String ATTR_PRIMARY_COL = "c";
+    String ATTR_PRIMARY_KEY = "k";
+}
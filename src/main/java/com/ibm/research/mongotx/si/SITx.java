@@ -0,0 +1,195 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.si;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+
+import com.ibm.research.mongotx.Tx;
+import com.ibm.research.mongotx.TxRollback;
+
+public class SITx implements Tx, Constants {
+    private static final Logger LOGGER = Logger.getLogger(SITx.class.getName());
+
+    enum STATE {
+        ACTIVE, COMMITTED, ABORTED
+    };
+
+    final SnapshotIsolationTxDB txDB;
+    final String txId;
+    // versions committed at or before this timestamp are read
+    final long snapshotTs;
+    final boolean readOnly;
+    // documents locked by this transaction as they are in the server
+    final Map<SITxDBCollection, Map<Object, Document>> writes;
+    STATE state = STATE.ACTIVE;
+    long timeout = TX_TIMEOUT;
+    // the first written document. its lock decides whether this transaction commits
+    SITxDBCollection primaryCol;
+    Object primaryKey;
+    long lockTimeout;
+
+    SITx(SnapshotIsolationTxDB txDB, String txId, boolean readOnly) {
+        this.txDB = txDB;
+        this.txId = txId;
+        this.snapshotTs = txDB.getServerTimeAtLeast();
+        this.readOnly = readOnly;
+        this.writes = readOnly ? Collections.<SITxDBCollection, Map<Object, Document>> emptyMap() : new LinkedHashMap<SITxDBCollection, Map<Object, Document>>();
+    }
+
+    public long getSnapshotTimestamp() {
+        return snapshotTs;
+    }
+
+    @Override
+    public void setTimeout(long milsec) {
+        if (primaryCol != null) {
+            LOGGER.warning("too late to configure new timeout.");
+            return;
+        }
+        this.timeout = milsec;
+    }
+
+    void checkActive() {
+        if (state != STATE.ACTIVE)
+            throw new IllegalStateException("state is " + state);
+    }
+
+    void checkWritable() {
+        if (readOnly)
+            throw new IllegalStateException("read-only transaction can not write. tx=" + txId);
+    }
+
+    boolean isPrimary(SITxDBCollection col, Object key) {
+        return primaryCol == col && primaryKey.equals(key);
+    }
+
+    // returns the lock that the document of the key will have
+    Document createLock(SITxDBCollection col, Object key) {
+        if (primaryCol == null)
+            lockTimeout = txDB.getServerTimeAtMost() + timeout;
+        SITxDBCollection pCol = primaryCol == null ? col : primaryCol;
+        Object pKey = primaryCol == null ? key : primaryKey;
+        return new Document(ATTR_VALUE_UNSAFE_TXID, txId)//
+                .append(ATTR_LOCK_PRIMARY, new Document(ATTR_PRIMARY_COL, pCol.getName()).append(ATTR_PRIMARY_KEY, pKey))//
+                .append(ATTR_LOCK_TIMEOUT, lockTimeout);
+    }
+
+    Document getWrite(SITxDBCollection col, Object key) {
+        Map<Object, Document> colWrites = writes.get(col);
+        return colWrites == null ? null : colWrites.get(key);
+    }
+
+    void putWrite(SITxDBCollection col, Object key, Document sd2v) {
+        Map<Object, Document> colWrites = writes.get(col);
+        if (colWrites == null) {
+            colWrites = new LinkedHashMap<>();
+            writes.put(col, colWrites);
+        }
+        colWrites.put(key, sd2v);
+
+        if (primaryCol == null) {
+            primaryCol = col;
+            primaryKey = key;
+        }
+    }
+
+    int getNumOfWrites() {
+        int ret = 0;
+        for (Map<Object, Document> colWrites : writes.values())
+            ret += colWrites.size();
+        return ret;
+    }
+
+    @Override
+    public synchronized void commit() throws TxRollback {
+        checkActive();
+
+        if (primaryCol == null) {
+            state = STATE.COMMITTED;
+            return;
+        }
+
+        boolean hasSecondaries = getNumOfWrites() > 1;
+        Long commitTs;
+        try {
+            // commit point. other transactions find the decision in the primary document
+            commitTs = primaryCol.commitPrimary(this, primaryKey, hasSecondaries);
+        } catch (RuntimeException ex) {
+            // the result is unknown. the locks expire and other transactions resolve them with the primary
+            state = STATE.ABORTED;
+            throw new TxRollback("commit error: unknown result. tx=" + txId, ex);
+        }
+        if (commitTs == null) {
+            rollback();
+            throw new TxRollback("commit error: aborted by another transaction. tx=" + txId);
+        }
+        state = STATE.COMMITTED;
+
+        boolean finished = true;
+        for (Map.Entry<SITxDBCollection, Map<Object, Document>> entry : writes.entrySet()) {
+            SITxDBCollection col = entry.getKey();
+            for (Map.Entry<Object, Document> write : entry.getValue().entrySet()) {
+                if (isPrimary(col, write.getKey()))
+                    continue;
+                try {
+                    col.rollForward(write.getValue(), txId, commitTs, false);
+                } catch (RuntimeException ex) {
+                    LOGGER.warning("unfinished document remains. tx=" + txId + ", col=" + col.getName() + ", key=" + write.getKey() + ", msg=" + ex.getMessage());
+                    finished = false;
+                }
+            }
+        }
+
+        // the commit timestamp is kept while secondary documents may refer to it
+        if (hasSecondaries && finished)
+            primaryCol.removeCommitTs(primaryKey, txId);
+
+        txDB.awaitServerTime(commitTs);
+    }
+
+    @Override
+    public void commit(int partialForTest) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void rollback() {
+        if (state != STATE.ACTIVE)
+            return;
+        state = STATE.ABORTED;
+
+        if (primaryCol == null)
+            return;
+
+        // the primary is released first so that the other documents are regarded as aborted
+        try {
+            primaryCol.releaseLock(primaryKey, txId, getWrite(primaryCol, primaryKey));
+            for (Map.Entry<SITxDBCollection, Map<Object, Document>> entry : writes.entrySet()) {
+                SITxDBCollection col = entry.getKey();
+                for (Map.Entry<Object, Document> write : entry.getValue().entrySet())
+                    if (!isPrimary(col, write.getKey()))
+                        col.releaseLock(write.getKey(), txId, write.getValue());
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.warning("unreleased locks remain. tx=" + txId + ", msg=" + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.si;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.ibm.research.mongotx.TxRollback;
+import com.ibm.research.mongotx.lrc.QueryMatcher;
+import com.mongodb.Block;
+import com.mongodb.CursorType;
+import com.mongodb.Function;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.Collation;
+
+// documents of a snapshot are selected when the cursor is opened
+class SITxCursor implements FindIterable<Document>, Constants {
+
+    final SITx tx;
+    final SITxDBCollection col;
+    final Document query;
+    Document sort = null;
+    int skip = 0;
+    int limit = 0;
+
+    SITxCursor(SITx tx, SITxDBCollection col, Document query) {
+        this.tx = tx;
+        this.col = col;
+        this.query = query;
+    }
+
+    private List<Document> select() throws TxRollback {
+        synchronized (tx) {
+            // without sort, selection stops at the last returned document
+            List<Document> results = col.select(tx, query, sort == null && limit > 0 ? skip + limit : 0);
+            if (sort != null)
+                Collections.sort(results, QueryMatcher.createComparator(sort));
+            int from = Math.min(skip, results.size());
+            int to = limit > 0 ? Math.min(from + limit, results.size()) : results.size();
+            return results.subList(from, to);
+        }
+    }
+
+    @Override
+    public MongoCursor<Document> iterator() {
+        final Iterator<Document> itr = select().iterator();
+        return new MongoCursor<Document>() {
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean hasNext() {
+                return itr.hasNext();
+            }
+
+            @Override
+            public Document next() {
+                return itr.next();
+            }
+
+            @Override
+            public Document tryNext() {
+                return itr.hasNext() ? itr.next() : null;
+            }
+
+            @Override
+            public ServerCursor getServerCursor() {
+                return null;
+            }
+
+            @Override
+            public ServerAddress getServerAddress() {
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public Document first() throws TxRollback {
+        int limit = this.limit;
+        this.limit = 1;
+        try {
+            List<Document> results = select();
+            return results.isEmpty() ? null : results.get(0);
+        } finally {
+            this.limit = limit;
+        }
+    }
+
+    @Override
+    public FindIterable<Document> limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    @Override
+    public FindIterable<Document> skip(int skip) {
+        this.skip = skip;
+        return this;
+    }
+
+    @Override
+    public FindIterable<Document> sort(Bson sort) {
+        if (sort == null || sort instanceof Document)
+            this.sort = (Document) sort;
+        else
+            this.sort = Document.parse(sort.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry()).toJson());
+        return this;
+    }
+
+    @Override
+    public FindIterable<Document> batchSize(int batchSize) {
+        return this;
+    }
+
+    @Override
+    public <U> MongoIterable<U> map(Function<Document, U> mapper) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void forEach(Block<? super Document> block) {
+        for (Document doc : select())
+            block.apply(doc);
+    }
+
+    @Override
+    public <A extends Collection<? super Document>> A into(A target) {
+        target.addAll(select());
+        return target;
+    }
+
+    @Override
+    public FindIterable<Document> filter(Bson filter) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> maxTime(long maxTime, TimeUnit timeUnit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> modifiers(Bson modifiers) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> projection(Bson projection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> noCursorTimeout(boolean noCursorTimeout) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> oplogReplay(boolean oplogReplay) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> partial(boolean partial) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> cursorType(CursorType cursorType) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> collation(Collation arg0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> comment(String arg0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> hint(Bson arg0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> max(Bson arg0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> maxAwaitTime(long arg0, TimeUnit arg1) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> maxScan(long arg0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> min(Bson arg0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> returnKey(boolean arg0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> showRecordId(boolean arg0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FindIterable<Document> snapshot(boolean arg0) {
+        throw new UnsupportedOperationException();
+    }
+}
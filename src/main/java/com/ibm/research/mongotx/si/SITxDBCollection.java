@@ -0,0 +1,793 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.si;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.ibm.research.mongotx.Tx;
+import com.ibm.research.mongotx.TxBulkWriteResult;
+import com.ibm.research.mongotx.TxCollection;
+import com.ibm.research.mongotx.TxDatabase;
+import com.ibm.research.mongotx.TxRollback;
+import com.ibm.research.mongotx.lrc.QueryMatcher;
+import com.ibm.research.mongotx.lrc.UpdateOperators;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+
+public class SITxDBCollection implements TxCollection, Constants {
+
+    static final String LOCK_TXID = ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_TXID;
+    // the transaction of a lock did not commit at or before the snapshot
+    static final long INVISIBLE = -1L;
+
+    final String name;
+    final SnapshotIsolationTxDB txDB;
+    final MongoCollection<Document> baseCol;
+
+    SITxDBCollection(SnapshotIsolationTxDB txDB, MongoCollection<Document> baseCol, String name) {
+        this.txDB = txDB;
+        this.baseCol = baseCol;
+        this.name = name;
+
+        baseCol.createIndex(new Document(ATTR_VALUE_TS, 1));
+        baseCol.createIndex(new Document(LOCK_TXID, 1));
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public TxDatabase getDB() {
+        return txDB;
+    }
+
+    @Override
+    public MongoCollection<Document> getBaseCollection() {
+        return baseCol;
+    }
+
+    @Override
+    public MongoCollection<Document> getBaseCollection(long accepttedStalenessMS) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public AggregateIterable<Document> aggregate(List<? extends Bson> pipeline, long accepttedStalenessMs) {
+        throw new UnsupportedOperationException();
+    }
+
+    static Long toTimestamp(Object value) {
+        if (value instanceof Date)
+            return ((Date) value).getTime();
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        return null;
+    }
+
+    // documents written outside of transactions are regarded as committed at 0
+    static long getTimestamp(Document version) {
+        Long ts = toTimestamp(version.get(ATTR_VALUE_TS));
+        return ts == null ? 0L : ts;
+    }
+
+    static Document getLock(Document sd2v) {
+        return (Document) sd2v.get(ATTR_VALUE_UNSAFE);
+    }
+
+    static boolean isLockedBy(Document sd2v, String txId) {
+        Document lock = getLock(sd2v);
+        return lock != null && txId.equals(lock.getString(ATTR_VALUE_UNSAFE_TXID));
+    }
+
+    static boolean isRemoved(Document version) {
+        return Boolean.TRUE.equals(version.get(ATTR_VALUE_REMOVED));
+    }
+
+    private static boolean isControlField(String field) {
+        return field.equals(ATTR_ID) || field.equals(ATTR_VALUE_TS) || field.equals(ATTR_VALUE_TXID) || field.equals(ATTR_VALUE_REMOVED)//
+                || field.equals(ATTR_VALUE_VERSIONS) || field.equals(ATTR_VALUE_COMMITS) || field.equals(ATTR_VALUE_UNSAFE);
+    }
+
+    // fields of the latest committed version
+    static Document getData(Document sd2v) {
+        Document ret = new Document();
+        for (Map.Entry<String, Object> field : sd2v.entrySet())
+            if (!isControlField(field.getKey()))
+                ret.put(field.getKey(), field.getValue());
+        return ret;
+    }
+
+    private static Document toData(Document value) {
+        Document ret = new Document(value);
+        ret.remove(ATTR_ID);
+        return ret;
+    }
+
+    // a version is a lock or an entry of the chain. returns null for a removal
+    static Document toUserDocument(Object key, Document version) {
+        if (isRemoved(version))
+            return null;
+        Document ret = new Document(ATTR_ID, key);
+        ret.putAll((Document) version.get(ATTR_VALUE_DATA));
+        return ret;
+    }
+
+    private boolean isExpired(Document lock) {
+        Long timeout = toTimestamp(lock.get(ATTR_LOCK_TIMEOUT));
+        return timeout == null || timeout < txDB.getServerTimeAtLeast();
+    }
+
+    private SITxDBCollection getPrimaryCollection(Document lock) {
+        String colName = ((Document) lock.get(ATTR_LOCK_PRIMARY)).getString(ATTR_PRIMARY_COL);
+        return colName.equals(name) ? this : (SITxDBCollection) txDB.getCollection(colName);
+    }
+
+    private static Object getPrimaryKey(Document lock) {
+        return ((Document) lock.get(ATTR_LOCK_PRIMARY)).get(ATTR_PRIMARY_KEY);
+    }
+
+    // returns the document itself if it is the primary
+    private Document getPrimary(Document sd2v) {
+        Document lock = getLock(sd2v);
+        SITxDBCollection primaryCol = getPrimaryCollection(lock);
+        Object primaryKey = getPrimaryKey(lock);
+        if (primaryCol == this && primaryKey.equals(sd2v.get(ATTR_ID)))
+            return sd2v;
+        return primaryCol.baseCol.find(new Document(ATTR_ID, primaryKey)).first();
+    }
+
+    // a primary document keeps commit timestamps of transactions whose secondary documents may be locked
+    private static Long getCommitTsInPrimary(Document primary, String txId) {
+        Document commits = (Document) primary.get(ATTR_VALUE_COMMITS);
+        if (commits == null)
+            return null;
+        return toTimestamp(commits.get(txId));
+    }
+
+    // returns true if the lock was released because its transaction did not finish in time
+    boolean abortExpiredLock(Object key, String txId) {
+        Document query = new Document(ATTR_ID, key)//
+                .append(LOCK_TXID, txId)//
+                .append(ATTR_VALUE_UNSAFE + "." + ATTR_LOCK_TIMEOUT, new Document("$lt", txDB.getServerTimeAtLeast()));
+        return baseCol.updateOne(query, new Document("$unset", new Document(ATTR_VALUE_UNSAFE, ""))).getModifiedCount() == 1L;
+    }
+
+    // returns the version visible to the transaction. null if the document did not exist at the snapshot
+    Document readVersion(SITx tx, Document sd2v) throws TxRollback {
+        Object key = sd2v.get(ATTR_ID);
+        while (sd2v != null) {
+            Document lock = getLock(sd2v);
+            if (lock != null) {
+                String lockTxId = lock.getString(ATTR_VALUE_UNSAFE_TXID);
+                if (tx.txId.equals(lockTxId))
+                    return toUserDocument(key, lock);
+
+                Long commitTs = getVisibleCommitTs(tx, sd2v);
+                if (commitTs == null) {
+                    // the transaction aborted, or it committed and rolled forward this document after it was read
+                    Document latest = baseCol.find(new Document(ATTR_ID, key)).first();
+                    if (latest == null || !isLockedBy(latest, lockTxId)) {
+                        sd2v = latest;
+                        continue;
+                    }
+                } else if (commitTs != INVISIBLE) {
+                    return toUserDocument(key, lock);
+                }
+            }
+            return getCommittedVersion(tx, sd2v);
+        }
+        return null;
+    }
+
+    // returns INVISIBLE if the transaction of the lock did not commit at or before the snapshot, and null if the primary
+    // does not show that it committed
+    private Long getVisibleCommitTs(SITx tx, Document sd2v) throws TxRollback {
+        String lockTxId = getLock(sd2v).getString(ATTR_VALUE_UNSAFE_TXID);
+        Document primary = getPrimary(sd2v);
+        while (primary != null) {
+            Document primaryLock = getLock(primary);
+            if (primaryLock == null || !lockTxId.equals(primaryLock.getString(ATTR_VALUE_UNSAFE_TXID))) {
+                Long commitTs = getCommitTsInPrimary(primary, lockTxId);
+                if (commitTs == null)
+                    return null;
+                return commitTs <= tx.snapshotTs ? commitTs : INVISIBLE;
+            }
+
+            // a commit timestamp is the server time when the primary is stamped. an unstamped transaction commits after the snapshot
+            Long preparedTs = toTimestamp(primaryLock.get(ATTR_VALUE_TS));
+            if (preparedTs == null || preparedTs > tx.snapshotTs)
+                return INVISIBLE;
+
+            // the decision is about to be made. a crashed transaction is aborted when its lock expires
+            SITxDBCollection primaryCol = getPrimaryCollection(primaryLock);
+            Object primaryKey = primary.get(ATTR_ID);
+            if (!isExpired(primaryLock) || !primaryCol.abortExpiredLock(primaryKey, lockTxId)) {
+                try {
+                    Thread.sleep(PREPARED_WAIT_INTERVAL);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    tx.rollback();
+                    throw new TxRollback("interrupted while waiting for tx=" + lockTxId);
+                }
+            }
+            primary = primaryCol.baseCol.find(new Document(ATTR_ID, primaryKey)).first();
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Document getCommittedVersion(SITx tx, Document sd2v) throws TxRollback {
+        Object key = sd2v.get(ATTR_ID);
+        if (getTimestamp(sd2v) <= tx.snapshotTs) {
+            if (isRemoved(sd2v))
+                return null;
+            Document ret = new Document(ATTR_ID, key);
+            ret.putAll(getData(sd2v));
+            return ret;
+        }
+
+        List<Document> versions = (List<Document>) sd2v.get(ATTR_VALUE_VERSIONS);
+        if (versions == null)
+            return null;
+        for (Document version : versions)
+            if (getTimestamp(version) <= tx.snapshotTs)
+                return toUserDocument(key, version);
+
+        if (versions.size() >= txDB.maxVersions) {
+            tx.rollback();
+            throw new TxRollback("snapshot is too old. col=" + name + ", key=" + key);
+        }
+        return null;
+    }
+
+    // resolves a lock of another transaction for a write. returns false if the transaction is still active
+    private boolean resolveLock(Document sd2v) {
+        Document lock = getLock(sd2v);
+        String lockTxId = lock.getString(ATTR_VALUE_UNSAFE_TXID);
+        Document primary = getPrimary(sd2v);
+        if (primary != null) {
+            Document primaryLock = getLock(primary);
+            if (primaryLock != null && lockTxId.equals(primaryLock.getString(ATTR_VALUE_UNSAFE_TXID))) {
+                if (!isExpired(primaryLock))
+                    return false;
+                if (!getPrimaryCollection(primaryLock).abortExpiredLock(primary.get(ATTR_ID), lockTxId))
+                    return true;
+            } else {
+                Long commitTs = getCommitTsInPrimary(primary, lockTxId);
+                if (commitTs != null) {
+                    rollForward(sd2v, lockTxId, commitTs, false);
+                    return true;
+                }
+            }
+        }
+
+        // aborted. nothing is released if the document was rolled forward after it was read
+        releaseLock(sd2v.get(ATTR_ID), lockTxId, sd2v);
+        return true;
+    }
+
+    // stamps the primary lock with the current server time as the commit timestamp and rolls it forward.
+    // returns the commit timestamp, or null if the lock was lost
+    Long commitPrimary(SITx tx, Object key, boolean keepCommitTs) {
+        Document query = new Document(ATTR_ID, key).append(LOCK_TXID, tx.txId);
+        Document update = new Document("$currentDate", new Document(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_TS, new Document("$type", "date")));
+        Document prepared = baseCol.findOneAndUpdate(query, update, new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        if (prepared == null)
+            return null;
+
+        long commitTs = toTimestamp(getLock(prepared).get(ATTR_VALUE_TS));
+        return rollForward(prepared, tx.txId, commitTs, keepCommitTs) ? commitTs : null;
+    }
+
+    // makes the locked version the latest one and pushes the previous one to the chain
+    boolean rollForward(Document sd2v, String txId, long commitTs, boolean keepCommitTs) {
+        Document lock = getLock(sd2v);
+        Document data = isRemoved(lock) ? new Document() : (Document) lock.get(ATTR_VALUE_DATA);
+
+        Document set = new Document(data);
+        Document unset = new Document(ATTR_VALUE_UNSAFE, "");
+        for (String field : getData(sd2v).keySet())
+            if (!data.containsKey(field))
+                unset.append(field, "");
+        if (isRemoved(lock))
+            set.append(ATTR_VALUE_REMOVED, true);
+        else if (sd2v.containsKey(ATTR_VALUE_REMOVED))
+            unset.append(ATTR_VALUE_REMOVED, "");
+        set.append(ATTR_VALUE_TS, commitTs).append(ATTR_VALUE_TXID, txId);
+        if (keepCommitTs)
+            set.append(ATTR_VALUE_COMMITS + "." + txId, commitTs);
+
+        Document prev = new Document(ATTR_VALUE_TS, getTimestamp(sd2v));
+        if (isRemoved(sd2v))
+            prev.append(ATTR_VALUE_REMOVED, true);
+        else
+            prev.append(ATTR_VALUE_DATA, getData(sd2v));
+        Document push = new Document(ATTR_VALUE_VERSIONS, new Document("$each", Arrays.asList(prev))//
+                .append("$position", 0)//
+                .append("$slice", txDB.maxVersions));
+
+        Document update = new Document("$set", set).append("$unset", unset).append("$push", push);
+        return baseCol.updateOne(new Document(ATTR_ID, sd2v.get(ATTR_ID)).append(LOCK_TXID, txId), update).getModifiedCount() == 1L;
+    }
+
+    void removeCommitTs(Object key, String txId) {
+        baseCol.updateOne(new Document(ATTR_ID, key), new Document("$unset", new Document(ATTR_VALUE_COMMITS + "." + txId, "")));
+    }
+
+    // a document created by the lock is removed
+    void releaseLock(Object key, String txId, Document sd2v) {
+        Document query = new Document(ATTR_ID, key).append(LOCK_TXID, txId);
+        if (sd2v != null && Boolean.TRUE.equals(getLock(sd2v).get(ATTR_VALUE_UNSAFE_INSERT)))
+            baseCol.deleteOne(query.append(ATTR_VALUE_UNSAFE + "." + ATTR_VALUE_UNSAFE_INSERT, true));
+        else
+            baseCol.updateOne(query, new Document("$unset", new Document(ATTR_VALUE_UNSAFE, "")));
+    }
+
+    private static boolean matches(Document userQuery, Document doc) {
+        if (userQuery == null)
+            return true;
+        if (!QueryMatcher.isSupported(userQuery))
+            throw new UnsupportedOperationException("query is not supported: " + userQuery);
+        return QueryMatcher.matches(userQuery, doc);
+    }
+
+    private static Document setData(Document lock, Document newValue) {
+        lock.remove(ATTR_VALUE_DATA);
+        lock.remove(ATTR_VALUE_REMOVED);
+        if (newValue == null)
+            return lock.append(ATTR_VALUE_REMOVED, true);
+        else
+            return lock.append(ATTR_VALUE_DATA, toData(newValue));
+    }
+
+    // update operators are evaluated against the version that the transaction overwrites
+    private static Document evaluate(Document prev, Document newValue) {
+        if (newValue == null || !UpdateOperators.isUpdate(newValue))
+            return newValue;
+        return UpdateOperators.apply(prev, newValue);
+    }
+
+    // locks the document and returns the number of written documents. newValue is null for a removal
+    private int write(SITx tx, Object key, Document newValue, Document userQuery, boolean insert) throws TxRollback {
+        tx.checkActive();
+        tx.checkWritable();
+
+        Document own = tx.getWrite(this, key);
+        if (own != null) {
+            Document prev = toUserDocument(key, getLock(own));
+            if (insert && prev != null) {
+                tx.rollback();
+                throw new TxRollback("insert error: already exist. col=" + name + ", key=" + key);
+            }
+            if (!insert && (prev == null || !matches(userQuery, prev)))
+                return 0;
+
+            Document newLock = setData(new Document(getLock(own)), insert ? newValue : evaluate(prev, newValue));
+            Document query = new Document(ATTR_ID, key).append(LOCK_TXID, tx.txId);
+            if (baseCol.updateOne(query, new Document("$set", new Document(ATTR_VALUE_UNSAFE, newLock))).getModifiedCount() != 1L) {
+                tx.rollback();
+                throw new TxRollback("conflict. col=" + name + ", key=" + key);
+            }
+            tx.putWrite(this, key, new Document(own).append(ATTR_VALUE_UNSAFE, newLock));
+            return 1;
+        }
+
+        while (true) {
+            Document sd2v = baseCol.find(new Document(ATTR_ID, key)).first();
+            if (sd2v == null) {
+                if (!insert)
+                    return 0;
+                Document lock = setData(tx.createLock(this, key), newValue).append(ATTR_VALUE_UNSAFE_INSERT, true);
+                Document placeholder = new Document(ATTR_ID, key)//
+                        .append(ATTR_VALUE_REMOVED, true)//
+                        .append(ATTR_VALUE_UNSAFE, lock);
+                try {
+                    baseCol.insertOne(placeholder);
+                } catch (MongoWriteException ex) {
+                    if (ex.getCode() == 11000)
+                        continue;
+                    tx.rollback();
+                    throw new TxRollback("insert error: " + ex.getMessage(), ex);
+                }
+                tx.putWrite(this, key, placeholder);
+                return 1;
+            }
+
+            if (getLock(sd2v) != null) {
+                if (!resolveLock(sd2v)) {
+                    tx.rollback();
+                    throw new TxRollback("conflict. col=" + name + ", key=" + key);
+                }
+                continue;
+            }
+
+            // the first committer wins
+            if (getTimestamp(sd2v) > tx.snapshotTs) {
+                tx.rollback();
+                throw new TxRollback("conflict. committed after the snapshot. col=" + name + ", key=" + key);
+            }
+
+            Document prev = getCommittedVersion(tx, sd2v);
+            if (insert && prev != null) {
+                tx.rollback();
+                throw new TxRollback("insert error: already exist. col=" + name + ", key=" + key);
+            }
+            if (!insert && (prev == null || !matches(userQuery, prev)))
+                return 0;
+
+            Document lock = setData(tx.createLock(this, key), insert ? newValue : evaluate(prev, newValue));
+            Document query = new Document(ATTR_ID, key)//
+                    .append(ATTR_VALUE_UNSAFE, new Document("$exists", false))//
+                    .append(ATTR_VALUE_TS, sd2v.containsKey(ATTR_VALUE_TS) ? sd2v.get(ATTR_VALUE_TS) : new Document("$exists", false));
+            if (baseCol.updateOne(query, new Document("$set", new Document(ATTR_VALUE_UNSAFE, lock))).getModifiedCount() == 1L) {
+                tx.putWrite(this, key, sd2v.append(ATTR_VALUE_UNSAFE, lock));
+                return 1;
+            }
+        }
+    }
+
+    Document findOne(SITx tx, Object key) throws TxRollback {
+        Document own = tx.getWrite(this, key);
+        if (own != null)
+            return toUserDocument(key, getLock(own));
+        Document sd2v = baseCol.find(new Document(ATTR_ID, key)).first();
+        return sd2v == null ? null : readVersion(tx, sd2v);
+    }
+
+    // documents that may be visible are those matching the query in their latest versions, committed after the snapshot, or locked
+    List<Document> select(SITx tx, Document query, int limit) throws TxRollback {
+        tx.checkActive();
+        if (!QueryMatcher.isSupported(query))
+            throw new UnsupportedOperationException("query is not supported: " + query);
+
+        List<Document> results = new ArrayList<>();
+        if (query.size() == 1 && query.containsKey(ATTR_ID) && !(query.get(ATTR_ID) instanceof Document)) {
+            Document doc = findOne(tx, query.get(ATTR_ID));
+            if (doc != null)
+                results.add(doc);
+            return results;
+        }
+
+        Document serverQuery = new Document("$or", Arrays.asList(query, //
+                new Document(ATTR_VALUE_TS, new Document("$gt", tx.snapshotTs)), //
+                new Document(LOCK_TXID, new Document("$exists", true))));
+        if (query.containsKey(ATTR_ID))
+            serverQuery.append(ATTR_ID, query.get(ATTR_ID));
+
+        for (Document sd2v : baseCol.find(serverQuery)) {
+            Document version = readVersion(tx, sd2v);
+            if (version == null || !QueryMatcher.matches(query, version))
+                continue;
+            results.add(version);
+            if (limit > 0 && results.size() >= limit)
+                break;
+        }
+        return results;
+    }
+
+    @Override
+    public FindIterable<Document> find(Tx tx, Document filter, boolean forUpdate) throws TxRollback {
+        // conflicting writes are detected when the documents are written
+        return new SITxCursor((SITx) tx, this, filter);
+    }
+
+    @Override
+    public FindIterable<Document> find(Tx tx, Document filter) throws TxRollback {
+        return find(tx, filter, false);
+    }
+
+    @Override
+    public List<Document> findByIds(Tx tx_, Collection<?> ids, boolean forUpdate) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            tx.checkActive();
+            Map<Object, Document> found = new HashMap<>();
+            List<Object> remoteIds = new ArrayList<>();
+            for (Object id : ids) {
+                Document own = tx.getWrite(this, id);
+                if (own != null)
+                    found.put(id, toUserDocument(id, getLock(own)));
+                else
+                    remoteIds.add(id);
+            }
+
+            if (!remoteIds.isEmpty())
+                for (Document sd2v : baseCol.find(new Document(ATTR_ID, new Document("$in", remoteIds))))
+                    found.put(sd2v.get(ATTR_ID), readVersion(tx, sd2v));
+
+            List<Document> results = new ArrayList<>();
+            for (Object id : ids) {
+                Document doc = found.get(id);
+                if (doc != null)
+                    results.add(doc);
+            }
+            return results;
+        }
+    }
+
+    @Override
+    public List<Document> findByIds(Tx tx, Collection<?> ids) throws TxRollback {
+        return findByIds(tx, ids, false);
+    }
+
+    // versions in a snapshot can not be matched by a server query, so documents are counted on the client
+    @Override
+    public long count(Tx tx_, Document filter) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            return select(tx, filter, 0).size();
+        }
+    }
+
+    @Override
+    public boolean exists(Tx tx_, Document filter) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            return !select(tx, filter, 1).isEmpty();
+        }
+    }
+
+    // the snapshot version is written unchanged to take the lock of the document
+    @Override
+    public Document findOneForUpdate(Tx tx_, Document filter) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            for (Document tgt : select(tx, filter, 1))
+                if (write(tx, tgt.get(ATTR_ID), new Document(tgt), null, false) == 1)
+                    return tgt;
+            return null;
+        }
+    }
+
+    @Override
+    public Document findOneAndReplace(Tx tx_, Document filter, Document replacement) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            for (Document tgt : select(tx, filter, 1))
+                if (write(tx, tgt.get(ATTR_ID), replacement, null, false) == 1)
+                    return tgt;
+            return null;
+        }
+    }
+
+    @Override
+    public Document findOneAndDelete(Tx tx_, Document filter) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            for (Document tgt : select(tx, filter, 1))
+                if (write(tx, tgt.get(ATTR_ID), null, null, false) == 1)
+                    return tgt;
+            return null;
+        }
+    }
+
+    @Override
+    public void insertOne(Tx tx_, Document document) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            Object key = document.get(ATTR_ID);
+            if (key == null) {
+                key = new ObjectId();
+                document = new Document(document).append(ATTR_ID, key);
+            }
+            write(tx, key, document, null, true);
+        }
+    }
+
+    @Override
+    public void insertMany(Tx tx_, List<Document> documents) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            for (Document document : documents)
+                insertOne(tx, document);
+        }
+    }
+
+    // each request locks its documents with the methods of a single operation
+    @Override
+    @SuppressWarnings("unchecked")
+    public TxBulkWriteResult bulkWrite(Tx tx_, List<? extends WriteModel<Document>> requests) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            long[] counts = new long[requests.size()];
+            for (int i = 0; i < requests.size(); ++i) {
+                WriteModel<Document> request = requests.get(i);
+                if (request instanceof InsertOneModel) {
+                    insertOne(tx, ((InsertOneModel<Document>) request).getDocument());
+                    counts[i] = 1L;
+                } else if (request instanceof ReplaceOneModel) {
+                    ReplaceOneModel<Document> replace = (ReplaceOneModel<Document>) request;
+                    counts[i] = getCount(replaceOne(tx, toDocument(replace.getFilter()), replace.getReplacement(), replace.getOptions()));
+                } else if (request instanceof UpdateOneModel) {
+                    UpdateOneModel<Document> update = (UpdateOneModel<Document>) request;
+                    counts[i] = getCount(updateOne(tx, toDocument(update.getFilter()), toDocument(update.getUpdate()), update.getOptions()));
+                } else if (request instanceof UpdateManyModel) {
+                    UpdateManyModel<Document> update = (UpdateManyModel<Document>) request;
+                    counts[i] = getCount(updateMany(tx, toDocument(update.getFilter()), toDocument(update.getUpdate()), update.getOptions()));
+                } else if (request instanceof DeleteOneModel) {
+                    counts[i] = deleteOne(tx, toDocument(((DeleteOneModel<Document>) request).getFilter())).getDeletedCount();
+                } else if (request instanceof DeleteManyModel) {
+                    counts[i] = deleteMany(tx, toDocument(((DeleteManyModel<Document>) request).getFilter())).getDeletedCount();
+                } else {
+                    throw new UnsupportedOperationException("write model is not supported: " + request);
+                }
+            }
+            return new TxBulkWriteResult(requests, counts);
+        }
+    }
+
+    // an upserted document is counted as a written one
+    private static long getCount(UpdateResult result) {
+        return result.getModifiedCount() + (result.getUpsertedId() == null ? 0L : 1L);
+    }
+
+    private static Document toDocument(Bson bson) {
+        if (!(bson instanceof Document))
+            throw new UnsupportedOperationException("currently Document class is supportted for a filter and an update.");
+        return (Document) bson;
+    }
+
+    @Override
+    public DeleteResult deleteOne(Tx tx_, Document filter) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            Object key = filter.get(ATTR_ID);
+            if (key != null && !(key instanceof Document))
+                return DeleteResult.acknowledged(write(tx, key, null, filter, false));
+            for (Document tgt : select(tx, filter, 1))
+                return DeleteResult.acknowledged(write(tx, tgt.get(ATTR_ID), null, null, false));
+            return DeleteResult.acknowledged(0L);
+        }
+    }
+
+    @Override
+    public DeleteResult deleteMany(Tx tx_, Document filter) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            Object key = filter.get(ATTR_ID);
+            if (key != null && !(key instanceof Document))
+                return DeleteResult.acknowledged(write(tx, key, null, filter, false));
+            long n = 0L;
+            for (Document tgt : select(tx, filter, 0))
+                n += write(tx, tgt.get(ATTR_ID), null, null, false);
+            return DeleteResult.acknowledged(n);
+        }
+    }
+
+    @Override
+    public UpdateResult updateOne(Tx tx_, Document filter, Document update) throws TxRollback {
+        return replaceOne(tx_, filter, update);
+    }
+
+    @Override
+    public UpdateResult updateMany(Tx tx_, Document filter, Document update) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            Object key = filter.get(ATTR_ID);
+            if (key != null && !(key instanceof Document)) {
+                long n = write(tx, key, update, filter, false);
+                return UpdateResult.acknowledged(n, n, null);
+            }
+            long n = 0L;
+            for (Document tgt : select(tx, filter, 0))
+                n += write(tx, tgt.get(ATTR_ID), update, null, false);
+            return UpdateResult.acknowledged(n, n, null);
+        }
+    }
+
+    @Override
+    public UpdateResult replaceOne(Tx tx_, Document filter, Document replacement) throws TxRollback {
+        SITx tx = (SITx) tx_;
+        synchronized (tx) {
+            Object key = filter.get(ATTR_ID);
+            if (key != null && !(key instanceof Document)) {
+                long n = write(tx, key, replacement, filter, false);
+                return UpdateResult.acknowledged(n, n, null);
+            }
+            for (Document tgt : select(tx, filter, 1)) {
+                long n = write(tx, tgt.get(ATTR_ID), replacement, null, false);
+                return UpdateResult.acknowledged(n, n, null);
+            }
+            return UpdateResult.acknowledged(0L, 0L, null);
+        }
+    }
+
+    @Override
+    public UpdateResult updateOne(Tx tx_, Document filter, Document update, UpdateOptions options) throws TxRollback {
+        if (!options.isUpsert())
+            return updateOne(tx_, filter, update);
+        return upsert((SITx) tx_, filter, update, false);
+    }
+
+    @Override
+    public UpdateResult updateMany(Tx tx_, Document filter, Document update, UpdateOptions options) throws TxRollback {
+        if (!options.isUpsert())
+            return updateMany(tx_, filter, update);
+        return upsert((SITx) tx_, filter, update, true);
+    }
+
+    @Override
+    public UpdateResult replaceOne(Tx tx_, Document filter, Document replacement, UpdateOptions options) throws TxRollback {
+        if (!options.isUpsert())
+            return replaceOne(tx_, filter, replacement);
+        return upsert((SITx) tx_, filter, replacement, false);
+    }
+
+    // the document is inserted in the snapshot of the transaction if no version in the snapshot matches the filter
+    private UpdateResult upsert(SITx tx, Document filter, Document update, boolean multi) throws TxRollback {
+        synchronized (tx) {
+            UpdateResult ret = multi ? updateMany(tx, filter, update) : replaceOne(tx, filter, update);
+            if (ret.getMatchedCount() > 0L)
+                return ret;
+
+            Document upserted = UpdateOperators.upsert(filter, update);
+            Object key = upserted.get(ATTR_ID);
+            if (key == null) {
+                key = new ObjectId();
+                Document withId = new Document(ATTR_ID, key);
+                withId.putAll(upserted);
+                upserted = withId;
+            } else if (!select(tx, new Document(ATTR_ID, key), 1).isEmpty()) {
+                // the key exists, but the filter did not match
+                return ret;
+            }
+            write(tx, key, upserted, null, true);
+            BsonValue upsertedId = new Document(ATTR_ID, key).toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry()).get(ATTR_ID);
+            return UpdateResult.acknowledged(0L, 0L, upsertedId);
+        }
+    }
+
+    // resolves locks that expired before the timestamp in the server time
+    @Override
+    public void flush(long timestamp) {
+        Document query = new Document(ATTR_VALUE_UNSAFE + "." + ATTR_LOCK_TIMEOUT, new Document("$lt", timestamp));
+        for (Document sd2v : baseCol.find(query))
+            resolveLock(sd2v);
+    }
+
+    @Override
+    public void createIndex(Document index) {
+        baseCol.createIndex(index);
+    }
+}
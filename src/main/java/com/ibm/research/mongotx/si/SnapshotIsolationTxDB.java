@@ -0,0 +1,180 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.si;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+import com.ibm.research.mongotx.Tx;
+import com.ibm.research.mongotx.TxCollection;
+import com.ibm.research.mongotx.TxDatabase;
+import com.ibm.research.mongotx.lrc.MongoProfilingCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+
+// transactions read a snapshot at their start time. a document keeps a bounded chain of committed versions stamped with
+// commit timestamps of the server time, and a transaction commits by rolling forward the first document that it wrote.
+// readers neither access _SYS nor abort active writers. collections must not be shared with LatestReadCommittedTxDB.
+public class SnapshotIsolationTxDB implements TxDatabase, Constants {
+
+    final MongoClient client;
+    final MongoDatabase db;
+    final MongoCollection<Document> sysCol;
+    final long clientId;
+    final Map<String, SITxDBCollection> collections = new ConcurrentHashMap<>();
+    final AtomicLong lastTxSN = new AtomicLong();
+    final long timeGapMin;
+    final long timeGapMax;
+    volatile int maxVersions = MAX_VERSIONS;
+    volatile boolean commitWait = true;
+
+    public SnapshotIsolationTxDB(MongoClient client, MongoDatabase db) {
+        this.client = client;
+        this.db = db;
+        this.sysCol = new MongoProfilingCollection(db.getCollection(COL_SYSTEM));
+        this.clientId = incrementAndGetLong(ID_CLIENT);
+
+        getCurrentTimeInServer();
+
+        long requestTs = System.currentTimeMillis();
+        long serverTs = getCurrentTimeInServer();
+        long responseTs = System.currentTimeMillis();
+
+        this.timeGapMin = requestTs - serverTs - MAX_TIMEDIFF;
+        this.timeGapMax = responseTs - serverTs + MAX_TIMEDIFF;
+    }
+
+    // a transaction whose snapshot is older than all the kept versions of a document is rolled back when it reads the document
+    public void setMaxVersions(int maxVersions) {
+        if (maxVersions < 1)
+            throw new IllegalArgumentException("maxVersions must be positive. maxVersions=" + maxVersions);
+        this.maxVersions = maxVersions;
+    }
+
+    public int getMaxVersions() {
+        return maxVersions;
+    }
+
+    // commit() returns after the commit timestamp passes in the server so that transactions that begin later read the commit
+    public void setCommitWait(boolean commitWait) {
+        this.commitWait = commitWait;
+    }
+
+    void awaitServerTime(long timestamp) {
+        if (!commitWait)
+            return;
+        long wait;
+        while ((wait = timestamp - getServerTimeAtLeast()) >= 0L) {
+            try {
+                Thread.sleep(wait + 1L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    long getServerTimeAtMost() {
+        return System.currentTimeMillis() + timeGapMax;
+    }
+
+    long getServerTimeAtLeast() {
+        return System.currentTimeMillis() + timeGapMin;
+    }
+
+    long getCurrentTimeInServer() {
+        Document query = new Document(ATTR_ID, ID_TIME);
+        Document update = new Document("$currentDate", new Document(ATTR_TIME, new Document("$type", "date")));
+        Document doc = sysCol.findOneAndUpdate(query, update, new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER).upsert(true));
+        return doc.getDate(ATTR_TIME).getTime();
+    }
+
+    @Override
+    public long getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public MongoDatabase getDatabase() {
+        return db;
+    }
+
+    @Override
+    public void createCollection(String collectionName) {
+        getCollection(collectionName);
+    }
+
+    @Override
+    public TxCollection getCollection(String name) {
+        SITxDBCollection ret = collections.get(name);
+        if (ret != null)
+            return ret;
+
+        MongoCollection<Document> baseCol = db.getCollection(name);
+        if (baseCol == null)
+            return null;
+        SITxDBCollection siCol = new SITxDBCollection(this, new MongoProfilingCollection(baseCol), name);
+        ret = collections.putIfAbsent(name, siCol);
+        return ret == null ? siCol : ret;
+    }
+
+    String createNewTxId() {
+        return clientId + "-" + lastTxSN.incrementAndGet();
+    }
+
+    @Override
+    public Tx beginTransaction() {
+        return new SITx(this, createNewTxId(), false);
+    }
+
+    // a read-only transaction is not numbered. its id never matches the ids of writers
+    @Override
+    public Tx beginReadOnlyTransaction() {
+        return new SITx(this, clientId + "-0", true);
+    }
+
+    public long incrementAndGetLong(Object key) {
+        return (long) sysCol.findOneAndUpdate(new Document(ATTR_ID, key), UPDATE_SEQ_INCREAMENT, new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER).upsert(true)).get(ATTR_SEQ);
+    }
+
+    @Override
+    public void setInt(Object key, int val) {
+        Document ret = sysCol.findOneAndUpdate(new Document(ATTR_ID, key), new Document("$set", new Document(ATTR_SEQ, val)));
+        if (ret == null)
+            sysCol.insertOne(new Document(ATTR_ID, key).append(ATTR_SEQ, val));
+    }
+
+    @Override
+    public int incrementAndGetInt(Object key) {
+        return (int) sysCol.findOneAndUpdate(new Document(ATTR_ID, key), UPDATE_INTSEQ_INCREAMENT, new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER).upsert(true)).get(ATTR_SEQ);
+    }
+
+    @Override
+    public int incrementAndGetInt(Object key, int delta) {
+        Document increment = new Document("$inc", new Document(ATTR_SEQ, delta));
+        return (int) sysCol.findOneAndUpdate(new Document(ATTR_ID, key), increment, new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER).upsert(true)).get(ATTR_SEQ);
+    }
+
+    @Override
+    public void close() {
+    }
+}
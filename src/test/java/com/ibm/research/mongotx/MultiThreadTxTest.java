@@ -172,4 +172,66 @@ public class MultiThreadTxTest implements Constants {
         Assert.assertTrue(itr.hasNext());
         Assert.assertEquals(incremented.get(), (int) itr.next().get("v"));
     }
+
+    @Test
+    public void testGroupCommitIncrement() throws Exception {
+        MongoDatabase db = client.getDatabase("test");
+        db.createCollection(col1);
+
+        String k = "k";
+        Document v = new Document(ATTR_ID, k).append("v", 0);
+        db.getCollection(col1).insertOne(v);
+
+        final LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+        // the interval is long enough for states of concurrent transactions to be coalesced
+        txDb.enableGroupCommit(5000L, 256);
+
+        int numOfThreads = 8;
+        int numOfLoop = 10;
+
+        AtomicInteger incremented = new AtomicInteger(0);
+
+        Thread[] threads = new Thread[numOfThreads];
+        for (int i = 0; i < numOfThreads; ++i) {
+
+            threads[i] = new Thread() {
+                public void run() {
+
+                    TxCollection col = txDb.getCollection(col1);
+                    for (int i = 0; i < numOfLoop; ++i) {
+                        while (true) {
+                            try {
+                                Tx tx = txDb.beginTransaction();
+                                Document v = findOne(tx, col, k);
+                                Document newV = new Document(v).append("v", (Integer) v.get("v") + 1);
+                                if (col.replaceOne(tx, v, newV).getModifiedCount() != 1L) {
+                                    tx.rollback();
+                                    continue;
+                                }
+                                tx.commit();
+                                incremented.incrementAndGet();
+                                break;
+                            } catch (Exception ex) {
+                            }
+                        }
+
+                    }
+                }
+            };
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        txDb.close();
+
+        Iterator<Document> itr = db.getCollection(col1).find(new BasicDBObject(ATTR_ID, k)).iterator();
+        Assert.assertTrue(itr.hasNext());
+        Assert.assertEquals(numOfThreads * numOfLoop, incremented.get());
+        Assert.assertEquals(incremented.get(), (int) itr.next().get("v"));
+        Assert.assertTrue(txDb.getGroupCommitBatchCount() > 0L);
+        Assert.assertTrue(txDb.getGroupCommitBatchCount() < txDb.getGroupCommitRequestCount());
+    }
 }
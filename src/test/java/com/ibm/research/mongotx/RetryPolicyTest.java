@@ -0,0 +1,56 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testBackoff() throws Exception {
+        RetryPolicy policy = new RetryPolicy("test").backoff(2L, 20L).jitter(0.0);
+
+        Assert.assertEquals(2L, policy.getBackoffMillis(1));
+        Assert.assertEquals(4L, policy.getBackoffMillis(2));
+        Assert.assertEquals(16L, policy.getBackoffMillis(4));
+        Assert.assertEquals(20L, policy.getBackoffMillis(5));
+        Assert.assertEquals(20L, policy.getBackoffMillis(100));
+    }
+
+    @Test
+    public void testJitter() throws Exception {
+        RetryPolicy policy = new RetryPolicy("test").backoff(100L, 100L).jitter(0.5);
+
+        for (int i = 0; i < 1000; ++i) {
+            long backoff = policy.getBackoffMillis(1);
+            Assert.assertTrue(backoff > 50L && backoff <= 100L);
+        }
+    }
+
+    @Test
+    public void testAttempts() throws Exception {
+        RetryPolicy policy = new RetryPolicy("test").maxAttempts(3).backoff(0L, 0L);
+
+        TxRollback rollback = new TxRollback("conflict");
+        Assert.assertTrue(policy.rolledBack(1, rollback));
+        Assert.assertTrue(policy.rolledBack(2, rollback));
+        Assert.assertFalse(policy.rolledBack(3, rollback));
+
+        Assert.assertEquals(3L, policy.getRollbackCount());
+        Assert.assertEquals(1L, policy.getFailureCount());
+    }
+}
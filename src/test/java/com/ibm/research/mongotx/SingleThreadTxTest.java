@@ -15,19 +15,37 @@
  */
 package com.ibm.research.mongotx;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
+import org.bson.BsonString;
 import org.bson.Document;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.ibm.research.mongotx.lrc.ConflictPolicy;
 import com.ibm.research.mongotx.lrc.Constants;
+import com.ibm.research.mongotx.lrc.LRCTx;
 import com.ibm.research.mongotx.lrc.LatestReadCommittedTxDB;
+import com.ibm.research.mongotx.lrc.MongoProfilingCollection;
 import com.mongodb.MongoClient;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
 
 public class SingleThreadTxTest implements Constants {
 
@@ -151,6 +169,186 @@ public class SingleThreadTxTest implements Constants {
         }
     }
 
+    @Test
+    public void testAsyncRollForward() throws Exception {
+        MongoDatabase db = createDB();
+        LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+        txDb.enableAsyncRollForward(2, 16);
+
+        TxCollection col = txDb.getCollection(col1);
+        String k1 = "k1";
+        String k2 = "k2";
+        Document v1 = new Document("f1", "v1").append("f2", "v1").append("_id", k1);
+        Document v2 = new Document("f1", "v2").append("f2", "v2").append("_id", k2);
+
+        {
+            Tx tx = txDb.beginTransaction();
+            col.insertOne(tx, v1);
+            col.insertOne(tx, v2);
+            tx.commit();
+        }
+        {
+            Tx tx = txDb.beginTransaction();
+            Assert.assertEquals(v1, findOne(tx, col, k1));
+            Assert.assertEquals(v2, findOne(tx, col, k2));
+            tx.commit();
+        }
+
+        txDb.close();
+
+        Assert.assertEquals(1L, txDb.getRolledForwardCount());
+        Assert.assertEquals(0, txDb.getRollForwardQueueDepth());
+        Assert.assertFalse(db.getCollection(col1).find(new Document(ATTR_VALUE_UNSAFE, new Document("$exists", true))).iterator().hasNext());
+    }
+
+    @Test
+    public void testCommitAfterAsyncRollForwardClosed() throws Exception {
+        MongoDatabase db = createDB();
+        LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+        txDb.enableAsyncRollForward(2, 16);
+        TxCollection col = txDb.getCollection(col1);
+        txDb.close();
+
+        // the committing thread rolls forward by itself
+        Tx tx = txDb.beginTransaction();
+        col.insertOne(tx, new Document("_id", "k1").append("f1", "v1"));
+        col.insertOne(tx, new Document("_id", "k2").append("f1", "v1"));
+        tx.commit();
+
+        Assert.assertEquals(1L, txDb.getRolledForwardCount());
+        Assert.assertFalse(db.getCollection(col1).find(new Document(ATTR_VALUE_UNSAFE, new Document("$exists", true))).iterator().hasNext());
+        Assert.assertFalse(db.getCollection(COL_SYSTEM).find(new Document(ATTR_TX_STATE, new Document("$exists", true))).iterator().hasNext());
+    }
+
+    @Test
+    public void testOnePhaseCommit() throws Exception {
+        MongoDatabase db = createDB();
+        LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+        txDb.setOnePhaseCommit(true);
+
+        TxCollection col = txDb.getCollection(col1);
+        String k1 = "k1";
+        Document v1 = new Document("f1", "v1").append("f2", "v1").append("_id", k1);
+        Document v2 = new Document("f1", "v2").append("f2", "v2").append("_id", k1);
+        Document v3 = new Document("f1", "v3").append("f2", "v3").append("_id", k1);
+
+        insertOne(db, col1, v1);
+
+        {
+            int sysInserts = MongoProfilingCollection.insertOne.get();
+
+            Tx tx1 = txDb.beginTransaction();
+            Assert.assertEquals(v1, findOne(tx1, col, k1));
+            col.replaceOne(tx1, v1, v2);
+            Assert.assertEquals(v2, findOne(tx1, col, k1));
+            tx1.commit();
+
+            Assert.assertEquals(sysInserts, MongoProfilingCollection.insertOne.get());
+        }
+
+        {
+            Tx tx2 = txDb.beginTransaction();
+            Tx tx3 = txDb.beginTransaction();
+
+            Assert.assertEquals(v2, findOne(tx2, col, k1));
+            col.replaceOne(tx2, new Document(ATTR_ID, k1), v3);
+
+            Assert.assertEquals(v2, findOne(tx3, col, k1));
+            col.deleteOne(tx3, new Document(ATTR_ID, k1));
+            tx3.commit();
+
+            try {
+                tx2.commit();
+                Assert.fail();
+            } catch (TxRollback ex) {
+            }
+        }
+
+        {
+            Tx tx4 = txDb.beginTransaction();
+            Assert.assertNull(findOne(tx4, col, k1));
+            tx4.commit();
+        }
+    }
+
+    @Test
+    public void testTxStateChangeStream() throws Exception {
+        MongoDatabase db = createDB();
+        Assume.assumeTrue("change streams require a replica set", db.runCommand(new Document("isMaster", 1)).containsKey("setName"));
+
+        LatestReadCommittedTxDB writerDb = new LatestReadCommittedTxDB(client, db);
+        LatestReadCommittedTxDB readerDb = new LatestReadCommittedTxDB(client, db);
+        readerDb.enableTxStateChangeStream();
+        for (int i = 0; i < 100 && !readerDb.isTxStateChangeStreamActive(); ++i)
+            Thread.sleep(100L);
+        Assert.assertTrue(readerDb.isTxStateChangeStreamActive());
+
+        String k1 = "k1";
+        Document v1 = new Document("f1", "v1").append("f2", "v1").append("_id", k1);
+        Document v2 = new Document("f1", "v2").append("f2", "v2").append("_id", k1);
+
+        insertOne(db, col1, v1);
+
+        try {
+            long events = readerDb.getTxStateChangeStreamEventCount();
+
+            Tx tx1 = writerDb.beginTransaction();
+            TxCollection writerCol = writerDb.getCollection(col1);
+            Assert.assertEquals(v1, findOne(tx1, writerCol, k1));
+            writerCol.replaceOne(tx1, new Document(ATTR_ID, k1), v2);
+            ((LRCTx) tx1).commit(true);
+
+            // WRITING and COMMITTED
+            for (int i = 0; i < 100 && readerDb.getTxStateChangeStreamEventCount() < events + 2; ++i)
+                Thread.sleep(100L);
+            Assert.assertTrue(readerDb.getTxStateChangeStreamEventCount() >= events + 2);
+
+            long misses = readerDb.getTxStateCacheMissCount();
+            Tx tx2 = readerDb.beginTransaction();
+            Assert.assertEquals(v2, findOne(tx2, readerDb.getCollection(col1), k1));
+            tx2.commit();
+            Assert.assertEquals(misses, readerDb.getTxStateCacheMissCount());
+        } finally {
+            readerDb.close();
+        }
+        Assert.assertFalse(readerDb.isTxStateChangeStreamActive());
+    }
+
+    @Test
+    public void testPartialRollForwardFailure() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("f1", "v1"));
+        insertOne(db, col1, new Document("_id", "k2").append("f1", "v1"));
+        db.getCollection(col1).createIndex(new Document("u", 1), new IndexOptions().unique(true).sparse(true));
+
+        Tx tx1 = txDb.beginTransaction();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k1"), new Document("_id", "k1").append("u", 1));
+        col.replaceOne(tx1, new Document(ATTR_ID, "k2"), new Document("_id", "k2").append("f1", "v2"));
+        String txId = ((Document) db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first().get(ATTR_VALUE_UNSAFE)).getString(ATTR_VALUE_UNSAFE_TXID);
+
+        // the conditional write of k1 fails with a duplicate key while the one of k2 succeeds
+        insertOne(db, col1, new Document("_id", "k3").append("u", 1));
+        tx1.commit();
+
+        Assert.assertNotNull(db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first().get(ATTR_VALUE_UNSAFE));
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k2")).first().get(ATTR_VALUE_UNSAFE));
+        // the tx state is kept for the unfinished document
+        Document txState = db.getCollection(COL_SYSTEM).find(new Document(ATTR_ID, txId)).first();
+        Assert.assertNotNull(txState);
+        Assert.assertEquals(STATE_COMMITTED, txState.getString(ATTR_TX_STATE));
+
+        // a reader repairs k1 with the remaining tx state
+        db.getCollection(col1).deleteOne(new Document(ATTR_ID, "k3"));
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("u", 1), findOne(tx2, col, "k1"));
+        Assert.assertEquals(new Document("_id", "k2").append("f1", "v2"), findOne(tx2, col, "k2"));
+        tx2.commit();
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first().get(ATTR_VALUE_UNSAFE));
+    }
+
     @Test
     public void testRollback() throws Exception {
         MongoDatabase db = createDB();
@@ -214,6 +412,42 @@ public class SingleThreadTxTest implements Constants {
         }
     }
 
+    @Test
+    public void testRollbackUpdatedInsertingValue() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        String k1 = "k1";
+        String k2 = "k2";
+        Document v1 = new Document("f1", "v1").append("f2", "v1").append("_id", k1);
+        Document v1_2 = new Document("f1", "v12").append("f2", "v12").append("_id", k1);
+        Document v2 = new Document("f1", "v2").append("f2", "v2").append("_id", k2);
+        Document v2_2 = new Document("f1", "v22").append("f2", "v22").append("_id", k2);
+
+        insertOne(txDb, col1, v2);
+
+        {
+            Tx tx = txDb.beginTransaction();
+
+            col.insertOne(tx, v1);
+            col.replaceOne(tx, new Document(ATTR_ID, k1), v1_2);
+            col.replaceOne(tx, new Document(ATTR_ID, k2), v2_2);
+            Assert.assertEquals(v1_2, findOne(tx, col, k1));
+            Assert.assertEquals(v2_2, findOne(tx, col, k2));
+
+            tx.rollback();
+        }
+        {
+            Tx tx = txDb.beginTransaction();
+
+            Assert.assertNull(findOne(tx, col, k1));
+            Assert.assertEquals(v2, findOne(tx, col, k2, true));
+
+            tx.commit();
+        }
+    }
+
     @Test
     public void testGetInsertingValue() throws Exception {
         MongoDatabase db = createDB();
@@ -400,6 +634,41 @@ public class SingleThreadTxTest implements Constants {
         }
     }
 
+    @Test
+    public void testReadOnlyTransaction() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        String k1 = "k1";
+        Document v1 = new Document("f1", "v1").append("_id", k1);
+        Document v2 = new Document("f1", "v2").append("_id", k1);
+
+        insertOne(db, col1, v1);
+
+        Tx tx1 = txDb.beginTransaction();
+        tx1.setTimeout(1L);
+        col.replaceOne(tx1, new Document(ATTR_ID, k1), v2);
+        Thread.sleep(MAX_TIMEDIFF * 2 + 10L);
+
+        // the timed-out writer is not aborted by a read-only transaction
+        Tx tx2 = txDb.beginReadOnlyTransaction();
+        Assert.assertEquals(v1, findOne(tx2, col, k1));
+        Assert.assertEquals(Arrays.asList(v1), col.findByIds(tx2, Arrays.asList(k1)));
+        Assert.assertEquals(1, count(col.find(tx2, new Document("f1", "v1"))));
+        try {
+            col.insertOne(tx2, new Document("_id", "k2"));
+            Assert.fail();
+        } catch (IllegalStateException ex) {
+        }
+        tx2.commit();
+        tx1.commit();
+
+        Tx tx3 = txDb.beginReadOnlyTransaction();
+        Assert.assertEquals(v2, findOne(tx3, col, k1));
+        tx3.commit();
+    }
+
     // this test for SI
     //@Test
     public void testGetPartialUpdatedValue() throws Exception {
@@ -670,6 +939,103 @@ public class SingleThreadTxTest implements Constants {
         }
     }
 
+    @Test
+    public void testWaitForConflictingTx() throws Exception {
+        MongoDatabase db = createDB();
+        LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+        ConflictPolicy policy = new ConflictPolicy(5000L, 1L, 50L);
+        txDb.setConflictPolicy(policy);
+
+        TxCollection col = txDb.getCollection(col1);
+        String k1 = "k1";
+        Document v1 = new Document("f1", "v1").append("f2", "v1").append("_id", k1);
+        Document v2 = new Document("f1", "v2").append("f2", "v2").append("_id", k1);
+        Document v3 = new Document("f1", "v3").append("f2", "v3").append("_id", k1);
+
+        insertOne(db, col1, v1);
+
+        final Tx tx1 = txDb.beginTransaction();
+        Assert.assertEquals(v1, findOne(tx1, col, k1));
+        col.replaceOne(tx1, new Document(ATTR_ID, k1), v2);
+
+        Thread committer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException ex) {
+                }
+                tx1.commit();
+            }
+        };
+        committer.start();
+
+        {
+            Tx tx2 = txDb.beginTransaction();
+            Assert.assertEquals(v1, findOne(tx2, col, k1));
+            col.replaceOne(tx2, new Document(ATTR_ID, k1), v3);
+            Assert.assertEquals(v3, findOne(tx2, col, k1));
+            tx2.commit();
+        }
+        committer.join();
+
+        Assert.assertEquals(1L, policy.getWaitCount());
+        Assert.assertEquals(1L, policy.getRetryCount());
+        Assert.assertEquals(0L, policy.getAbortCount());
+
+        {
+            Tx tx3 = txDb.beginTransaction();
+            Assert.assertEquals(v3, findOne(tx3, col, k1));
+            tx3.commit();
+        }
+    }
+
+    @Test
+    public void testRunInTransaction() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        final TxCollection col = txDb.getCollection(col1);
+        final String k1 = "k1";
+        final Document v1 = new Document("f1", "v1").append("f2", "v1").append("_id", k1);
+        final Document v2 = new Document("f1", "v2").append("f2", "v2").append("_id", k1);
+
+        insertOne(db, col1, v1);
+
+        final int[] numOfAttempts = new int[1];
+        RetryPolicy policy = new RetryPolicy("update").maxAttempts(3).backoff(1L, 10L);
+
+        Document ret = txDb.runInTransaction(tx -> {
+            col.replaceOne(tx, new Document(ATTR_ID, k1), v2);
+            if (++numOfAttempts[0] == 1)
+                throw new TxRollback("retry");
+            return findOne(tx, col, k1);
+        }, policy);
+
+        Assert.assertEquals(v2, ret);
+        Assert.assertEquals(2, numOfAttempts[0]);
+        Assert.assertEquals(1L, policy.getCallCount());
+        Assert.assertEquals(2L, policy.getAttemptCount());
+        Assert.assertEquals(1L, policy.getRollbackCount());
+        Assert.assertEquals(0L, policy.getFailureCount());
+
+        try {
+            txDb.runInTransaction(tx -> {
+                col.replaceOne(tx, new Document(ATTR_ID, k1), v1);
+                throw new TxRollback("always");
+            }, policy);
+            Assert.fail();
+        } catch (TxRollback ex) {
+        }
+        Assert.assertEquals(1L, policy.getFailureCount());
+
+        {
+            Tx tx = txDb.beginTransaction();
+            Assert.assertEquals(v2, findOne(tx, col, k1));
+            tx.commit();
+        }
+    }
+
     @Test
     public void testInsertTimeoutedInsertingValue() throws Exception {
         MongoDatabase db = createDB();
@@ -1135,6 +1501,736 @@ public class SingleThreadTxTest implements Constants {
         }
     }
     
+    @Test
+    public void testStreamingQuery() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        for (int i = 0; i < 10; ++i)
+            insertOne(db, col1, new Document("_id", "k" + i).append("f1", "v1"));
+
+        {
+            Tx tx1 = txDb.beginTransaction();
+            Tx tx2 = txDb.beginTransaction();
+
+            col.replaceOne(tx1, new Document(ATTR_ID, "k0"), new Document("_id", "k0").append("f1", "v2"));
+            col.replaceOne(tx2, new Document(ATTR_ID, "k1"), new Document("_id", "k1").append("f1", "v2"));
+            ((LRCTx) tx2).commit(true);
+
+            int numOfResults = 0;
+            MongoCursor<Document> c1 = col.find(tx1, new Document("f1", "v1")).batchSize(3).iterator();
+            while (c1.hasNext()) {
+                Document doc = c1.next();
+                Assert.assertEquals("v1", doc.get("f1"));
+                Assert.assertNotEquals("k0", doc.get(ATTR_ID));
+                Assert.assertNotEquals("k1", doc.get(ATTR_ID));
+                ++numOfResults;
+            }
+            Assert.assertEquals(8, numOfResults);
+
+            numOfResults = 0;
+            MongoCursor<Document> c2 = col.find(tx1, new Document("f1", "v2")).iterator();
+            while (c2.hasNext()) {
+                c2.next();
+                ++numOfResults;
+            }
+            Assert.assertEquals(2, numOfResults);
+
+            MongoCursor<Document> c3 = col.find(tx1, new Document("f1", "v1")).limit(3).iterator();
+            for (int i = 0; i < 3; ++i)
+                Assert.assertTrue(c3.hasNext() && c3.next() != null);
+            Assert.assertFalse(c3.hasNext());
+            c3.close();
+
+            tx1.commit();
+        }
+    }
+
+    @Test
+    public void testCombinedQuery() throws Exception {
+        MongoDatabase db = createDB();
+        LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+
+        TxCollection col = txDb.getCollection(col1);
+        for (int i = 0; i < 10; ++i)
+            insertOne(db, col1, new Document("_id", "k" + i).append("f1", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        Tx tx2 = txDb.beginTransaction();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k0"), new Document("_id", "k0").append("f1", "v2"));
+        col.replaceOne(tx2, new Document(ATTR_ID, "k1"), new Document("_id", "k1").append("f1", "v2"));
+        col.replaceOne(tx2, new Document(ATTR_ID, "k2"), new Document("_id", "k2").append("f1", "v2"));
+        ((LRCTx) tx2).commit(true);
+
+        Tx tx3 = txDb.beginTransaction();
+        col.replaceOne(tx3, new Document(ATTR_ID, "k3"), new Document("_id", "k3").append("f1", "v2"));
+
+        // concretes committed documents
+        Assert.assertEquals(7, count(col.find(tx1, new Document("f1", "v1"))));
+
+        int twoQueryFinds = MongoProfilingCollection.find.get();
+        Assert.assertEquals(7, count(col.find(tx1, new Document("f1", "v1"))));
+        twoQueryFinds = MongoProfilingCollection.find.get() - twoQueryFinds;
+
+        txDb.setCombinedQuery(true);
+
+        int combinedFinds = MongoProfilingCollection.find.get();
+        Assert.assertEquals(7, count(col.find(tx1, new Document("f1", "v1"))));
+        combinedFinds = MongoProfilingCollection.find.get() - combinedFinds;
+
+        Assert.assertEquals(2, twoQueryFinds);
+        Assert.assertEquals(1, combinedFinds);
+
+        Assert.assertEquals(3, count(col.find(tx1, new Document("f1", new Document("$in", Arrays.asList("v2", "v3"))))));
+        Assert.assertEquals(10, count(col.find(tx1, new Document())));
+
+        tx1.commit();
+        tx3.rollback();
+    }
+
+    @Test
+    public void testLocalOverlay() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        for (int i = 0; i < 5; ++i)
+            insertOne(db, col1, new Document("_id", "k" + i).append("f1", "v" + i).append("f2", Arrays.asList("a", "b")));
+
+        Tx tx1 = txDb.beginTransaction();
+        Tx tx2 = txDb.beginTransaction();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k0"), new Document("_id", "k0").append("f1", "v9").append("f2", Arrays.asList("c")));
+        col.insertOne(tx1, new Document("_id", "k5").append("f1", "v5").append("f2", Arrays.asList("a")));
+        col.deleteOne(tx1, new Document(ATTR_ID, "k1"));
+        col.replaceOne(tx2, new Document(ATTR_ID, "k2"), new Document("_id", "k2").append("f1", "v9").append("f2", Arrays.asList("c")));
+        ((LRCTx) tx2).commit(true);
+
+        Document query = new Document("$or", Arrays.asList(new Document("f1", "v9"), new Document("f2", new Document("$nin", Arrays.asList("b")))));
+        Set<Object> keys = new HashSet<>();
+        for (Document doc : col.find(tx1, query))
+            keys.add(doc.get(ATTR_ID));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("k0", "k2", "k5")), keys);
+
+        keys.clear();
+        for (Document doc : col.find(tx1, new Document("$and", Arrays.asList(new Document("f2", "a"), new Document("_id", new Document("$in", Arrays.asList("k1", "k3", "k5")))))))
+            keys.add(doc.get(ATTR_ID));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("k3", "k5")), keys);
+
+        tx1.commit();
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        String k1 = "k1";
+        String k2 = "k2";
+        Document v1 = new Document("_id", k1).append("f1", "v1").append("f2", "v1").append("f3", "v1");
+        Document v2 = new Document("_id", k2).append("f1", "v1").append("f2", "v1").append("f3", "v1");
+
+        insertOne(db, col1, v1);
+        insertOne(db, col1, v2);
+
+        {
+            Tx tx1 = txDb.beginTransaction();
+            Tx tx2 = txDb.beginTransaction();
+
+            col.replaceOne(tx1, new Document(ATTR_ID, k1), new Document("_id", k1).append("f1", "v1").append("f2", "v2").append("f3", "v2"));
+            col.replaceOne(tx2, new Document(ATTR_ID, k2), new Document("_id", k2).append("f1", "v1").append("f2", "v3").append("f3", "v3"));
+            ((LRCTx) tx2).commit(true);
+
+            MongoCursor<Document> c1 = col.find(tx1, new Document("f1", "v1")).projection(new Document("f2", 1)).iterator();
+            Assert.assertEquals(new Document("_id", k1).append("f2", "v2"), c1.next());
+            Assert.assertEquals(new Document("_id", k2).append("f2", "v3"), c1.next());
+            Assert.assertFalse(c1.hasNext());
+
+            Document d1 = col.find(tx1, new Document("f2", "v3")).projection(new Document("f3", 1).append("_id", 0)).first();
+            Assert.assertEquals(new Document("f3", "v3"), d1);
+
+            Document d2 = col.find(tx1, new Document("f1", "v1"), true).projection(new Document("f3", 0)).first();
+            Assert.assertFalse(d2.containsKey("f3"));
+            Assert.assertTrue(d2.containsKey("f2"));
+
+            tx1.commit();
+        }
+
+        {
+            Tx tx3 = txDb.beginTransaction();
+            Assert.assertEquals(new Document("_id", k2).append("f1", "v1").append("f2", "v3").append("f3", "v3"), findOne(tx3, col, k2));
+            tx3.commit();
+        }
+    }
+
+    @Test
+    public void testSortSkipLimit() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        for (int i = 0; i < 10; ++i)
+            insertOne(db, col1, new Document("_id", "k" + i).append("f1", "v1").append("f2", i));
+
+        Tx tx1 = txDb.beginTransaction();
+        Tx tx2 = txDb.beginTransaction();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k5"), new Document("_id", "k5").append("f1", "v1").append("f2", 100));
+        col.replaceOne(tx2, new Document(ATTR_ID, "k3"), new Document("_id", "k3").append("f1", "v1").append("f2", -1));
+        ((LRCTx) tx2).commit(true);
+
+        MongoCursor<Document> c1 = col.find(tx1, new Document("f1", "v1")).sort(new Document("f2", 1)).skip(1).limit(3).iterator();
+        Assert.assertEquals("k0", c1.next().get(ATTR_ID));
+        Assert.assertEquals("k1", c1.next().get(ATTR_ID));
+        Assert.assertEquals("k2", c1.next().get(ATTR_ID));
+        Assert.assertFalse(c1.hasNext());
+
+        MongoCursor<Document> c2 = col.find(tx1, new Document("f1", "v1")).sort(new Document("f2", -1)).limit(2).iterator();
+        Assert.assertEquals("k5", c2.next().get(ATTR_ID));
+        Assert.assertEquals("k9", c2.next().get(ATTR_ID));
+        Assert.assertFalse(c2.hasNext());
+
+        Document first = col.find(tx1, new Document("f1", "v1")).sort(new Document("f2", 1)).first();
+        Assert.assertEquals("k3", first.get(ATTR_ID));
+
+        tx1.commit();
+    }
+
+    @Test
+    public void testResolveTxStatesPerBatch() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        for (int i = 0; i < 6; ++i)
+            insertOne(db, col1, new Document("_id", "k" + i).append("f1", "v1"));
+
+        // unsafe versions of six active transactions
+        List<Tx> writers = new ArrayList<>();
+        for (int i = 0; i < 6; ++i) {
+            Tx writer = txDb.beginTransaction();
+            col.replaceOne(writer, new Document(ATTR_ID, "k" + i), new Document("_id", "k" + i).append("f1", "v2"));
+            writers.add(writer);
+        }
+
+        Tx reader = txDb.beginReadOnlyTransaction();
+        int finds = MongoProfilingCollection.find.get();
+        MongoCursor<Document> c1 = col.find(reader, new Document("f1", "v2")).batchSize(3).iterator();
+        Assert.assertFalse(c1.hasNext());
+        // the unsafe and safe cursors, and one lookup of _SYS for each of the two batches of unsafe versions
+        Assert.assertEquals(2 + 2, MongoProfilingCollection.find.get() - finds);
+        reader.commit();
+
+        for (Tx writer : writers)
+            writer.commit();
+    }
+
+    @Test
+    public void testSortWithCommitBetweenPhases() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        for (int i = 0; i < 6; ++i)
+            insertOne(db, col1, new Document("_id", "k" + i).append("f1", "v1").append("f2", i));
+
+        Tx writer = txDb.beginTransaction();
+        col.replaceOne(writer, new Document(ATTR_ID, "k4"), new Document("_id", "k4").append("f1", "v1").append("f2", -1));
+
+        // the unsafe cursor passes k4 while the writer is active
+        Tx reader = txDb.beginReadOnlyTransaction();
+        MongoCursor<Document> c1 = col.find(reader, new Document("f1", "v1")).sort(new Document("f2", 1)).batchSize(2).iterator();
+        Assert.assertEquals("k0", c1.next().get(ATTR_ID));
+
+        // the safe cursor reads k4 after the commit. its latest version sorts before the returned documents
+        ((LRCTx) writer).commit(true);
+
+        int prev = 0;
+        List<Object> keys = new ArrayList<>();
+        keys.add("k0");
+        while (c1.hasNext()) {
+            Document doc = c1.next();
+            Assert.assertTrue(prev <= doc.getInteger("f2"));
+            prev = doc.getInteger("f2");
+            keys.add(doc.get(ATTR_ID));
+        }
+        Assert.assertEquals(Arrays.asList("k0", "k1", "k2", "k3", "k4", "k5"), keys);
+        reader.commit();
+
+        Tx tx = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k4").append("f1", "v1").append("f2", -1), findOne(tx, col, "k4"));
+        tx.commit();
+    }
+
+    @Test
+    public void testFindByIds() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        for (int i = 0; i < 5; ++i)
+            insertOne(db, col1, new Document("_id", "k" + i).append("f1", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        Tx tx2 = txDb.beginTransaction();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k1"), new Document("_id", "k1").append("f1", "v2"));
+        col.deleteOne(tx1, new Document(ATTR_ID, "k2"));
+        col.replaceOne(tx2, new Document(ATTR_ID, "k3"), new Document("_id", "k3").append("f1", "v2"));
+        ((LRCTx) tx2).commit(true);
+        Assert.assertEquals(new Document("_id", "k4").append("f1", "v1"), findOne(tx1, col, "k4"));
+
+        int finds = MongoProfilingCollection.find.get();
+        List<Document> docs = col.findByIds(tx1, Arrays.asList("k4", "k3", "k2", "k1", "k0", "k9"));
+        Assert.assertEquals(1, MongoProfilingCollection.find.get() - finds);
+
+        Assert.assertEquals(Arrays.asList(//
+                new Document("_id", "k4").append("f1", "v1"), //
+                new Document("_id", "k3").append("f1", "v2"), //
+                new Document("_id", "k1").append("f1", "v2"), //
+                new Document("_id", "k0").append("f1", "v1")), docs);
+
+        tx1.commit();
+    }
+
+    @Test
+    public void testDocumentCache() throws Exception {
+        MongoDatabase db = createDB();
+        LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+        txDb.setDocumentCache(1024);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("f1", "v1"));
+        insertOne(db, col1, new Document("_id", "k2").append("f1", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("f1", "v1"), findOne(tx1, col, "k1"));
+        tx1.commit();
+
+        int finds = MongoProfilingCollection.find.get();
+        Tx tx2 = txDb.beginReadOnlyTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("f1", "v1"), findOne(tx2, col, "k1"));
+        Assert.assertEquals(Arrays.asList(new Document("_id", "k1").append("f1", "v1"), new Document("_id", "k2").append("f1", "v1")), //
+                col.findByIds(tx2, Arrays.asList("k1", "k2")));
+        Assert.assertEquals(1, MongoProfilingCollection.find.get() - finds);
+        tx2.commit();
+        Assert.assertEquals(2L, txDb.getDocumentCacheHitCount());
+        Assert.assertEquals(2L, txDb.getDocumentCacheMissCount());
+
+        // own commits invalidate the cache
+        Tx tx3 = txDb.beginTransaction();
+        col.replaceOne(tx3, new Document(ATTR_ID, "k1"), new Document("_id", "k1").append("f1", "v2"));
+        col.deleteOne(tx3, new Document(ATTR_ID, "k2"));
+        tx3.commit();
+
+        Tx tx4 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("f1", "v2"), findOne(tx4, col, "k1"));
+        Assert.assertNull(findOne(tx4, col, "k2"));
+        tx4.commit();
+    }
+
+    @Test
+    public void testCountAndExists() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        for (int i = 0; i < 10; ++i)
+            insertOne(db, col1, new Document("_id", "k" + i).append("f1", i % 2 == 0 ? "even" : "odd"));
+
+        Tx tx1 = txDb.beginTransaction();
+        Tx tx2 = txDb.beginTransaction();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k0"), new Document("_id", "k0").append("f1", "odd"));
+        col.deleteOne(tx1, new Document(ATTR_ID, "k2"));
+        col.insertOne(tx1, new Document("_id", "k10").append("f1", "even"));
+        col.replaceOne(tx2, new Document(ATTR_ID, "k1"), new Document("_id", "k1").append("f1", "even"));
+        ((LRCTx) tx2).commit(true);
+
+        int finds = MongoProfilingCollection.find.get();
+        Assert.assertEquals(5L, col.count(tx1, new Document("f1", "even")));
+        Assert.assertEquals(1, MongoProfilingCollection.find.get() - finds);
+        Assert.assertEquals(5L, col.count(tx1, new Document("f1", "odd")));
+        Assert.assertEquals(10L, col.count(tx1, new Document()));
+        Assert.assertTrue(col.exists(tx1, new Document("f1", "even")));
+        Assert.assertFalse(col.exists(tx1, new Document("f1", "none")));
+        tx1.commit();
+
+        Tx tx3 = txDb.beginReadOnlyTransaction();
+        Assert.assertEquals(5L, col.count(tx3, new Document("f1", "even")));
+        Assert.assertEquals(1L, col.count(tx3, new Document("f1", "even").append("_id", new Document("$in", Arrays.asList("k1", "k2", "k3")))));
+        tx3.commit();
+    }
+
+    @Test
+    public void testUpdateOperators() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("balance", 100).append("f1", "v1"));
+        insertOne(db, col1, new Document("_id", "k2").append("balance", 200).append("f1", "v1"));
+        insertOne(db, col1, new Document("_id", "k3").append("balance", 300).append("f1", "v2"));
+
+        Tx tx1 = txDb.beginTransaction();
+        Assert.assertEquals(1L, col.updateOne(tx1, new Document(ATTR_ID, "k1"), new Document("$inc", new Document("balance", -30))).getModifiedCount());
+        // own uncommitted writes are updated
+        col.updateOne(tx1, new Document(ATTR_ID, "k1"), new Document("$inc", new Document("balance", -20))//
+                .append("$set", new Document("f2", "v2"))//
+                .append("$unset", new Document("f1", ""))//
+                .append("$push", new Document("history", -50)));
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 50).append("f2", "v2").append("history", Arrays.asList(-50)), findOne(tx1, col, "k1"));
+        Assert.assertEquals(1L, col.updateMany(tx1, new Document("f1", "v1").append("balance", new Document("$gte", 0)), new Document("$inc", new Document("balance", 1))).getModifiedCount());
+        Assert.assertEquals(0L, col.updateOne(tx1, new Document(ATTR_ID, "k4"), new Document("$inc", new Document("balance", 1))).getModifiedCount());
+        tx1.commit();
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 50).append("f2", "v2").append("history", Arrays.asList(-50)), findOne(tx2, col, "k1"));
+        Assert.assertEquals(new Document("_id", "k2").append("balance", 201).append("f1", "v1"), findOne(tx2, col, "k2"));
+        Assert.assertEquals(new Document("_id", "k3").append("balance", 300).append("f1", "v2"), findOne(tx2, col, "k3"));
+        tx2.commit();
+    }
+
+    @Test
+    public void testDeltaUnsafe() throws Exception {
+        MongoDatabase db = createDB();
+        LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+        txDb.setDeltaUnsafe(true);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("f1", "v1").append("f2", "v1").append("f3", "v1"));
+        insertOne(db, col1, new Document("_id", "k2").append("f1", "v1").append("f2", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k1"), new Document("_id", "k1").append("f1", "v1").append("f2", "v2"));
+        col.updateOne(tx1, new Document(ATTR_ID, "k2"), new Document("$set", new Document("f2", "v2")));
+
+        // only changed fields and removed fields are written
+        Document unsafe = (Document) db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first().get(ATTR_VALUE_UNSAFE);
+        Assert.assertEquals(new Document("f2", "v2").append(ATTR_VALUE_UNSAFE_DELTA, Arrays.asList("f3")).append(ATTR_VALUE_UNSAFE_TXID, unsafe.get(ATTR_VALUE_UNSAFE_TXID)), unsafe);
+
+        Assert.assertEquals(new Document("_id", "k1").append("f1", "v1").append("f2", "v2"), findOne(tx1, col, "k1"));
+        // unchanged fields of deltas are matched
+        Assert.assertEquals(2, count(col.find(tx1, new Document("f1", "v1").append("f2", "v2"))));
+        Assert.assertEquals(0, count(col.find(tx1, new Document("f3", "v1"))));
+        Assert.assertEquals(1L, col.updateOne(tx1, new Document(ATTR_ID, "k2").append("f1", "v1"), new Document("$set", new Document("f3", "v3"))).getModifiedCount());
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("f1", "v1").append("f2", "v1").append("f3", "v1"), findOne(tx2, col, "k1"));
+        Assert.assertEquals(0, count(col.find(tx2, new Document("f2", "v2"))));
+        tx2.commit();
+
+        tx1.commit();
+
+        Document k1 = db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first();
+        Assert.assertNull(k1.get(ATTR_VALUE_UNSAFE));
+        Assert.assertEquals(unsafe.get(ATTR_VALUE_UNSAFE_TXID), k1.get(ATTR_VALUE_TXID));
+        Assert.assertFalse(k1.containsKey("f3"));
+
+        Tx tx3 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k2").append("f1", "v1").append("f2", "v2").append("f3", "v3"), findOne(tx3, col, "k2"));
+        Assert.assertEquals(2, count(col.find(tx3, new Document("f2", "v2"))));
+        tx3.commit();
+    }
+
+    @Test
+    public void testInsertMany() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        List<Document> values = new ArrayList<>();
+        for (int i = 0; i < 5; ++i)
+            values.add(new Document("_id", "k" + i).append("f1", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        col.insertMany(tx1, values);
+        Assert.assertEquals(5, count(col.find(tx1, new Document("f1", "v1"))));
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertNull(findOne(tx2, col, "k0"));
+        tx2.commit();
+
+        tx1.commit();
+
+        Tx tx3 = txDb.beginTransaction();
+        Assert.assertEquals(5, count(col.find(tx3, new Document("f1", "v1"))));
+        col.insertMany(tx3, Arrays.asList(new Document("_id", "k5").append("f1", "v2"), new Document("_id", "k6").append("f1", "v2")));
+        tx3.rollback();
+
+        Tx tx4 = txDb.beginTransaction();
+        Assert.assertEquals(0, count(col.find(tx4, new Document("f1", "v2"))));
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k5")).first());
+        col.insertOne(tx4, new Document("_id", "k8").append("f1", "v3"));
+        try {
+            col.insertMany(tx4, Arrays.asList(new Document("_id", "k7"), new Document("_id", "k9"), new Document("_id", "k7")));
+            Assert.fail();
+        } catch (TxRollback ex) {
+            Assert.assertTrue(ex.getMessage().contains("key=k7"));
+        }
+
+        // the rollback removes the earlier write, and no key of the list is inserted
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k8")).first());
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k7")).first());
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k9")).first());
+        Tx tx5 = txDb.beginTransaction();
+        Assert.assertEquals(0, count(col.find(tx5, new Document("f1", "v3"))));
+        tx5.commit();
+    }
+
+    @Test
+    public void testInsertManyOverAbortedInsert() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("f1", "v1"));
+
+        // an aborted insert whose document is not removed yet
+        Tx writer = txDb.beginTransaction();
+        col.insertOne(writer, new Document("_id", "k2").append("f1", "v1"));
+        String writerTxId = ((Document) db.getCollection(col1).find(new Document(ATTR_ID, "k2")).first().get(ATTR_VALUE_UNSAFE)).getString(ATTR_VALUE_UNSAFE_TXID);
+        db.getCollection(COL_SYSTEM).updateOne(new Document(ATTR_ID, writerTxId), new Document("$set", new Document(ATTR_TX_STATE, STATE_ABORTED)));
+
+        Tx tx1 = txDb.beginTransaction();
+        Assert.assertNull(findOne(tx1, col, "k2"));
+        tx1.commit();
+
+        Tx tx2 = txDb.beginTransaction();
+        int finds = MongoProfilingCollection.find.get();
+        int insertManys = MongoProfilingCollection.insertMany.get();
+        col.insertMany(tx2, Arrays.asList(new Document("_id", "k2").append("f1", "v2"), new Document("_id", "k3").append("f1", "v2")));
+        // one unordered insert, and one read of the duplicated keys
+        Assert.assertEquals(1, MongoProfilingCollection.insertMany.get() - insertManys);
+        Assert.assertEquals(1, MongoProfilingCollection.find.get() - finds);
+        tx2.commit();
+
+        Tx tx3 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k2").append("f1", "v2"), findOne(tx3, col, "k2"));
+        Assert.assertEquals(new Document("_id", "k3").append("f1", "v2"), findOne(tx3, col, "k3"));
+        Assert.assertEquals(new Document("_id", "k1").append("f1", "v1"), findOne(tx3, col, "k1"));
+        tx3.commit();
+    }
+
+    @Test
+    public void testBulkWrite() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("balance", 100));
+        insertOne(db, col1, new Document("_id", "k2").append("f1", "v1"));
+        insertOne(db, col1, new Document("_id", "k3").append("f1", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        int finds = MongoProfilingCollection.find.get();
+        int bulkWrites = MongoProfilingCollection.bulkWrite.get();
+        TxBulkWriteResult result = col.bulkWrite(tx1, Arrays.asList(//
+                new UpdateOneModel<Document>(new Document(ATTR_ID, "k1"), new Document("$inc", new Document("balance", -10))), //
+                new InsertOneModel<>(new Document("_id", "k4").append("f1", "v1")), //
+                new ReplaceOneModel<>(new Document(ATTR_ID, "k2"), new Document("_id", "k2").append("f1", "v2")), //
+                new DeleteOneModel<Document>(new Document(ATTR_ID, "k3")), //
+                new UpdateOneModel<Document>(new Document(ATTR_ID, "k5"), new Document("$set", new Document("f1", "v2"))), //
+                new UpdateOneModel<Document>(new Document(ATTR_ID, "k1").append("balance", 90), new Document("$inc", new Document("balance", -5)))));
+        Assert.assertEquals(1, MongoProfilingCollection.find.get() - finds);
+        Assert.assertEquals(1, MongoProfilingCollection.bulkWrite.get() - bulkWrites);
+
+        Assert.assertEquals(6, result.size());
+        Assert.assertEquals(0L, result.getCount(4));
+        Assert.assertEquals(1L, result.getCount(5));
+        Assert.assertEquals(1L, result.getInsertedCount());
+        Assert.assertEquals(3L, result.getModifiedCount());
+        Assert.assertEquals(1L, result.getDeletedCount());
+
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 85), findOne(tx1, col, "k1"));
+        Assert.assertNull(findOne(tx1, col, "k3"));
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k2").append("f1", "v1"), findOne(tx2, col, "k2"));
+        Assert.assertNull(findOne(tx2, col, "k4"));
+        tx2.commit();
+
+        // own unsafe versions are rewritten in the batch
+        result = col.bulkWrite(tx1, Arrays.asList(//
+                new UpdateOneModel<Document>(new Document(ATTR_ID, "k4"), new Document("$set", new Document("f2", "v2"))), //
+                new InsertOneModel<>(new Document("_id", "k3").append("f1", "v3"))));
+        Assert.assertEquals(2L, result.getCount(0) + result.getCount(1));
+        tx1.commit();
+
+        Tx tx3 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 85), findOne(tx3, col, "k1"));
+        Assert.assertEquals(new Document("_id", "k2").append("f1", "v2"), findOne(tx3, col, "k2"));
+        Assert.assertEquals(new Document("_id", "k3").append("f1", "v3"), findOne(tx3, col, "k3"));
+        Assert.assertEquals(new Document("_id", "k4").append("f1", "v1").append("f2", "v2"), findOne(tx3, col, "k4"));
+        Assert.assertNull(findOne(tx3, col, "k5"));
+        tx3.commit();
+    }
+
+    @Test
+    public void testFindOneForUpdateWithUnsupportedQuery() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("n", 10));
+        insertOne(db, col1, new Document("_id", "k2").append("n", 11));
+
+        // $mod is not evaluated on the client
+        Document filter = new Document("n", new Document("$mod", Arrays.asList(5, 0)));
+        Tx tx1 = txDb.beginTransaction();
+        Assert.assertNotNull(col.findOneForUpdate(tx1, new Document(ATTR_ID, "k1")));
+        Assert.assertEquals(Arrays.asList(new Document("_id", "k1").append("n", 10)), col.find(tx1, filter).into(new ArrayList<Document>()));
+        Assert.assertEquals(1L, col.count(tx1, filter));
+
+        UpdateResult ret = col.replaceOne(tx1, new Document(filter).append(ATTR_ID, "k1"), new Document("_id", "k1").append("n", 15));
+        Assert.assertEquals(1L, ret.getModifiedCount());
+        tx1.commit();
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("n", 15), findOne(tx2, col, "k1"));
+        tx2.commit();
+    }
+
+    @Test
+    public void testUpsert() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("f1", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        int finds = MongoProfilingCollection.find.get();
+        int replaces = MongoProfilingCollection.replaceOne.get();
+        int updates = MongoProfilingCollection.updateOne.get();
+        UpdateResult ret = col.updateOne(tx1, new Document(ATTR_ID, "k2"), new Document("$set", new Document("f1", "v2")), upsert);
+        Assert.assertEquals(0L, ret.getModifiedCount());
+        Assert.assertEquals(new BsonString("k2"), ret.getUpsertedId());
+        // the insert marker is installed without a find or a conditional update
+        Assert.assertEquals(0, MongoProfilingCollection.find.get() - finds);
+        Assert.assertEquals(0, MongoProfilingCollection.replaceOne.get() - replaces);
+        Assert.assertEquals(0, MongoProfilingCollection.updateOne.get() - updates);
+        Assert.assertTrue(((Document) db.getCollection(col1).find(new Document(ATTR_ID, "k2")).first().get(ATTR_VALUE_UNSAFE)).containsKey(ATTR_VALUE_UNSAFE_INSERT));
+
+        ret = col.replaceOne(tx1, new Document(ATTR_ID, "k1"), new Document("f1", "v3"), upsert);
+        Assert.assertEquals(1L, ret.getModifiedCount());
+        Assert.assertNull(ret.getUpsertedId());
+
+        ret = col.replaceOne(tx1, new Document(ATTR_ID, "k3"), new Document("f1", "v3"), upsert);
+        Assert.assertEquals(new BsonString("k3"), ret.getUpsertedId());
+
+        ret = col.updateOne(tx1, new Document("f2", "v4"), new Document("$inc", new Document("n", 1)), upsert);
+        Assert.assertNotNull(ret.getUpsertedId());
+        Object k4 = col.find(tx1, new Document("f2", "v4")).first().get(ATTR_ID);
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertNull(findOne(tx2, col, "k2"));
+        tx2.commit();
+
+        tx1.commit();
+
+        Tx tx3 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("f1", "v3"), findOne(tx3, col, "k1"));
+        Assert.assertEquals(new Document("_id", "k2").append("f1", "v2"), findOne(tx3, col, "k2"));
+        Assert.assertEquals(new Document("_id", "k3").append("f1", "v3"), findOne(tx3, col, "k3"));
+        Assert.assertEquals(new Document("_id", k4).append("f2", "v4").append("n", 1), findOne(tx3, col, k4));
+
+        // a removed document is upserted again
+        col.deleteOne(tx3, new Document(ATTR_ID, "k2"));
+        ret = col.updateOne(tx3, new Document(ATTR_ID, "k2"), new Document("$set", new Document("f1", "v5")), upsert);
+        Assert.assertEquals(new BsonString("k2"), ret.getUpsertedId());
+        tx3.commit();
+
+        Tx tx4 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k2").append("f1", "v5"), findOne(tx4, col, "k2"));
+        tx4.commit();
+
+        // an existing key that does not match the filter is a duplicate key
+        Tx tx5 = txDb.beginTransaction();
+        try {
+            col.replaceOne(tx5, new Document(ATTR_ID, "k2").append("f1", "v6"), new Document("f1", "v7"), upsert);
+            Assert.fail();
+        } catch (TxRollback ex) {
+            Assert.assertTrue(ex.getMessage().contains("key=k2"));
+        }
+
+        Tx tx6 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k2").append("f1", "v5"), findOne(tx6, col, "k2"));
+        tx6.commit();
+    }
+
+    @Test
+    public void testFindOneForUpdate() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("balance", 100));
+        insertOne(db, col1, new Document("_id", "k2").append("balance", 100));
+
+        Tx tx1 = txDb.beginTransaction();
+        Assert.assertNull(col.findOneForUpdate(tx1, new Document(ATTR_ID, "k1").append("balance", 0)));
+        Document v1 = col.findOneForUpdate(tx1, new Document(ATTR_ID, "k1"));
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 100), v1);
+        Assert.assertNotNull(db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first().get(ATTR_VALUE_UNSAFE));
+
+        // the locked version is overwritten without reading it again
+        int finds = MongoProfilingCollection.find.get();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k1"), new Document("_id", "k1").append("balance", v1.getInteger("balance") - 10));
+        Assert.assertEquals(0, MongoProfilingCollection.find.get() - finds);
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 90), findOne(tx1, col, "k1"));
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 100), findOne(tx2, col, "k1"));
+        tx2.commit();
+
+        // a lock without a write is released by commit
+        Assert.assertEquals(new Document("_id", "k2").append("balance", 100), col.findOneForUpdate(tx1, new Document(ATTR_ID, "k2")));
+        tx1.commit();
+
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_VALUE_UNSAFE, new Document("$exists", true))).first());
+        // the lock without a write does not change _tx of the safe version
+        Assert.assertFalse(db.getCollection(col1).find(new Document(ATTR_ID, "k2")).first().containsKey(ATTR_VALUE_TXID));
+
+        Tx tx3 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 90), findOne(tx3, col, "k1"));
+        Assert.assertEquals(new Document("_id", "k2").append("balance", 100), findOne(tx3, col, "k2"));
+        Assert.assertNotNull(col.findOneForUpdate(tx3, new Document(ATTR_ID, "k2")));
+        tx3.rollback();
+
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_VALUE_UNSAFE, new Document("$exists", true))).first());
+    }
+
+    @Test
+    public void testFindOneForUpdateWithOnePhaseCommit() throws Exception {
+        MongoDatabase db = createDB();
+        LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+        txDb.setOnePhaseCommit(true);
+
+        TxCollection col = txDb.getCollection(col1);
+        insertOne(db, col1, new Document("_id", "k1").append("balance", 100));
+
+        // the document is pinned instead of locked, so the write is committed in one phase without _SYS
+        int inserts = MongoProfilingCollection.insertOne.get();
+        Tx tx1 = txDb.beginTransaction();
+        Document v1 = col.findOneForUpdate(tx1, new Document(ATTR_ID, "k1"));
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 100), v1);
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first().get(ATTR_VALUE_UNSAFE));
+        col.replaceOne(tx1, new Document(ATTR_ID, "k1"), new Document("_id", "k1").append("balance", 90));
+        tx1.commit();
+        Assert.assertEquals(inserts, MongoProfilingCollection.insertOne.get());
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document("_id", "k1").append("balance", 90), findOne(tx2, col, "k1"));
+        tx2.commit();
+    }
+
+    private int count(FindIterable<Document> iterable) {
+        int count = 0;
+        for (MongoCursor<Document> cursor = iterable.iterator(); cursor.hasNext(); cursor.next())
+            ++count;
+        return count;
+    }
+
     @Test
     public void testNoHitQuery() throws Exception {
         MongoDatabase db = createDB();
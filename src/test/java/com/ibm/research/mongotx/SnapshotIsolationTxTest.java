@@ -0,0 +1,223 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.research.mongotx.si.Constants;
+import com.ibm.research.mongotx.si.SnapshotIsolationTxDB;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+public class SnapshotIsolationTxTest implements Constants {
+
+    public MongoClient client;
+    public static String col1 = "col1";
+    public static String col2 = "col2";
+
+    @Before
+    public void init() throws Exception {
+        client = new MongoClient("localhost");
+        MongoDatabase db = createDB();
+        db.drop();
+        db = createDB();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+    }
+
+    public MongoDatabase createDB() {
+        return client.getDatabase("test");
+    }
+
+    public SnapshotIsolationTxDB createTxDB(MongoDatabase db) {
+        return new SnapshotIsolationTxDB(client, db);
+    }
+
+    public Document findOne(Tx tx, TxCollection col, Object key) throws TxRollback {
+        Iterator<Document> itr = col.find(tx, new Document(ATTR_ID, key)).iterator();
+        return itr.hasNext() ? itr.next() : null;
+    }
+
+    private List<Document> find(Tx tx, TxCollection col, Document query) throws TxRollback {
+        return col.find(tx, query).sort(new Document(ATTR_ID, 1)).into(new ArrayList<Document>());
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+        TxCollection col = txDb.getCollection(col1);
+
+        Tx tx1 = txDb.beginTransaction();
+        col.insertOne(tx1, new Document(ATTR_ID, "k1").append("f1", "v1"));
+        txDb.getCollection(col2).insertOne(tx1, new Document(ATTR_ID, "k2").append("f1", "v1"));
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v1"), findOne(tx1, col, "k1"));
+        tx1.commit();
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v1"), findOne(tx2, col, "k1"));
+        Assert.assertEquals(new Document(ATTR_ID, "k2").append("f1", "v1"), findOne(tx2, txDb.getCollection(col2), "k2"));
+        tx2.commit();
+
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first().get(ATTR_VALUE_UNSAFE));
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first().get(ATTR_VALUE_COMMITS));
+        Assert.assertNull(db.getCollection(col2).find(new Document(ATTR_ID, "k2")).first().get(ATTR_VALUE_UNSAFE));
+    }
+
+    @Test
+    public void testSnapshotRead() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+        TxCollection col = txDb.getCollection(col1);
+        db.getCollection(col1).insertOne(new Document(ATTR_ID, "k1").append("f1", "v1"));
+        db.getCollection(col1).insertOne(new Document(ATTR_ID, "k2").append("f1", "v1"));
+
+        Tx reader = txDb.beginTransaction();
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v1"), findOne(reader, col, "k1"));
+
+        Tx writer = txDb.beginTransaction();
+        col.replaceOne(writer, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v2"));
+        col.deleteOne(writer, new Document(ATTR_ID, "k2"));
+        col.insertOne(writer, new Document(ATTR_ID, "k3").append("f1", "v1"));
+
+        // locked documents are read in the snapshot without waiting for the writer
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v1"), findOne(reader, col, "k1"));
+        Assert.assertNull(findOne(reader, col, "k3"));
+        writer.commit();
+
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v1"), findOne(reader, col, "k1"));
+        Assert.assertEquals(new Document(ATTR_ID, "k2").append("f1", "v1"), findOne(reader, col, "k2"));
+        Assert.assertNull(findOne(reader, col, "k3"));
+        Assert.assertEquals(2, find(reader, col, new Document("f1", "v1")).size());
+        reader.commit();
+
+        Tx tx = txDb.beginTransaction();
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v2"), findOne(tx, col, "k1"));
+        Assert.assertNull(findOne(tx, col, "k2"));
+        Assert.assertEquals(new Document(ATTR_ID, "k3").append("f1", "v1"), findOne(tx, col, "k3"));
+        Assert.assertEquals(1, find(tx, col, new Document("f1", "v1")).size());
+        tx.commit();
+    }
+
+    @Test
+    public void testFirstCommitterWins() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+        TxCollection col = txDb.getCollection(col1);
+        db.getCollection(col1).insertOne(new Document(ATTR_ID, "k1").append("f1", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        Tx tx2 = txDb.beginTransaction();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v2"));
+        try {
+            col.replaceOne(tx2, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v3"));
+            Assert.fail();
+        } catch (TxRollback ex) {
+        }
+        tx1.commit();
+
+        Tx tx3 = txDb.beginTransaction();
+        Tx tx4 = txDb.beginTransaction();
+        col.replaceOne(tx3, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v4"));
+        tx3.commit();
+        try {
+            col.replaceOne(tx4, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v5"));
+            Assert.fail();
+        } catch (TxRollback ex) {
+        }
+
+        Tx tx5 = txDb.beginTransaction();
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v4"), findOne(tx5, col, "k1"));
+        tx5.commit();
+    }
+
+    @Test
+    public void testFindOneForUpdate() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+        TxCollection col = txDb.getCollection(col1);
+        db.getCollection(col1).insertOne(new Document(ATTR_ID, "k1").append("f1", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v1"), col.findOneForUpdate(tx1, new Document(ATTR_ID, "k1")));
+        try {
+            col.replaceOne(tx2, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v3"));
+            Assert.fail();
+        } catch (TxRollback ex) {
+        }
+        col.replaceOne(tx1, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v2"));
+        tx1.commit();
+
+        Tx tx3 = txDb.beginTransaction();
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v2"), findOne(tx3, col, "k1"));
+        tx3.commit();
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        MongoDatabase db = createDB();
+        TxDatabase txDb = createTxDB(db);
+        TxCollection col = txDb.getCollection(col1);
+        db.getCollection(col1).insertOne(new Document(ATTR_ID, "k1").append("f1", "v1"));
+
+        Tx tx1 = txDb.beginTransaction();
+        col.replaceOne(tx1, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v2"));
+        col.insertOne(tx1, new Document(ATTR_ID, "k2").append("f1", "v1"));
+        tx1.rollback();
+
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k2")).first());
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_ID, "k1")).first().get(ATTR_VALUE_UNSAFE));
+
+        Tx tx2 = txDb.beginTransaction();
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v1"), findOne(tx2, col, "k1"));
+        col.replaceOne(tx2, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v3"));
+        tx2.commit();
+    }
+
+    @Test
+    public void testSnapshotTooOld() throws Exception {
+        MongoDatabase db = createDB();
+        SnapshotIsolationTxDB txDb = createTxDB(db);
+        txDb.setMaxVersions(1);
+        TxCollection col = txDb.getCollection(col1);
+        db.getCollection(col1).insertOne(new Document(ATTR_ID, "k1").append("f1", "v1"));
+
+        Tx reader = txDb.beginTransaction();
+        for (int i = 2; i <= 3; ++i) {
+            Tx writer = txDb.beginTransaction();
+            col.replaceOne(writer, new Document(ATTR_ID, "k1"), new Document(ATTR_ID, "k1").append("f1", "v" + i));
+            writer.commit();
+        }
+
+        try {
+            findOne(reader, col, "k1");
+            Assert.fail();
+        } catch (TxRollback ex) {
+        }
+    }
+}
@@ -56,6 +56,14 @@ public class DT3 extends DT3Utils implements Constants {
         return col.find(tx, new Document(ATTR_ID, id)).first();
     }
 
+    static Document findOneForUpdate(Tx tx, TxCollection col, Document query) throws TxRollback {
+        return col.findOneForUpdate(tx, query);
+    }
+
+    static Document findOneForUpdate(Tx tx, TxCollection col, Object id) throws TxRollback {
+        return col.findOneForUpdate(tx, new Document(ATTR_ID, id));
+    }
+
     static void put(Tx tx, TxCollection col, Object id, Document newValue) {
         col.replaceOne(tx, new Document(ATTR_ID, id), newValue);
     }
@@ -151,16 +159,10 @@ public class DT3 extends DT3Utils implements Constants {
     public static List<Document> getIndexedDocuments(TxDatabase client, Tx tx, TxCollection col, String idxName, Object idxValue) {
         MongoCollection<Document> idxCol = getIndexCollection(client);
         Document idxKey = new Document("name", idxName).append("value", idxValue);
-        List<Document> ret = new ArrayList<>();
         Document keySet = idxCol.find(new Document(ATTR_ID, idxKey)).first();
         if (keySet == null)
-            return ret;
-        for (Object key : (List<Object>) keySet.get("KEYS")) {
-            Document doc = col.find(tx, new Document(ATTR_ID, key)).first();
-            if (doc != null)
-                ret.add(doc);
-        }
-        return ret;
+            return new ArrayList<>();
+        return col.findByIds(tx, (List<Object>) keySet.get("KEYS"));
     }
 
     public static void addIndexedKey(TxDatabase client, String indexName, Object indexValue, Object indexedKey) {
@@ -324,7 +326,7 @@ public class DT3 extends DT3Utils implements Constants {
     public static Document doLogout(TxDatabase client, Tx tx, int accountId, String userId) throws TxRollback {
         TxCollection accounts = client.getCollection(COL_ACCOUNT);
 
-        Document account = findOne(tx, accounts, new Document(ATTR_ID, accountId).append(A_PROFILE_USERID, userId));
+        Document account = findOneForUpdate(tx, accounts, new Document(ATTR_ID, accountId).append(A_PROFILE_USERID, userId));
         if (account == null) {
             //System.err.println("no uid: " + accountId + ": " + userId);
             tx.rollback();
@@ -454,20 +456,20 @@ public class DT3 extends DT3Utils implements Constants {
         TxCollection quotes = client.getCollection(COL_QUOTE);
         TxCollection holdings = client.getCollection(COL_HOLDING);
 
-        Document accountData = findOne(tx, accounts, new Document(ATTR_ID, accountId).append(A_PROFILE_USERID, userId));
+        Document accountData = findOneForUpdate(tx, accounts, new Document(ATTR_ID, accountId).append(A_PROFILE_USERID, userId));
         if (accountData == null) {
             //System.err.println("no uid: " + accountId + ": " + userId);
             tx.rollback();
             throw new TxRollback("error");
         }
-        Document holdingData = findOne(tx, holdings, new Document(ATTR_ID, holdingId).append(H_ACCOUNT_ACCOUNTID, accountId));
+        Document holdingData = findOneForUpdate(tx, holdings, new Document(ATTR_ID, holdingId).append(H_ACCOUNT_ACCOUNTID, accountId));
 
         if (holdingData == null || holdingData.getString(H_QUOTE_SYMBOL).equals("_")) {
             //System.err.println("no holding data: holdingId=" + holdingId);
             return;
         }
 
-        Document quoteData = findOne(tx, quotes, holdingData.get(H_QUOTE_SYMBOL));
+        Document quoteData = findOneForUpdate(tx, quotes, holdingData.get(H_QUOTE_SYMBOL));
 
         if (quoteData == null) {
             //System.err.println("invalid quote in a holding: symbol=" + holdingData.get(H_QUOTE_SYMBOL));
@@ -619,13 +621,13 @@ public class DT3 extends DT3Utils implements Constants {
         TxCollection accounts = client.getCollection(COL_ACCOUNT);
         TxCollection quotes = client.getCollection(COL_QUOTE);
 
-        Document accountData = findOne(tx, accounts, new Document(ATTR_ID, accountId).append(A_PROFILE_USERID, userId));
+        Document accountData = findOneForUpdate(tx, accounts, new Document(ATTR_ID, accountId).append(A_PROFILE_USERID, userId));
         if (accountData == null) {
             //System.err.println("no uid: " + accountId + ": " + userId);
             tx.rollback();
             throw new TxRollback("error");
         }
-        Document quoteData = findOne(tx, quotes, symbol);
+        Document quoteData = findOneForUpdate(tx, quotes, symbol);
 
         Document orderData = createOrder(client, tx, accountId, accountData, quoteData, newHoldingId, "buy", quantity, newOrderId);
 
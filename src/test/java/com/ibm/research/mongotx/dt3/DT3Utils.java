@@ -26,6 +26,7 @@ import org.bson.Document;
 
 import com.ibm.research.mongotx.TxDatabase;
 import com.ibm.research.mongotx.lrc.LatestReadCommittedTxDB;
+import com.ibm.research.mongotx.si.SnapshotIsolationTxDB;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
 import com.mongodb.ReadPreference;
@@ -316,7 +317,11 @@ public class DT3Utils {
             db = mongoClient.getDatabase(DBNAME).withReadPreference(ReadPreference.primary()).withWriteConcern(WriteConcern.SAFE);
         }
 
-        TxDatabase txDb = new LatestReadCommittedTxDB(mongoClient, db);
+        TxDatabase txDb;
+        if ("si".equals(props.getProperty("mongotx.engine", "lrc")))
+            txDb = new SnapshotIsolationTxDB(mongoClient, db);
+        else
+            txDb = new LatestReadCommittedTxDB(mongoClient, db);
 
         return txDb;
     }
@@ -0,0 +1,110 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.research.mongotx.Tx;
+import com.ibm.research.mongotx.TxCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoDatabase;
+
+public class CountVisibleTest implements Constants {
+
+    MongoClient client;
+    static String col1 = "col1";
+
+    @Before
+    public void init() throws Exception {
+        client = new MongoClient("localhost");
+        client.getDatabase("test").drop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+    }
+
+    // runs the action before the second query of a count, which is between the scan of unsafe versions and the count in the server
+    static class InterleavingCollection extends MongoProfilingCollection {
+        final AtomicInteger queries = new AtomicInteger();
+        Runnable action;
+
+        InterleavingCollection(MongoDatabase db) {
+            super(db.getCollection(col1));
+        }
+
+        void interleave() {
+            if (action != null && queries.incrementAndGet() == 2)
+                action.run();
+        }
+
+        @Override
+        public long count(Bson filter) {
+            interleave();
+            return super.count(filter);
+        }
+
+        @Override
+        public FindIterable<Document> find(Bson filter) {
+            interleave();
+            return super.find(filter);
+        }
+    }
+
+    @Test
+    public void testCommitBetweenScanAndCount() throws Exception {
+        MongoDatabase db = client.getDatabase("test");
+        final LatestReadCommittedTxDB txDb = new LatestReadCommittedTxDB(client, db);
+        final TxCollection writerCol = txDb.getCollection(col1);
+        for (int i = 0; i < 4; ++i)
+            db.getCollection(col1).insertOne(new Document(ATTR_ID, "k" + i).append("f1", i == 2 ? "even" : "odd"));
+
+        // k0 is committed without roll-forward and k2 is written by an active transaction
+        Tx tx1 = txDb.beginTransaction();
+        writerCol.replaceOne(tx1, new Document(ATTR_ID, "k0"), new Document(ATTR_ID, "k0").append("f1", "even"));
+        ((LRCTx) tx1).commit(true);
+        final Tx tx2 = txDb.beginTransaction();
+        writerCol.replaceOne(tx2, new Document(ATTR_ID, "k2"), new Document(ATTR_ID, "k2").append("f1", "even").append("f2", "v2"));
+
+        InterleavingCollection baseCol = new InterleavingCollection(db);
+        LRCTxDBCollection col = new LRCTxDBCollection(txDb, baseCol, col1);
+        baseCol.action = new Runnable() {
+            @Override
+            public void run() {
+                // both documents are rolled forward between the two steps
+                tx2.commit();
+                Tx tx3 = txDb.beginTransaction();
+                writerCol.find(tx3, new Document(ATTR_ID, "k0")).first();
+                tx3.commit();
+            }
+        };
+
+        Tx tx4 = txDb.beginReadOnlyTransaction();
+        Assert.assertEquals(2L, col.count(tx4, new Document("f1", "even")));
+        tx4.commit();
+        Assert.assertEquals(2, baseCol.queries.get());
+        Assert.assertNull(db.getCollection(col1).find(new Document(ATTR_VALUE_UNSAFE, new Document("$exists", true))).first());
+    }
+}
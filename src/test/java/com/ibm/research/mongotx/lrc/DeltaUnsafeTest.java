@@ -0,0 +1,54 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeltaUnsafeTest implements Constants {
+
+    @Test
+    public void testCreateDelta() throws Exception {
+        Document safe = new Document(ATTR_ID, "k1").append("f1", "v1").append("f2", "v1").append("f3", "v1").append(ATTR_VALUE_TXID, "1-1");
+        Document newValue = new Document(ATTR_ID, "k1").append("f1", "v1").append("f2", "v2").append("f4", "v2");
+
+        Document delta = LRCTxDBCollection.createDelta(safe, newValue, "1-2");
+        Assert.assertEquals(new Document("f2", "v2").append("f4", "v2")//
+                .append(ATTR_VALUE_UNSAFE_DELTA, Arrays.asList("f3"))//
+                .append(ATTR_VALUE_UNSAFE_TXID, "1-2"), delta);
+
+        // the merged view is the new value
+        Document sd2v = new Document(safe).append(ATTR_VALUE_UNSAFE, delta);
+        Assert.assertTrue(LRCTxDBCollection.isDelta(sd2v));
+        Assert.assertEquals(new Document(newValue).append(ATTR_VALUE_TXID, "1-2"), LRCTxDBCollection.getUnsafeVersion(sd2v));
+        Assert.assertEquals(newValue, LRCTxDBCollection.clean(LRCTxDBCollection.getUnsafeVersion(sd2v)));
+
+        // a removal and an insert are not deltas
+        Assert.assertNull(LRCTxDBCollection.createDelta(safe, new Document(ATTR_ID, "k1").append(ATTR_VALUE_UNSAFE_REMOVE, true), "1-2"));
+        Document insert = new Document(ATTR_ID, "k1").append(ATTR_VALUE_UNSAFE, new Document(ATTR_VALUE_UNSAFE_TXID, "1-1").append(ATTR_VALUE_UNSAFE_INSERT, true));
+        Assert.assertNull(LRCTxDBCollection.createDelta(insert, newValue, "1-2"));
+    }
+
+    @Test
+    public void testDeltaCommit() throws Exception {
+        Document delta = new Document("f2", "v2").append(ATTR_VALUE_UNSAFE_DELTA, Arrays.asList("f3")).append(ATTR_VALUE_UNSAFE_TXID, "1-2");
+        Assert.assertEquals(new Document("$set", new Document("f2", "v2").append(ATTR_VALUE_TXID, "1-2"))//
+                .append("$unset", new Document(ATTR_VALUE_UNSAFE, "").append("f3", "")), LRCTxDBCollection.createDeltaCommit(delta));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DocumentCacheTest implements Constants {
+
+    @Test
+    public void testGetPut() throws Exception {
+        DocumentCache cache = new DocumentCache(1024);
+
+        Document v1 = new Document(ATTR_ID, "k1").append("f1", "v1").append(ATTR_VALUE_TXID, "1-1");
+        cache.put("k1", v1, cache.getStamp("k1"));
+        cache.put("k2", new Document(ATTR_ID, "k2").append(ATTR_VALUE_UNSAFE, new Document(ATTR_VALUE_UNSAFE_TXID, "1-2")), cache.getStamp("k2"));
+
+        Assert.assertEquals(v1, cache.get("k1"));
+        Assert.assertNull(cache.get("k2"));
+
+        // a returned document is a copy
+        cache.get("k1").append("f1", "v2");
+        Assert.assertEquals(v1, cache.get("k1"));
+
+        Assert.assertEquals(3L, cache.getHitCount());
+        Assert.assertEquals(1L, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        DocumentCache cache = new DocumentCache(1024);
+
+        Document v1 = new Document(ATTR_ID, "k1").append("f1", "v1");
+        cache.put("k1", v1, cache.getStamp("k1"));
+        cache.invalidate("k1");
+        Assert.assertNull(cache.get("k1"));
+
+        // a version read before an invalidation is not cached
+        long stamp = cache.getStamp("k1");
+        cache.invalidate("k1");
+        cache.put("k1", v1, stamp);
+        Assert.assertNull(cache.get("k1"));
+
+        stamp = cache.getStamp("k1");
+        cache.clear();
+        cache.put("k1", v1, stamp);
+        Assert.assertNull(cache.get("k1"));
+
+        cache.put("k1", v1, cache.getStamp("k1"));
+        Assert.assertEquals(v1, cache.get("k1"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        DocumentCache cache = new DocumentCache(DocumentCache.NUM_OF_SEGMENTS * 4);
+
+        for (int i = 0; i < 1000; ++i)
+            cache.put(i, new Document(ATTR_ID, i), cache.getStamp(i));
+
+        Assert.assertTrue(cache.size() <= DocumentCache.NUM_OF_SEGMENTS * 4);
+        Assert.assertEquals(new Document(ATTR_ID, 999), cache.get(999));
+    }
+}
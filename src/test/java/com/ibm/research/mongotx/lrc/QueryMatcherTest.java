@@ -0,0 +1,91 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryMatcherTest {
+
+    @Test
+    public void testSupported() throws Exception {
+        Assert.assertTrue(QueryMatcher.isSupported(new Document()));
+        Assert.assertTrue(QueryMatcher.isSupported(new Document("f1", "v1").append("f2", new Document("$gt", 1).append("$lte", 5))));
+        Assert.assertTrue(QueryMatcher.isSupported(new Document("$or", Arrays.asList(new Document("f1", "v1"), new Document("f2", new Document("$in", Arrays.asList(1, 2)))))));
+        Assert.assertTrue(QueryMatcher.isSupported(new Document("f1", new Document("$regex", "^v").append("$options", "i"))));
+        Assert.assertTrue(QueryMatcher.isSupported(new Document("f1", new Document("$not", new Document("$in", Arrays.asList("v1"))))));
+        Assert.assertFalse(QueryMatcher.isSupported(new Document("f1", new Document("$elemMatch", new Document("f2", 1)))));
+        Assert.assertFalse(QueryMatcher.isSupported(new Document("f1", new Document("$in", "v1"))));
+        Assert.assertFalse(QueryMatcher.isSupported(new Document("$where", "this.f1 == 'v1'")));
+        Assert.assertFalse(QueryMatcher.isSupported(new Document("$or", Arrays.asList())));
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        Document doc = new Document("_id", "k1").append("f1", "v1").append("f2", 3).append("f3", new Document("f4", 2.5));
+
+        Assert.assertTrue(QueryMatcher.matches(new Document(), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f1", "v1"), doc));
+        Assert.assertFalse(QueryMatcher.matches(new Document("f1", "v2"), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f2", 3L), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f2", new Document("$gt", 2).append("$lte", 3)), doc));
+        Assert.assertFalse(QueryMatcher.matches(new Document("f2", new Document("$lt", 3)), doc));
+        Assert.assertFalse(QueryMatcher.matches(new Document("f1", new Document("$gt", 3)), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f3.f4", new Document("$gte", 2)), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f2", new Document("$in", Arrays.asList(1, 3))), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f5", new Document("$exists", false)), doc));
+        Assert.assertFalse(QueryMatcher.matches(new Document("f1", new Document("$exists", false)), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f5", null), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("$or", Arrays.asList(new Document("f1", "v2"), new Document("f2", 3))), doc));
+        Assert.assertFalse(QueryMatcher.matches(new Document("$and", Arrays.asList(new Document("f1", "v1"), new Document("f2", 4))), doc));
+    }
+
+    @Test
+    public void testArraysAndNegations() throws Exception {
+        Document doc = new Document("_id", "k1").append("f1", Arrays.asList("v1", "v2"))//
+                .append("f2", Arrays.asList(new Document("f3", 1), new Document("f3", 5))).append("f4", "Value");
+
+        Assert.assertTrue(QueryMatcher.matches(new Document("f1", "v2"), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f1", Arrays.asList("v1", "v2")), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f1", new Document("$all", Arrays.asList("v2", "v1"))), doc));
+        Assert.assertFalse(QueryMatcher.matches(new Document("f1", new Document("$all", Arrays.asList("v1", "v3"))), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f1", new Document("$size", 2)), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f2.f3", new Document("$gt", 4)), doc));
+        Assert.assertFalse(QueryMatcher.matches(new Document("f2.f3", new Document("$gt", 5)), doc));
+        Assert.assertFalse(QueryMatcher.matches(new Document("f1", new Document("$ne", "v1")), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f1", new Document("$nin", Arrays.asList("v3"))), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f5", new Document("$ne", "v1")), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f2.f3", new Document("$not", new Document("$gt", 5))), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("$nor", Arrays.asList(new Document("f1", "v3"), new Document("f4", "v1"))), doc));
+        Assert.assertTrue(QueryMatcher.matches(new Document("f4", new Document("$regex", "^val").append("$options", "i")), doc));
+        Assert.assertFalse(QueryMatcher.matches(new Document("f4", new Document("$regex", "^val")), doc));
+    }
+
+    @Test
+    public void testComparator() throws Exception {
+        Comparator<Document> comparator = QueryMatcher.createComparator(new Document("f1", 1).append("f2", -1));
+
+        Assert.assertTrue(comparator.compare(new Document("f1", 1), new Document("f1", 2L)) < 0);
+        Assert.assertTrue(comparator.compare(new Document("f1", 1).append("f2", "a"), new Document("f1", 1.0).append("f2", "b")) > 0);
+        Assert.assertTrue(comparator.compare(new Document(), new Document("f1", 0)) < 0);
+        Assert.assertTrue(comparator.compare(new Document("f1", 10), new Document("f1", "1")) < 0);
+        Assert.assertEquals(0, comparator.compare(new Document("f1", 1).append("f2", 2), new Document("f1", 1).append("f2", 2.0)));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ibm.research.mongotx.lrc.LRCTx.STATE;
+
+public class TxStateCacheTest {
+
+    @Test
+    public void testTerminalStates() throws Exception {
+        TxStateCache cache = new TxStateCache(1024, 0L);
+
+        cache.put("1-1", STATE.COMMITTED);
+        cache.put("1-2", STATE.ABORTED);
+        cache.put("1-3", STATE.WRITING);
+        cache.put("1-4", STATE.UNKNOWN);
+
+        Assert.assertEquals(STATE.COMMITTED, cache.get("1-1"));
+        Assert.assertEquals(STATE.ABORTED, cache.get("1-2"));
+        Assert.assertNull(cache.get("1-3"));
+        Assert.assertNull(cache.get("1-4"));
+
+        cache.put("1-1", STATE.ABORTED);
+        Assert.assertEquals(STATE.COMMITTED, cache.get("1-1"));
+
+        Assert.assertEquals(3L, cache.getHitCount());
+        Assert.assertEquals(2L, cache.getMissCount());
+    }
+
+    @Test
+    public void testUnknownTtl() throws Exception {
+        TxStateCache cache = new TxStateCache(1024, 20L);
+
+        cache.put("1-1", STATE.UNKNOWN);
+        Assert.assertEquals(STATE.UNKNOWN, cache.get("1-1"));
+
+        Thread.sleep(50L);
+        Assert.assertNull(cache.get("1-1"));
+
+        cache.put("1-1", STATE.UNKNOWN);
+        cache.put("1-1", STATE.COMMITTED);
+        Thread.sleep(50L);
+        Assert.assertEquals(STATE.COMMITTED, cache.get("1-1"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        TxStateCache cache = new TxStateCache(TxStateCache.NUM_OF_SEGMENTS * 4, 0L);
+
+        for (int i = 0; i < 1000; ++i)
+            cache.put("1-" + i, STATE.COMMITTED);
+
+        Assert.assertTrue(cache.size() <= TxStateCache.NUM_OF_SEGMENTS * 4);
+        Assert.assertEquals(STATE.COMMITTED, cache.get("1-999"));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.MongoException;
+
+public class TxStateWriterTest implements Constants {
+
+    @Test
+    public void testEnqueueAfterClose() throws Exception {
+        TxStateWriter writer = new TxStateWriter(null, 1000L, 16, 0L);
+        writer.close();
+        try {
+            writer.insert(new Document(ATTR_ID, "1-1"));
+            Assert.fail();
+        } catch (IllegalStateException ex) {
+        }
+    }
+
+    @Test
+    public void testInterruptFailsWaitingRequests() throws Exception {
+        // the interval is long enough for the writer thread to wait with the request in its batch
+        final TxStateWriter writer = new TxStateWriter(null, 10 * 1000L * 1000L, 16, 0L);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        Thread committer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    writer.insert(new Document(ATTR_ID, "1-1"));
+                } catch (Exception ex) {
+                    error.set(ex);
+                }
+            }
+        };
+        committer.start();
+        Thread.sleep(100L);
+
+        writer.writer.interrupt();
+        committer.join(5000L);
+        Assert.assertFalse(committer.isAlive());
+        Assert.assertTrue(error.get() instanceof MongoException);
+
+        writer.close();
+    }
+}
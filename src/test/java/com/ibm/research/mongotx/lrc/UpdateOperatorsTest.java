@@ -0,0 +1,95 @@
+/*
+ * Copyright IBM Corp. 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ibm.research.mongotx.lrc;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UpdateOperatorsTest implements Constants {
+
+    @Test
+    public void testIsUpdate() throws Exception {
+        Assert.assertTrue(UpdateOperators.isUpdate(new Document("$set", new Document("f1", "v1"))));
+        Assert.assertFalse(UpdateOperators.isUpdate(new Document(ATTR_ID, "k1").append("f1", "v1")));
+        Assert.assertTrue(UpdateOperators.isSupported(new Document("$inc", new Document("f1", 1)).append("$push", new Document("f2", new Document("$each", Arrays.asList(1, 2))))));
+        Assert.assertFalse(UpdateOperators.isSupported(new Document("$rename", new Document("f1", "f2"))));
+        Assert.assertFalse(UpdateOperators.isSupported(new Document("$inc", new Document("f1", "1"))));
+        Assert.assertFalse(UpdateOperators.isSupported(new Document("$push", new Document("f1", new Document("$each", Arrays.asList(1)).append("$slice", 1)))));
+    }
+
+    @Test
+    public void testApply() throws Exception {
+        Document prev = new Document(ATTR_ID, "k1").append("f1", "v1").append("n", 1).append("sub", new Document("a", 1)).append("list", Arrays.asList(1));
+
+        Document updated = UpdateOperators.apply(prev, new Document("$set", new Document("f1", "v2").append("sub.b", 2).append("new.c", 3))//
+                .append("$unset", new Document("n", "").append("none.x", ""))//
+                .append("$push", new Document("list", 2).append("list2", new Document("$each", Arrays.asList(3, 4)))));
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v2").append("sub", new Document("a", 1).append("b", 2)).append("list", Arrays.asList(1, 2))//
+                .append("new", new Document("c", 3)).append("list2", Arrays.asList(3, 4)), updated);
+
+        // prev is not changed
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v1").append("n", 1).append("sub", new Document("a", 1)).append("list", Arrays.asList(1)), prev);
+    }
+
+    @Test
+    public void testInc() throws Exception {
+        Document prev = new Document(ATTR_ID, "k1").append("i", 1).append("l", 1L).append("d", 1.5);
+        Document updated = UpdateOperators.apply(prev, new Document("$inc", new Document("i", 2).append("l", 2).append("d", 1).append("x", 5)));
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("i", 3).append("l", 3L).append("d", 2.5).append("x", 5), updated);
+
+        Assert.assertEquals(Integer.MAX_VALUE + 1L, UpdateOperators.add(Integer.MAX_VALUE, 1));
+        try {
+            UpdateOperators.add(Long.MAX_VALUE, 1);
+            Assert.fail();
+        } catch (ArithmeticException ex) {
+        }
+        try {
+            UpdateOperators.apply(new Document("f1", "v1"), new Document("$inc", new Document("f1", 1)));
+            Assert.fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    @Test
+    public void testUpsert() throws Exception {
+        Document filter = new Document(ATTR_ID, "k1").append("f1", "v1").append("n", new Document("$gt", 1)).append("$or", Arrays.asList(new Document("f2", "v2")));
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f1", "v1").append("n", 5), UpdateOperators.upsert(filter, new Document("$inc", new Document("n", 5))));
+        Assert.assertEquals(new Document(ATTR_ID, "k1").append("f3", "v3"), UpdateOperators.upsert(filter, new Document("f3", "v3")));
+        Assert.assertEquals(new Document("f3", "v3"), UpdateOperators.upsert(new Document("f1", "v1"), new Document("f3", "v3")));
+    }
+
+    @Test
+    public void testInvalidUpdate() throws Exception {
+        try {
+            UpdateOperators.apply(new Document(ATTR_ID, "k1"), new Document("$set", new Document(ATTR_ID, "k2")));
+            Assert.fail();
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            UpdateOperators.apply(new Document(ATTR_ID, "k1"), new Document("$rename", new Document("f1", "f2")));
+            Assert.fail();
+        } catch (UnsupportedOperationException ex) {
+        }
+        try {
+            UpdateOperators.apply(new Document("f1", "v1"), new Document("$push", new Document("f1", 1)));
+            Assert.fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+}